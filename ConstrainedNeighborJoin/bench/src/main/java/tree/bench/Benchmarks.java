@@ -0,0 +1,26 @@
+package tree.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler, that reports allocation rates next to times.
+ * Arguments are the usual JMH ones, so for instance
+ *
+ *  sbt "bench/jmh:runMain tree.bench.Benchmarks NJBenchmark -p n=1000,5000 -p type=FAST,RAPID"
+ *
+ * runs a part of the NJ benchmark, as sbt "bench/jmh:run -prof gc ..." would.
+ */
+public class Benchmarks {
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        new Runner(new OptionsBuilder()
+                   .parent(new CommandLineOptions(args))
+                   .addProfiler(GCProfiler.class)
+                   .build()).run();
+    }
+}
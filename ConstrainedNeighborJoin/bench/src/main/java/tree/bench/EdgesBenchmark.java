@@ -0,0 +1,50 @@
+package tree.bench;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import tree.basics.Edge;
+import tree.basics.Tree;
+import tree.technique.nj.NJ;
+
+/**
+ * Time of Tree.generateEdges on random trees, built straight from their joins so that no
+ * matrix is needed.  The edges of the previous call are cleared inside the measurement,
+ * which costs little next to generating them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EdgesBenchmark {
+
+    @Param({"1000","5000","20000","50000"})
+    public int n;
+
+    private Tree tree;
+
+    @Setup(Level.Trial)
+    public void build() {
+        tree = new NJ(false,NJ.NJAlgorithmType.RAPID).createTree(Matrices.randomTree(n,n));
+    }
+
+    @Benchmark
+    public ArrayList<Edge> generateEdges() {
+        tree.getEdges().clear();
+        tree.generateEdges();
+        return tree.getEdges();
+    }
+}
@@ -0,0 +1,73 @@
+package tree.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import tree.technique.nj.BinaryDistanceMatrix;
+import tree.technique.nj.DistanceMatrixReader;
+import tree.technique.nj.PexMatrix;
+
+/**
+ * Time to load a matrix with DistanceMatrixReader, from a PEx dmat file or from a binary
+ * matrix file.  Files are written to java.io.tmpdir and deleted at the end of the trial.
+ * A 50k dmat file takes more than 10GB, so sizes stop at 20k; more may be given with -p.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class LoadBenchmark {
+
+    @Param({"1000","5000","20000"})
+    public int n;
+
+    @Param({"text","binary"})
+    public String format;
+
+    @Param({"false"})
+    public boolean offHeap;
+
+    @Param({"1"})
+    public int threads;
+
+    private File file;
+
+    @Setup(Level.Trial)
+    public void write() throws IOException {
+        PexMatrix p = Matrices.matrix("near-additive",n,n);
+        file = File.createTempFile("bench",format.equals("text") ? ".dmat" : ".bdmat");
+        if (format.equals("text"))
+            Matrices.writeDmat(p,file.getPath());
+        else
+            BinaryDistanceMatrix.write(p,file.getPath(),false);
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() {
+        file.delete();
+    }
+
+    @Benchmark
+    public PexMatrix load() throws IOException, ParseException {
+        PexMatrix p = DistanceMatrixReader.loadPex(file.getPath(),offHeap,threads);
+        if (offHeap)
+            p.release();
+        return p;
+    }
+}
@@ -0,0 +1,190 @@
+package tree.bench;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Random;
+import tree.technique.nj.FloatPexMatrix;
+import tree.technique.nj.JoinRecorder;
+import tree.technique.nj.PexMatrix;
+
+/**
+ * Synthetic inputs for the benchmarks.
+ *
+ * A random unrooted tree is built by joining random pairs of nodes, with branch lengths
+ * uniform in [0.01,1), until three nodes are left, which are joined into the root.  Its
+ * additive matrix holds the path lengths between the leaves, and NJ recovers the tree from
+ * it.  A near-additive matrix multiplies each distance by a lognormal noise factor, so the
+ * joins are no longer obvious.  Everything is seeded, so every run sees the same inputs.
+ */
+class Matrices {
+
+    static final double NOISE = 0.1;
+
+    /**
+     * Builds a random tree with n leaves, as joins over objects 0 to n-1.
+     */
+    static JoinRecorder randomTree(int n, long seed) {
+        Random random = new Random(seed);
+        JoinRecorder joins = new JoinRecorder(n,null,null);
+
+        int[] active = new int[n];
+        for (int i=0; i<n; i++)
+            active[i] = i;
+
+        int m = n;
+        while (m > 3) {
+            int a = remove(active,m--,random);
+            int b = remove(active,m--,random);
+            active[m++] = joins.join(a,b,length(random),length(random));
+        }
+        if (m == 3)
+            joins.join(active[0],active[1],active[2],length(random),length(random),length(random));
+        else if (m == 2)
+            joins.join(active[0],active[1],length(random),length(random));
+        return joins;
+    }
+
+    private static int remove(int[] active, int m, Random random) {
+        int k = random.nextInt(m);
+        int x = active[k];
+        active[k] = active[m-1];
+        return x;
+    }
+
+    private static double length(Random random) {
+        return 0.01 + 0.99*random.nextDouble();
+    }
+
+    /**
+     * Returns the matrix of path lengths between the leaves of a tree.
+     *
+     * Leaves are laid out so that the leaves under every node are contiguous, and then each
+     * pair of leaves is set once, from the node where their paths meet.
+     */
+    static PexMatrix additive(JoinRecorder joins) {
+        int n = joins.getLeafCount();
+        int size = joins.getSize();
+        int root = joins.getRoot();
+
+        // Children are recorded before their parents, so counts go up and depths go down:
+        int[] count = new int[size];
+        for (int x=0; x<size; x++) {
+            if (x < n)
+                count[x] = 1;
+            for (int k=0; k<joins.getChildCount(x); k++)
+                count[x] += count[joins.getChild(x,k)];
+        }
+
+        double[] depth = new double[size];
+        int[] start = new int[size];
+        int[] order = new int[n];
+        for (int x=root; x>=0; x--) {
+            if (x < n)
+                order[start[x]] = x;
+            int s = start[x];
+            for (int k=0; k<joins.getChildCount(x); k++) {
+                int c = joins.getChild(x,k);
+                depth[c] = depth[x] + joins.getLength(x,k);
+                start[c] = s;
+                s += count[c];
+            }
+        }
+
+        PexMatrix p = new PexMatrix(n);
+        for (int x=n; x<size; x++)
+            for (int k=0; k<joins.getChildCount(x); k++)
+                for (int l=k+1; l<joins.getChildCount(x); l++) {
+                    int a = joins.getChild(x,k), b = joins.getChild(x,l);
+                    for (int i=start[a]; i<start[a]+count[a]; i++)
+                        for (int j=start[b]; j<start[b]+count[b]; j++)
+                            p.setDist(order[i],order[j],depth[order[i]] + depth[order[j]] - 2*depth[x]);
+                }
+        return p;
+    }
+
+    /**
+     * Returns the additive matrix of a tree with every distance multiplied by exp(NOISE*g),
+     * for g normally distributed.
+     */
+    static PexMatrix nearAdditive(JoinRecorder joins, long seed) {
+        Random random = new Random(seed);
+        PexMatrix p = additive(joins);
+        for (int k=0; k<p.M.length; k++)
+            p.M[k] *= Math.exp(NOISE*random.nextGaussian());
+        return p;
+    }
+
+    /**
+     * Returns the matrix for a benchmark input.
+     *
+     * @param kind additive or near-additive
+     */
+    static PexMatrix matrix(String kind, int n, long seed) {
+        JoinRecorder joins = randomTree(n,seed);
+        if (kind.equals("additive"))
+            return additive(joins);
+        else if (kind.equals("near-additive"))
+            return nearAdditive(joins,seed);
+        else
+            throw new IllegalArgumentException("Unknown matrix kind "+kind);
+    }
+
+    /**
+     * Returns a copy of a matrix, for the engines that consume their input.
+     */
+    static PexMatrix copy(PexMatrix p, PexMatrix q) {
+        if (q == null || q.M == null || q.M.length != p.M.length)
+            q = new PexMatrix(p.n);
+        q.n = p.n;
+        System.arraycopy(p.M,0,q.M,0,p.M.length);
+        q.ids = p.ids;
+        q.labels = p.labels;
+        q.classes = p.classes;
+        return q;
+    }
+
+    /**
+     * Returns a copy of a matrix with its distances rounded to floats.
+     */
+    static FloatPexMatrix copyFloat(PexMatrix p, FloatPexMatrix q) {
+        if (q == null || q.F == null || q.F.length != p.M.length)
+            q = new FloatPexMatrix(p.n);
+        q.n = p.n;
+        for (int k=0; k<p.M.length; k++)
+            q.F[k] = (float) p.M[k];
+        q.ids = p.ids;
+        q.labels = p.labels;
+        q.classes = p.classes;
+        return q;
+    }
+
+    /**
+     * Writes a matrix as a PEx dmat file, with distances written as floats.
+     */
+    static void writeDmat(PexMatrix p, String file) throws IOException {
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file),"UTF-8"),1 << 16);
+        try {
+            out.write(p.n+"\n");
+            for (int i=0; i<p.n; i++)
+                out.write((i > 0 ? ";" : "")+"o"+i);
+            out.write("\n");
+            for (int i=0; i<p.n; i++)
+                out.write((i > 0 ? ";" : "")+"0");
+            out.write("\n");
+            for (int i=1; i<p.n; i++) {
+                for (int j=0; j<i; j++) {
+                    if (j > 0)
+                        out.write(";");
+                    out.write(Float.toString((float) p.get(i,j)));
+                }
+                out.write("\n");
+            }
+        }
+        finally {
+            out.close();
+        }
+    }
+}
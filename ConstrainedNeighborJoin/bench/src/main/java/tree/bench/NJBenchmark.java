@@ -0,0 +1,83 @@
+package tree.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import tree.technique.nj.FloatPexMatrix;
+import tree.technique.nj.JoinRecorder;
+import tree.technique.nj.NJ;
+import tree.technique.nj.PexMatrix;
+
+/**
+ * Time to compute the joins of every NJ engine, on synthetic matrices.
+ *
+ * Each run starts from a fresh copy of the matrix, made outside the measurement, since the
+ * engines overwrite it.  Matrices stored as floats, in a FloatPexMatrix, are benchmarked next
+ * to matrices of doubles.  The whole parameter space is slow: ORIGINAL is cubic and a 50k
+ * matrix takes 10GB, twice with its copy.  Select sizes with -p n=... and give large
+ * sizes a heap with -jvmArgsAppend -Xmx24g.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class NJBenchmark {
+
+    @Param({"1000","5000","20000","50000"})
+    public int n;
+
+    @Param({"ORIGINAL","FAST","RAPID","RELAXED"})
+    public NJ.NJAlgorithmType type;
+
+    @Param({"additive","near-additive"})
+    public String matrix;
+
+    @Param({"double","float"})
+    public String precision;
+
+    @Param({"1"})
+    public int threads;
+
+    private PexMatrix input;
+    private PexMatrix p;
+    private FloatPexMatrix f;
+
+    @Setup(Level.Trial)
+    public void generate() {
+        input = Matrices.matrix(matrix,n,n);
+    }
+
+    @Setup(Level.Invocation)
+    public void copy() {
+        if (precision.equals("float"))
+            p = f = Matrices.copyFloat(input,f);
+        else
+            p = Matrices.copy(input,p);
+    }
+
+    @Benchmark
+    public JoinRecorder join() {
+        switch (type) {
+            case ORIGINAL:
+                return NJ.originalNJ(p,threads);
+            case FAST:
+                return NJ.fastNJ(p,threads);
+            case RAPID:
+                return NJ.rapidNJ(p,threads);
+            default:
+                return NJ.relaxedNJ(p,threads);
+        }
+    }
+}
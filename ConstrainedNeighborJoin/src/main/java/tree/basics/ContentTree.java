@@ -9,6 +9,7 @@ public class ContentTree {
     private float[] distChildren;
     private int parent;
     private float cdata;
+    private float support = -1; //support of the clade below the node, -1 if not estimated
     
     /**
      * Constructor of the ContentTree (a node of a tree).
@@ -36,6 +37,7 @@ public class ContentTree {
         System.arraycopy(this.children, 0, t.children, 0, this.children.length);
         System.arraycopy(this.distChildren, 0, t.distChildren, 0, this.distChildren.length);
         t.parent = this.parent;
+        t.support = this.support;
         return t;
     }
 
@@ -188,12 +190,11 @@ public class ContentTree {
                 distChildren = new float[2];
             if (i < distChildren.length)
                 distChildren[i] = d;
-            else { //root node. Temporary code.
-                float[] temp = new float[distChildren.length];
+            else { //root or multifurcating node
+                float[] temp = new float[Math.max(i+1,distChildren.length+1)];
                 System.arraycopy(distChildren,0,temp,0,distChildren.length);
-                distChildren = new float[3];
-                System.arraycopy(temp,0,distChildren,0,temp.length);
-                distChildren[2] = d;
+                distChildren = temp;
+                distChildren[i] = d;
             }
         }
     }
@@ -231,12 +232,13 @@ public class ContentTree {
             }
             if (i < children.length)
                 children[i] = id;
-            else { //root node. Temporary code.
-                int[] temp = new int[children.length];
+            else { //root or multifurcating node
+                int[] temp = new int[Math.max(i+1,children.length+1)];
                 System.arraycopy(children,0,temp,0,children.length);
-                children = new int[3];
-                System.arraycopy(temp,0,children,0,temp.length);
-                children[2] = id;
+                for (int k=children.length;k<temp.length;k++)
+                    temp[k] = -1;
+                children = temp;
+                children[i] = id;
             }
         }
     }
@@ -292,6 +294,27 @@ public class ContentTree {
         cdata = c;
     }
 
+    /**
+     * Returns the support of the clade below the node, as the fraction of bootstrap
+     * replicates holding it (see NJ.bootstrap).
+     *
+     * @return the support of the clade, in [0,1], or -1 if not estimated
+     *
+     */
+    public float getSupport() {
+        return support;
+    }
+
+    /**
+     * Sets the support of the clade below the node
+     *
+     * @param s the support of the clade, in [0,1], or -1 if not estimated
+     *
+     */
+    public void setSupport(float s) {
+        support = s;
+    }
+
     @Override
     public String toString() {
         return id+":("+(valid ? "valid":"non-valid")+")";
@@ -0,0 +1,263 @@
+package tree.basics;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+/**
+ * Newick tree parser
+ *
+ * Reads a tree such as ((A:0.1,B:0.2)E:0.5,C:0.3,D:0.4)F; in a single pass over a Reader, keeping
+ * the nodes opened and not yet closed on an explicit stack, so deep trees are accepted. Nodes may have
+ * any number of children. Labels may be quoted with ', comments in [] are skipped and white space
+ * outside quotes is ignored. Missing branch lengths are taken as 0.
+ *
+ * Nodes get the ids given by their labels, or the hash code of the lower case label if it is not a
+ * number. Unlabelled nodes get new ids, after the largest id found.
+ */
+class NewickParser {
+
+    private final Reader in;
+    private final char[] buffer = new char[1 << 16];
+    private int position = 0, length = 0;
+    private long read = 0; //characters read before the buffer
+    private final StringBuilder token = new StringBuilder();
+
+    //nodes, in preorder
+    private int size = 0;
+    private String[] label = new String[1024];
+    private float[] distance = new float[1024]; //distance to the parent
+    private int[] parent = new int[1024];
+    private int[] firstChild = new int[1024];
+    private int[] lastChild = new int[1024];
+    private int[] nextSibling = new int[1024];
+
+    private NewickParser(Reader in) {
+        this.in = in;
+    }
+
+    /**
+     * Parses a Newick tree and adds its nodes to a tree, children before their parents, so the root is
+     * the last node added.
+     *
+     * @param in the reader, read up to the ; ending the tree
+     * @param tree the tree where nodes are added
+     * @throws IOException if an IO error occurs or the tree is malformed
+     */
+    static void parse(Reader in, Tree tree) throws IOException {
+        NewickParser p = new NewickParser(in);
+        p.parse();
+        p.build(tree);
+    }
+
+    private void parse() throws IOException {
+
+        int[] stack = new int[64]; //internal nodes opened and not yet closed
+        int top = -1;
+        int current = -1; //the node whose label and distance may follow, -1 if there is none yet
+        boolean measured = false; //true if the distance of the current node has been read
+
+        int c;
+        while ((c = next()) != -1 && c != ';') {
+            switch (c) {
+                case '(':
+                    if (current != -1)
+                        throw error("Unexpected '('");
+                    if (++top == stack.length)
+                        stack = Arrays.copyOf(stack,2*stack.length);
+                    stack[top] = add(top > 0 ? stack[top-1] : -1);
+                    break;
+                case ',':
+                    if (top < 0)
+                        throw error("Unexpected ','");
+                    if (current == -1)
+                        add(stack[top]);
+                    current = -1;
+                    measured = false;
+                    break;
+                case ')':
+                    if (top < 0)
+                        throw error("Unexpected ')'");
+                    if (current == -1)
+                        add(stack[top]);
+                    current = stack[top--];
+                    measured = false;
+                    break;
+                case ':':
+                    if (current == -1)
+                        current = add(top >= 0 ? stack[top] : -1);
+                    else if (measured)
+                        throw error("Unexpected ':'");
+                    measured = true;
+                    String d = readToken();
+                    try {
+                        distance[current] = Float.parseFloat(d);
+                    } catch (NumberFormatException e) {
+                        throw error("Malformed branch length ["+d+"]");
+                    }
+                    break;
+                case '[':
+                    while ((c = next()) != ']')
+                        if (c == -1)
+                            throw error("Unclosed comment");
+                    break;
+                default:
+                    if (Character.isWhitespace(c))
+                        break;
+                    String l = c == '\'' ? readQuoted() : readToken((char) c);
+                    if (current == -1)
+                        current = add(top >= 0 ? stack[top] : -1);
+                    else if (label[current] != null || measured)
+                        throw error("Unexpected label ["+l+"]");
+                    label[current] = l;
+            }
+        }
+
+        if (top >= 0)
+            throw error("Unclosed '('");
+        if (size == 0)
+            throw error("Empty tree");
+    }
+
+    /**
+     * Adds a node.
+     *
+     * @param p the parent of the node, -1 for the root
+     * @return the new node
+     */
+    private int add(int p) throws IOException {
+        if (p == -1 && size > 0)
+            throw error("More than one root");
+
+        if (size == label.length) {
+            int n = 2*size;
+            label = Arrays.copyOf(label,n);
+            distance = Arrays.copyOf(distance,n);
+            parent = Arrays.copyOf(parent,n);
+            firstChild = Arrays.copyOf(firstChild,n);
+            lastChild = Arrays.copyOf(lastChild,n);
+            nextSibling = Arrays.copyOf(nextSibling,n);
+        }
+
+        int x = size++;
+        label[x] = null;
+        distance[x] = 0;
+        parent[x] = p;
+        firstChild[x] = lastChild[x] = nextSibling[x] = -1;
+        if (p != -1) {
+            if (firstChild[p] == -1)
+                firstChild[p] = x;
+            else
+                nextSibling[lastChild[p]] = x;
+            lastChild[p] = x;
+        }
+        return x;
+    }
+
+    /**
+     * Adds the nodes to a tree, in reverse preorder.
+     */
+    private void build(Tree tree) {
+
+        int[] id = new int[size];
+        boolean[] labelled = new boolean[size];
+        int maxId = -1;
+        for (int x=0;x<size;x++) {
+            if (label[x] != null && !label[x].isEmpty()) {
+                try {
+                    id[x] = Integer.parseInt(label[x]);
+                } catch (NumberFormatException nfe) {
+                    id[x] = label[x].toLowerCase().hashCode();
+                }
+                labelled[x] = true;
+                if (id[x] > maxId) maxId = id[x];
+            }
+        }
+        for (int x=0;x<size;x++)
+            if (!labelled[x])
+                id[x] = ++maxId;
+
+        //children come after their parents in preorder, so levels are set from the last node
+        int[] level = new int[size];
+        ContentTree[] ct = new ContentTree[size];
+        for (int x=size-1;x>=0;x--) {
+            ct[x] = new ContentTree(id[x]);
+            ct[x].setParent(parent[x] == -1 ? -1 : id[parent[x]]);
+            int k = 0;
+            for (int y=firstChild[x];y!=-1;y=nextSibling[y]) {
+                ct[x].setChildrenId(k,id[y]);
+                ct[x].setDistChildren(k,distance[y]);
+                if (level[y]+1 > level[x]) level[x] = level[y]+1;
+                k++;
+            }
+            if (k > 0) ct[x].setValid(false);
+            ct[x].setLevel(level[x]);
+            tree.addNode(ct[x]);
+        }
+    }
+
+    private int next() throws IOException {
+        if (position == length) {
+            read += length;
+            length = in.read(buffer,0,buffer.length);
+            position = 0;
+            if (length <= 0) {
+                length = 0;
+                return -1;
+            }
+        }
+        return buffer[position++];
+    }
+
+    private void back() {
+        position--;
+    }
+
+    private static boolean delimiter(int c) {
+        return c == '(' || c == ')' || c == ',' || c == ':' || c == ';' || c == '[' || c == -1 || Character.isWhitespace(c);
+    }
+
+    /**
+     * Reads an unquoted label, or a branch length, skipping white space before it.
+     */
+    private String readToken() throws IOException {
+        int c;
+        while ((c = next()) != -1 && Character.isWhitespace(c));
+        if (c == -1)
+            return "";
+        return readToken((char) c);
+    }
+
+    private String readToken(char first) throws IOException {
+        token.setLength(0);
+        int c = first;
+        while (!delimiter(c)) {
+            token.append((char) c);
+            c = next();
+        }
+        if (c != -1)
+            back();
+        return token.toString();
+    }
+
+    private String readQuoted() throws IOException {
+        token.setLength(0);
+        for (;;) {
+            int c = next();
+            if (c == -1)
+                throw error("Unclosed quote");
+            if (c == '\'') {
+                if (next() != '\'') {
+                    back();
+                    break;
+                }
+            }
+            token.append((char) c);
+        }
+        return token.toString();
+    }
+
+    private IOException error(String message) {
+        return new IOException(message+" at character "+(read+position)+" of the Newick tree.");
+    }
+}
@@ -2,6 +2,10 @@ package tree.basics;
 
 import java.io.*;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -15,6 +19,8 @@ public class Tree {
     private String type; //Algorithm used to generate the tree
     private ArrayList<ContentTree> nodes; //list of tree nodes
     private ArrayList<Edge> edges; //list of edge nodes
+    private HashMap<Integer,ContentTree> index = new HashMap<Integer,ContentTree>(); //nodes by id
+    private HashMap<Integer,Integer> shared = new HashMap<Integer,Integer>(); //number of nodes of the ids given to more than one node
 
     public Tree() {
         nodes = new ArrayList<ContentTree>();
@@ -33,13 +39,7 @@ public class Tree {
         BufferedReader in = null;
         try {
             in = new BufferedReader(new java.io.FileReader(newickFile));
-            if (in != null) {
-                Ref r = null;
-                NewickTree nw = new NewickTree(r,in.readLine());
-                convertToTree(nw);
-            }
-        } catch (IOException e) {
-            throw new IOException(e.getMessage());
+            NewickParser.parse(in,this);
         } finally {
             if (in != null) {
                 try {
@@ -52,50 +52,15 @@ public class Tree {
     }
 
     /**
-     * Method used by constructor that builds a tree from a newick format file
-     * 
-     * @param nw 
-     */
-    private void convertToTree(NewickTree nw) {
-        getTree(nw,nw);
-    }
-
-    /**
-     * Recursive Method used by constructor that builds a tree from a newick format file
+     * Constructor of a tree from a newick format reader, read up to the ; ending the tree
      * 
-     * @param nw 
+     * @param newick newick reader
+     * @throws IOException if an IO error occurs or the tree is malformed
      */
-    private ContentTree getTree(NewickTree nw,NewickTree root) {
-
-        if (nw != null) {
-            int id;
-            try {
-                id = Integer.parseInt(nw.name);
-            } catch (NumberFormatException nfe) {
-                id = nw.name.toLowerCase().hashCode();
-            }
-            ContentTree ct = new ContentTree(id);
-            this.nodes.add(0,ct);
-            if (nw.left != null) {
-                ct.setValid(false);
-                ContentTree left = getTree(nw.left,root);
-                left.setParent(ct.getId());
-                ct.setChildrenId(0,left.getId());
-                ct.setDistChildren(0,root.getDistParent(nw.left.name,root));
-                ContentTree right = getTree(nw.right,root);
-                right.setParent(ct.getId());
-                ct.setChildrenId(1,right.getId());
-                ct.setDistChildren(1,root.getDistParent(nw.right.name,root));
-                if (left.getLevel() > right.getLevel())
-                    ct.setLevel(left.getLevel()+1);
-                else
-                    ct.setLevel(right.getLevel()+1);
-            }else {
-                ct.setLevel(0);
-            }
-            return ct;
-        }else return null;
-
+    public Tree(Reader newick) throws IOException {
+        this.nodes = new ArrayList<ContentTree>();
+        edges = new ArrayList<Edge>();
+        NewickParser.parse(newick,this);
     }
 
     @Override
@@ -108,7 +73,7 @@ public class Tree {
         for (int i=0;i<this.nodes.size();i++) {
             ContentTree n = (ContentTree)this.nodes.get(i);
             ContentTree p = n.clone();
-            ntree.nodes.add(p);
+            ntree.addNode(p);
         }
 
         ntree.edges = new ArrayList<Edge>();
@@ -142,10 +107,47 @@ public class Tree {
      */
     public void addNode(ContentTree node) {
         nodes.add(node);
+        index(node);
+    }
+
+    /**
+     * Indexes a node by its id. When many nodes share an id, they are searched on the nodes list.
+     * 
+     * @param node Node added to the nodes list.
+     */
+    private void index(ContentTree node) {
+        Integer id = node.getId();
+        if (shared.containsKey(id))
+            shared.put(id,shared.get(id)+1);
+        else if (index.containsKey(id))
+            shared.put(id,2);
+        else
+            index.put(id,node);
+    }
+
+    /**
+     * Removes a node from the ids index.
+     * 
+     * @param node Node removed from the nodes list.
+     */
+    private void unindex(ContentTree node) {
+        Integer id = node.getId();
+        if (shared.containsKey(id)) {
+            int count = shared.get(id)-1;
+            if (count > 1)
+                shared.put(id,count);
+            else {
+                shared.remove(id);
+                for (int i=0;i<nodes.size();i++)
+                    if (nodes.get(i).getId() == id)
+                        index.put(id,nodes.get(i));
+            }
+        } else
+            index.remove(id);
     }
 
     /**
-     * Returns the tree nodes list
+     * Returns the tree nodes list. The list must not be changed directly, but with addNode and removeNode.
      * 
      * @return the nodes list
      */
@@ -174,9 +176,12 @@ public class Tree {
      * @return true if the node belongs to the tree, false if not.
      */
     public boolean isNode(ContentTree node) {
-        for (int i=0;i<nodes.size();i++)
-            if (nodes.get(i).equals(node)) return true;
-        return false;
+        if (node == null || shared.containsKey(node.getId())) {
+            for (int i=0;i<nodes.size();i++)
+                if (nodes.get(i).equals(node)) return true;
+            return false;
+        }
+        return index.get(node.getId()) == node;
     }
 
     /**
@@ -200,16 +205,19 @@ public class Tree {
     }
 
     /**
-     * Returns a node of the tree, given its id
+     * Returns a node of the tree, given its id. Ids must not be changed while nodes are in the tree.
      * 
      * @param id The id of the node to be returned
      * @return the node that has the given id, null if there is no node with the given id.
+     * If many nodes have the given id, the first of them on the nodes list is returned.
      */
     public ContentTree getNodeById(Integer id) {
-        for (int i=0;i<nodes.size();i++) {
-            if (nodes.get(i).getId() == id) return nodes.get(i);
+        if (shared.containsKey(id)) {
+            for (int i=0;i<nodes.size();i++) {
+                if (nodes.get(i).getId() == id) return nodes.get(i);
+            }
         }
-        return null;
+        return index.get(id);
     }
 
     /**
@@ -218,10 +226,30 @@ public class Tree {
      * @param node Node to be excluded from the nodes list
      */
     public void removeNode(ContentTree node) {
-        nodes.remove(node);
+        if (nodes.remove(node))
+            unindex(node);
         //TODO verify if the node has children, and decide what to do in this case
     }
 
+    /**
+     * Remove many nodes from the tree node list at once, as removeNode does for each of them, in linear time.
+     * 
+     * @param removed Nodes to be excluded from the nodes list
+     */
+    public void removeNodes(Set<ContentTree> removed) {
+        if (removed.isEmpty())
+            return;
+        ArrayList<ContentTree> kept = new ArrayList<ContentTree>(nodes.size());
+        for (int i=0;i<nodes.size();i++)
+            if (!removed.contains(nodes.get(i)))
+                kept.add(nodes.get(i));
+        nodes = kept;
+        index.clear();
+        shared.clear();
+        for (int i=0;i<nodes.size();i++)
+            index(nodes.get(i));
+    }
+
     /**
      * Returns the maximum level of the nodes of the tree. This values corresponds of the root level.
      * 
@@ -279,19 +307,15 @@ public class Tree {
     }
 
     /**
-     * Verifies if there is a edge on the tree connecting two given nodes ids
+     * Returns a key for the edge connecting two given nodes ids, whatever its direction
      * 
      * @param sour the id of the source of the edge
      * @param targ the id of the target of the edge
-     * @return true if there is an edge connecting the source id to the target id, false if not.
+     * @return the key of the edge
      */
-    private boolean existEdge(int sour, int targ) {
-        for (int i=0;i<edges.size();i++) {
-            if (((edges.get(i).getSource()==sour)&&(edges.get(i).getTarget()==targ))||
-                ((edges.get(i).getSource()==targ)&&(edges.get(i).getTarget()==sour)))
-                return true;
-        }
-        return false;
+    private static long edgeKey(int sour, int targ) {
+        int a = Math.min(sour,targ), b = Math.max(sour,targ);
+        return ((long) a << 32) | (b & 0xffffffffL);
     }
 
     /**
@@ -301,6 +325,10 @@ public class Tree {
     public void generateEdges() {
         int sour, targ;
         float dis;
+        //keys of the edges already on the list, in any direction
+        HashSet<Long> existEdge = new HashSet<Long>();
+        for (int i=0;i<edges.size();i++)
+            existEdge.add(edgeKey(edges.get(i).getSource(),edges.get(i).getTarget()));
         //generating the connectivity
         for (int i=0;i<this.getSize();i++) {
             ContentTree son = this.getNode(i);
@@ -315,7 +343,7 @@ public class Tree {
                         dis = parent.getDistChildren(ind);
                     else
                         dis = 1000; //This distance is just a dummy distance, for the layout algorithm procedure, and is not related to any distance.
-                    if (!existEdge(sour,targ)) {
+                    if (existEdge.add(edgeKey(sour,targ))) {
                         edges.add(new Edge(sour, targ, dis));
                     }
                 }
@@ -373,14 +401,12 @@ public class Tree {
         ContentTree lroot = getNode(getSize()-1);
         if (lroot == null) return;
         else {
-            String ret = "<?xml version=\"1.0\" encoding=\"ISO-8859-1\" ?>"+ System.getProperty("line.separator");
-            ret = "<tree>" + System.getProperty("line.separator") + getXMLNode(lroot,-1) + "</tree>";
             if (output != null && !output.isEmpty()) {
                 try{
                     if (!output.endsWith(".xml"))
                         output += ".xml";
                     BufferedWriter bw = new BufferedWriter(new FileWriter(new File(output)));
-                    bw.write(ret);
+                    writeXML(bw);
                     bw.flush();
                     bw.close();
                 } catch(IOException e){
@@ -392,33 +418,160 @@ public class Tree {
     }
 
     /**
-     * Recursive method to return a node attributes
+     * Writes the tree hierarchy in the XML format of saveXML. The tree is walked without recursion
+     * and written as it is walked, so deep trees may be written and no document is built in memory.
      * 
-     * @param ct the node to be returned
+     * @param out the writer, that should be buffered. It is not closed.
+     * @throws IOException if an IO error occurs
+     */
+    public void writeXML(Writer out) throws IOException {
+
+        String ls = System.getProperty("line.separator");
+        out.write("<tree>");
+        out.write(ls);
+
+        //the path from the root to the current node, with the next child of each node on it
+        ContentTree[] path = new ContentTree[16];
+        int[] next = new int[16];
+        int top = -1;
+
+        ContentTree lroot = getNode(getSize()-1);
+        if (writeXMLNode(out,lroot,-1,ls)) {
+            path[++top] = lroot;
+            next[top] = 0;
+        }
+
+        while (top >= 0) {
+            ContentTree ct = path[top];
+            int i = next[top];
+            if (i < ct.getNumChildren()) {
+                next[top]++;
+                ContentTree n = getNodeById(ct.getChildrenId(i));
+                if (n != null) {
+                    if (writeXMLNode(out,n,ct.getDistChildren(i),ls)) {
+                        if (++top == path.length) {
+                            path = Arrays.copyOf(path,2*path.length);
+                            next = Arrays.copyOf(next,2*next.length);
+                        }
+                        path[top] = n;
+                        next[top] = 0;
+                    }
+                } else
+                    System.out.println("Node "+ct.getChildrenId(i)+" do not exist.");
+            } else {
+                out.write("</node>");
+                out.write(ls);
+                top--;
+            }
+        }
+
+        out.write("</tree>");
+    }
+
+    /**
+     * Writes the opening tag of a node, or the whole tag of a leaf.
+     * 
+     * @param ct the node to be written
      * @param distance the distance of this node to its parent, -1 if the node has no parent (root)
-     * @return The string representation of the node
+     * @return true if the node has children, that must be written before closing its tag.
      */
-    private String getXMLNode(ContentTree ct, float distance) {
-        String ret = "";
+    private boolean writeXMLNode(Writer out, ContentTree ct, float distance, String ls) throws IOException {
         if (ct.hasChildren()) {
             if (distance != -1)
-                ret += "<node label=\""+ct.getId()+"\" parentDistance=\""+distance+"\">"+System.getProperty("line.separator");
+                out.write("<node label=\""+ct.getId()+"\" parentDistance=\""+distance+"\">");
             else
-                ret += "<node label=\""+ct.getId()+"\">"+System.getProperty("line.separator");
-            for (int i=0;i<ct.getNumChildren();i++) {
-                ContentTree n = getNodeById(ct.getChildrenId(i));
-                if (n != null)
-                    ret += getXMLNode(n,ct.getDistChildren(i));
-                else
-                    System.out.println("Node "+ct.getChildrenId(i)+" do not exist.");
-            }
-        ret += "</node>"+System.getProperty("line.separator");
+                out.write("<node label=\""+ct.getId()+"\">");
+            out.write(ls);
+            return true;
         }else {
             if (distance != -1)
-                ret += "<leaf label=\""+ct.getId()+"\" parentDistance=\""+distance+"\"/>"+System.getProperty("line.separator");
+                out.write("<leaf label=\""+ct.getId()+"\" parentDistance=\""+distance+"\"/>");
             else
-                ret += "<leaf label=\""+ct.getId()+"\"/>"+System.getProperty("line.separator");
+                out.write("<leaf label=\""+ct.getId()+"\"/>");
+            out.write(ls);
+            return false;
         }
-        return ret;
+    }
+
+    /**
+     * Saves the tree on a Newick file, as in ((1:0.5,2:1.5)5:0.25,3:2.0,4:1.0)6;
+     * Nodes are written by their ids.
+     * 
+     * @param output the Newick file name
+     */
+    public void saveNewick(String output) {
+        if (output != null && !output.isEmpty()) {
+            try{
+                BufferedWriter bw = new BufferedWriter(new FileWriter(new File(output)));
+                writeNewick(bw);
+                bw.flush();
+                bw.close();
+            } catch(IOException e){
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Writes the tree in Newick format, from the root given by getRootId. The tree is walked without
+     * recursion and written as it is walked.
+     * 
+     * @param out the writer, that should be buffered. It is not closed.
+     * @throws IOException if an IO error occurs
+     */
+    public void writeNewick(Writer out) throws IOException {
+
+        ContentTree lroot = getNodeById(getRootId());
+        if (lroot == null) return;
+        if (!lroot.hasChildren()) {
+            out.write(lroot.getId()+";");
+            return;
+        }
+
+        //the path from the root to the current node, with the next child of each node on it,
+        //the number of children already written and the distance to its parent
+        ContentTree[] path = new ContentTree[16];
+        int[] next = new int[16];
+        int[] written = new int[16];
+        float[] distance = new float[16];
+        int top = 0;
+        path[0] = lroot;
+        out.write("(");
+
+        while (top >= 0) {
+            ContentTree ct = path[top];
+            int i = next[top];
+            if (i < ct.getNumChildren()) {
+                next[top]++;
+                ContentTree n = getNodeById(ct.getChildrenId(i));
+                if (n == null) {
+                    System.out.println("Node "+ct.getChildrenId(i)+" do not exist.");
+                    continue;
+                }
+                if (written[top]++ > 0)
+                    out.write(",");
+                if (n.hasChildren()) {
+                    if (++top == path.length) {
+                        path = Arrays.copyOf(path,2*path.length);
+                        next = Arrays.copyOf(next,2*next.length);
+                        written = Arrays.copyOf(written,2*written.length);
+                        distance = Arrays.copyOf(distance,2*distance.length);
+                    }
+                    path[top] = n;
+                    next[top] = 0;
+                    written[top] = 0;
+                    distance[top] = ct.getDistChildren(i);
+                    out.write("(");
+                } else
+                    out.write(n.getId()+":"+ct.getDistChildren(i));
+            } else {
+                out.write(")"+ct.getId());
+                if (top > 0)
+                    out.write(":"+distance[top]);
+                top--;
+            }
+        }
+
+        out.write(";");
     }
 }
\ No newline at end of file
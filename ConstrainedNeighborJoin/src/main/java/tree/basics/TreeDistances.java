@@ -0,0 +1,141 @@
+package tree.basics;
+
+import java.util.HashMap;
+
+/**
+ * Constant-time queries of the lowest common ancestor and the path length of two nodes of a
+ * tree, on an indexed view of the tree (see TreeIndex).
+ *
+ * The tree is walked once in an Euler tour, that lists a node every time the walk reaches it,
+ * 2k-1 entries for k nodes.  The lowest common ancestor of two nodes is the node of lowest
+ * level between their first entries in the tour, found in a sparse table of the minima of
+ * the ranges of 2^b entries, that takes O(k log k) ints.  The distance of every node to the
+ * root is summed from the root down, so the path length between two nodes is the sum of
+ * their distances to the root less twice the distance of their common ancestor.
+ */
+public class TreeDistances {
+
+    private final TreeIndex index;
+    private final double[] depth;   // the distance to the root
+    private final int[] level;      // the number of edges to the root
+    private final int[] first;      // the first entry of every node in the tour
+    private final int[][] table;    // table[b][x] the node of lowest level in the entries [x,x+2^b)
+    private final HashMap<Integer,Integer> objects = new HashMap<Integer,Integer>();
+
+    /**
+     * Indexes the nodes of a tree reachable from its root.
+     *
+     * @param t The tree.
+     */
+    public TreeDistances(Tree t) {
+        index = new TreeIndex(t);
+        int size = index.size;
+        depth = new double[size];
+        level = new int[size];
+        first = new int[size];
+        for (int v=1; v<size; v++) {
+            depth[v] = depth[index.parent[v]] + index.length[v];
+            level[v] = level[index.parent[v]] + 1;
+        }
+        for (int v=0; v<size; v++)
+            if (index.node[v].isValid() && !objects.containsKey(index.node[v].getId()))
+                objects.put(index.node[v].getId(),v);
+
+        int m = Math.max(2*size-1,0);
+        int[] tour = new int[m];
+        if (size > 0) {
+            // A stack of the nodes on the path from the root, with the next child of each:
+            int[] stack = new int[size];
+            int[] next = new int[size];
+            int top = 0, e = 0;
+            stack[top++] = 0;
+            next[0] = index.child[0];
+            tour[e++] = 0;
+            while (top > 0) {
+                int u = stack[top-1];
+                int c = next[u];
+                if (c != -1) {
+                    next[u] = index.sibling[c];
+                    next[c] = index.child[c];
+                    stack[top++] = c;
+                    first[c] = e;
+                    tour[e++] = c;
+                }
+                else if (--top > 0)
+                    tour[e++] = stack[top-1];
+            }
+        }
+
+        int bits = m > 0 ? 32 - Integer.numberOfLeadingZeros(m) : 1;
+        table = new int[bits][];
+        table[0] = tour;
+        for (int b=1; b<bits; b++) {
+            int half = 1 << (b-1);
+            int[] prev = table[b-1];
+            int[] cur = new int[m - (1 << b) + 1];
+            for (int x=0; x<cur.length; x++)
+                cur[x] = lower(prev[x],prev[x+half]);
+            table[b] = cur;
+        }
+    }
+
+    /**
+     * Returns the indexed view the queries are made on.  Nodes are given to the queries by
+     * their numbers in this view.
+     */
+    public TreeIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * Returns the node of the object with an id, or -1 if it is not reachable from the root.
+     */
+    public int indexOf(int id) {
+        Integer v = objects.get(id);
+        return v == null ? -1 : v;
+    }
+
+    /**
+     * Returns the distance from node v to the root.
+     */
+    public double getDepth(int v) {
+        return depth[v];
+    }
+
+    /**
+     * Returns the lowest common ancestor of nodes u and v.
+     */
+    public int lca(int u, int v) {
+        int a = first[u], b = first[v];
+        if (a > b) {
+            int x = a;
+            a = b;
+            b = x;
+        }
+        int k = 31 - Integer.numberOfLeadingZeros(b-a+1);
+        return lower(table[k][a],table[k][b-(1 << k)+1]);
+    }
+
+    /**
+     * Returns the length of the path between nodes u and v.
+     */
+    public double distance(int u, int v) {
+        return depth[u] + depth[v] - 2*depth[lca(u,v)];
+    }
+
+    /**
+     * Returns the length of the path between the objects with ids a and b.
+     *
+     * @throws IllegalArgumentException If an object is not reachable from the root.
+     */
+    public double distanceById(int a, int b) {
+        int u = indexOf(a), v = indexOf(b);
+        if (u == -1 || v == -1)
+            throw new IllegalArgumentException("Object "+(u == -1 ? a : b)+" is not in the tree.");
+        return distance(u,v);
+    }
+
+    private int lower(int u, int v) {
+        return level[u] <= level[v] ? u : v;
+    }
+}
@@ -0,0 +1,77 @@
+package tree.basics;
+
+import java.util.HashSet;
+
+/**
+ * An indexed view of the nodes of a tree reachable from its root (see Tree.getRootId).
+ *
+ * Nodes are numbered level by level from the root, which is node 0, so parents come before
+ * their children, and the links and branch lengths are kept in primitive arrays.  The
+ * children of every node are chained in the order of its children list.  A node reached
+ * more than once, as a child listed twice, is indexed once, where it is first reached.  The
+ * view is taken once, and is not updated when the tree changes.
+ */
+public class TreeIndex {
+
+    public final ContentTree[] node;
+    public final int[] parent;      // -1 for the root
+    public final double[] length;   // the length of the edge to the parent
+    public final int[] child;       // the first child, -1 if none
+    public final int[] sibling;     // the next child of the same parent, -1 if none
+    public int size;
+    public int implicit = -1;       // a node linked to its parent by no child, or -1
+
+    /**
+     * Indexes the nodes of a tree reachable from its root.
+     *
+     * @param t The tree.
+     */
+    public TreeIndex(Tree t) {
+        int max = t.getSize();
+        node = new ContentTree[max];
+        parent = new int[max];
+        length = new double[max];
+        child = new int[max];
+        sibling = new int[max];
+
+        ContentTree root = max > 0 ? t.getNodeById(t.getRootId()) : null;
+        if (root == null)
+            return;
+        HashSet<Integer> reached = new HashSet<Integer>();
+        reached.add(root.getId());
+        add(root,-1,0);
+
+        // The leaf promotion may leave two roots, each the parent of the other, with no
+        // child between them.  The other root is taken as a child at distance 0:
+        ContentTree other = t.getNodeById(root.getParent());
+        if (other != null && other != root && other.getParent() == root.getId() &&
+            root.getChildrenIndex(other.getId()) == -1 && other.getChildrenIndex(root.getId()) == -1) {
+            reached.add(other.getId());
+            implicit = add(other,0,0);
+            child[0] = implicit;
+        }
+
+        for (int u=0; u<size; u++) {
+            ContentTree ct = node[u];
+            // Children are taken from the last one, so the child lists are in order:
+            for (int j=ct.getNumChildren()-1; j>=0; j--) {
+                ContentTree c = t.getNodeById(ct.getChildrenId(j));
+                if (c == null || !reached.add(c.getId()))
+                    continue;
+                int v = add(c,u,ct.getDistChildren(j));
+                sibling[v] = child[u];
+                child[u] = v;
+            }
+        }
+    }
+
+    private int add(ContentTree ct, int u, double l) {
+        int v = size++;
+        node[v] = ct;
+        parent[v] = u;
+        length[v] = l;
+        child[v] = -1;
+        sibling[v] = -1;
+        return v;
+    }
+}
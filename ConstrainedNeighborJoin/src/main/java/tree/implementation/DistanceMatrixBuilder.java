@@ -0,0 +1,347 @@
+package tree.implementation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import tree.interfaces.Matrix;
+import tree.interfaces.Vector;
+import tree.io.DmatParser;
+
+/**
+ * Computes the distances between the rows of a Matrix straight into the lower triangular
+ * storage of a DistanceMatrixImp, or into cells, such as those of a packed matrix reused
+ * from one set of rows to the next (see NJ.bootstrap).
+ *
+ * The triangle is cut in square tiles of rows, small enough for the rows of two tiles to
+ * stay in cache while every pair between them is computed, and the tiles are shared out in
+ * a fork/join pool. Tiles set distinct cells, so no locking is needed. The inner loops run
+ * over four coordinates at a time, with four independent partial sums, so that the JIT can
+ * keep them in registers and overlap them.
+ */
+public class DistanceMatrixBuilder {
+
+    public enum Metric {
+
+        /** The square root of the sum of the squared differences. */
+        EUCLIDEAN,
+        /** One minus the cosine of the angle between the rows. */
+        COSINE,
+        /** The number of coordinates where the rows differ. */
+        HAMMING
+    }
+
+    //the bytes of row data a tile should fit in, and the bounds of its number of rows
+    private static final int TILE_BYTES = 1 << 17;
+    private static final int MIN_TILE = 8;
+    private static final int MAX_TILE = 256;
+
+    private DistanceMatrixBuilder() {
+    }
+
+    /**
+     * Builds the distance matrix of the rows of a matrix, with as many threads as processors.
+     * @param matrix The matrix.
+     * @param metric The distance.
+     * @return The distance matrix, with the ids, labels and classes of the matrix.
+     */
+    public static DistanceMatrixImp build(Matrix matrix, Metric metric) {
+        return build(matrix, metric, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Builds the distance matrix of the rows of a matrix.
+     * @param matrix The matrix, with at least two rows.
+     * @param metric The distance.
+     * @param threads The number of threads computing the distances.
+     * @return The distance matrix, with the ids, labels and classes of the matrix.
+     */
+    public static DistanceMatrixImp build(Matrix matrix, Metric metric, int threads) {
+        int n = matrix.getRowCount();
+        if (n < 2) {
+            throw new IllegalArgumentException("At least two rows are needed to build a distance matrix.");
+        }
+
+        float[][] rows = new float[n][];
+        for (int i = 0; i < n; i++) {
+            rows[i] = matrix.getRow(i).toArray();
+        }
+
+        DistanceMatrixImp dmat = new DistanceMatrixImp(n);
+        fill(rows, metric, Math.max(matrix.getDimensions(), 1), dmat.distmatrix, null, threads);
+
+        for (int i = 0; i < dmat.distmatrix.length; i++) {
+            for (int j = 0; j < dmat.distmatrix[i].length; j++) {
+                float dist = dmat.distmatrix[i][j];
+
+                if (dmat.minDistance > dist && dist >= 0.0f) {
+                    dmat.minDistance = dist;
+                }
+
+                if (dmat.maxDistance < dist && dist >= 0.0f) {
+                    dmat.maxDistance = dist;
+                }
+            }
+        }
+
+        ArrayList<Integer> ids = matrix.getIds();
+        if (ids != null && ids.size() == n) {
+            dmat.ids = new ArrayList<Integer>(ids);
+        }
+        ArrayList<String> labels = matrix.getLabels();
+        if (labels != null && labels.size() == n) {
+            dmat.labels = new ArrayList<String>(labels);
+        }
+        float[] cdata = matrix.getClassData();
+        if (cdata != null && cdata.length == n) {
+            dmat.cdata = Arrays.copyOf(cdata, n);
+        }
+
+        return dmat;
+    }
+
+    /**
+     * Computes the distances between rows into cells: for every j < i the distance between
+     * rows i and j is set in cell (i,j), once, as a DmatParser sets them. The cells of a
+     * PexMatrix may be reused for rows with the same number of objects.
+     * @param rows The rows, at least two.
+     * @param metric The distance.
+     * @param cells The cells, that may be set concurrently when threads > 1.
+     * @param threads The number of threads computing the distances.
+     */
+    public static void build(float[][] rows, Metric metric, DmatParser.Cells cells, int threads) {
+        int n = rows.length;
+        if (n < 2) {
+            throw new IllegalArgumentException("At least two rows are needed to build a distance matrix.");
+        }
+        fill(rows, metric, Math.max(rows[0].length, 1), null, cells, threads);
+    }
+
+    /**
+     * Computes the distances between rows into either the rows of a DistanceMatrixImp or a
+     * set of cells.
+     */
+    private static void fill(float[][] rows, Metric metric, int dimensions, float[][] distmatrix, DmatParser.Cells cells, int threads) {
+        int n = rows.length;
+        float[] norms = null;
+        if (metric == Metric.COSINE) {
+            norms = new float[n];
+            for (int i = 0; i < n; i++) {
+                norms[i] = (float) Math.sqrt(dot(rows[i], rows[i]));
+            }
+        }
+
+        int tile = Math.min(Math.max(TILE_BYTES / (8 * dimensions), MIN_TILE), MAX_TILE);
+        int blocks = (n + tile - 1) / tile;
+
+        //tiles (a,b) with b <= a, so tile (a,b) holds the pairs of rows of blocks a and b
+        Tile[] tiles = new Tile[blocks * (blocks + 1) / 2];
+        int t = 0;
+        for (int a = 0; a < blocks; a++) {
+            for (int b = 0; b <= a; b++) {
+                tiles[t++] = new Tile(rows, norms, distmatrix, cells, metric,
+                        a * tile, Math.min((a + 1) * tile, n), b * tile, Math.min((b + 1) * tile, n));
+            }
+        }
+
+        if (threads > 1 && tiles.length > 1) {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            try {
+                pool.invoke(new Tiles(tiles, 0, tiles.length));
+            } finally {
+                pool.shutdown();
+            }
+        } else {
+            for (Tile tt : tiles) {
+                tt.compute();
+            }
+        }
+    }
+
+    /**
+     * Computes the distance between two rows.
+     * @param metric The distance.
+     * @param a The first row.
+     * @param b The second row.
+     * @return The distance.
+     */
+    public static float distance(Metric metric, Vector a, Vector b) {
+        float[] x = a.toArray();
+        float[] y = b.toArray();
+        switch (metric) {
+            case EUCLIDEAN:
+                return euclidean(x, y);
+            case COSINE:
+                return cosine(dot(x, y), (float) Math.sqrt(dot(x, x)), (float) Math.sqrt(dot(y, y)));
+            default:
+                return hamming(x, y);
+        }
+    }
+
+    private static float euclidean(float[] x, float[] y) {
+        int m = Math.min(x.length, y.length);
+        int k = 0;
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        for (; k + 3 < m; k += 4) {
+            float d0 = x[k] - y[k];
+            float d1 = x[k + 1] - y[k + 1];
+            float d2 = x[k + 2] - y[k + 2];
+            float d3 = x[k + 3] - y[k + 3];
+            s0 += d0 * d0;
+            s1 += d1 * d1;
+            s2 += d2 * d2;
+            s3 += d3 * d3;
+        }
+        for (; k < m; k++) {
+            float d = x[k] - y[k];
+            s0 += d * d;
+        }
+        return (float) Math.sqrt((s0 + s1) + (s2 + s3));
+    }
+
+    private static float dot(float[] x, float[] y) {
+        int m = Math.min(x.length, y.length);
+        int k = 0;
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        for (; k + 3 < m; k += 4) {
+            s0 += x[k] * y[k];
+            s1 += x[k + 1] * y[k + 1];
+            s2 += x[k + 2] * y[k + 2];
+            s3 += x[k + 3] * y[k + 3];
+        }
+        for (; k < m; k++) {
+            s0 += x[k] * y[k];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    private static float cosine(float dot, float normX, float normY) {
+        if (normX == 0.0f || normY == 0.0f) {
+            return normX == normY ? 0.0f : 1.0f;
+        }
+        //rounding may take the cosine slightly past 1
+        return Math.max(1.0f - dot / (normX * normY), 0.0f);
+    }
+
+    private static float hamming(float[] x, float[] y) {
+        int m = Math.min(x.length, y.length);
+        int k = 0;
+        int c0 = 0, c1 = 0, c2 = 0, c3 = 0;
+        for (; k + 3 < m; k += 4) {
+            c0 += x[k] != y[k] ? 1 : 0;
+            c1 += x[k + 1] != y[k + 1] ? 1 : 0;
+            c2 += x[k + 2] != y[k + 2] ? 1 : 0;
+            c3 += x[k + 3] != y[k + 3] ? 1 : 0;
+        }
+        for (; k < m; k++) {
+            c0 += x[k] != y[k] ? 1 : 0;
+        }
+        //rows of different lengths differ on the extra coordinates
+        return (c0 + c1) + (c2 + c3) + Math.abs(x.length - y.length);
+    }
+
+    /**
+     * The pairs of rows [i0,i1) x [j0,j1), with j < i, set in the rows of a distance matrix
+     * or, if there are none, in a set of cells.
+     */
+    private static class Tile {
+
+        private final float[][] rows;
+        private final float[] norms;
+        private final float[][] distmatrix;
+        private final DmatParser.Cells cells;
+        private final Metric metric;
+        private final int i0, i1, j0, j1;
+
+        Tile(float[][] rows, float[] norms, float[][] distmatrix, DmatParser.Cells cells, Metric metric,
+                int i0, int i1, int j0, int j1) {
+            this.rows = rows;
+            this.norms = norms;
+            this.distmatrix = distmatrix;
+            this.cells = cells;
+            this.metric = metric;
+            this.i0 = i0;
+            this.i1 = i1;
+            this.j0 = j0;
+            this.j1 = j1;
+        }
+
+        void compute() {
+            if (distmatrix == null) {
+                computeCells();
+                return;
+            }
+            for (int i = Math.max(i0, 1); i < i1; i++) {
+                float[] x = rows[i];
+                float[] row = distmatrix[i - 1];
+                int end = Math.min(j1, i);
+                switch (metric) {
+                    case EUCLIDEAN:
+                        for (int j = j0; j < end; j++) {
+                            row[j] = euclidean(x, rows[j]);
+                        }
+                        break;
+                    case COSINE:
+                        for (int j = j0; j < end; j++) {
+                            row[j] = cosine(dot(x, rows[j]), norms[i], norms[j]);
+                        }
+                        break;
+                    default:
+                        for (int j = j0; j < end; j++) {
+                            row[j] = hamming(x, rows[j]);
+                        }
+                }
+            }
+        }
+
+        private void computeCells() {
+            for (int i = Math.max(i0, 1); i < i1; i++) {
+                float[] x = rows[i];
+                int end = Math.min(j1, i);
+                switch (metric) {
+                    case EUCLIDEAN:
+                        for (int j = j0; j < end; j++) {
+                            cells.set(i, j, euclidean(x, rows[j]));
+                        }
+                        break;
+                    case COSINE:
+                        for (int j = j0; j < end; j++) {
+                            cells.set(i, j, cosine(dot(x, rows[j]), norms[i], norms[j]));
+                        }
+                        break;
+                    default:
+                        for (int j = j0; j < end; j++) {
+                            cells.set(i, j, hamming(x, rows[j]));
+                        }
+                }
+            }
+        }
+    }
+
+    private static class Tiles extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Tile[] tiles;
+        private final int lo, hi;
+
+        Tiles(Tile[] tiles, int lo, int hi) {
+            this.tiles = tiles;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo <= 1) {
+                if (hi > lo) {
+                    tiles[lo].compute();
+                }
+                return;
+            }
+
+            int mid = (lo + hi) >>> 1;
+            invokeAll(new Tiles(tiles, lo, mid), new Tiles(tiles, mid, hi));
+        }
+    }
+}
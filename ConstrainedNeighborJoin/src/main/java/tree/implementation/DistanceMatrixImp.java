@@ -47,16 +47,17 @@ address = {Washington, DC, USA},
 
 package tree.implementation;
 
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.StringTokenizer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import tree.interfaces.DistanceMatrix;
+import tree.io.DmatParser;
 
 /**
  * This class represents distances between elements. It stores the
@@ -307,18 +308,28 @@ public class DistanceMatrixImp implements DistanceMatrix {
     }
 
     public void load(String filename) throws IOException {
-        BufferedReader in = null;
+        this.load(filename, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Loads a distance matrix file, parsing the distances with many threads.
+     * @param filename The file name.
+     * @param threads The number of threads parsing the distances.
+     * @throws IOException If the file cannot be read or is not properly formatted.
+     */
+    public void load(String filename, int threads) throws IOException {
+        DmatParser in = null;
 
         try {
             ///////////////////////////////////////////////////////////////////
             //getting the header information
-            in = new BufferedReader(new java.io.FileReader(filename));
+            in = new DmatParser(filename);
 
             //getting the number of elements
-            this.nrElements = Integer.parseInt(in.readLine());
+            this.nrElements = Integer.parseInt(in.nextLine());
 
             //getting the elements ids
-            StringTokenizer tUrls = new StringTokenizer(in.readLine(), ";");
+            StringTokenizer tUrls = new StringTokenizer(in.nextLine(), ";");
             this.ids = new ArrayList<Integer>();
             this.labels = new ArrayList<String>();
             while (tUrls.hasMoreTokens()) {
@@ -335,7 +346,7 @@ public class DistanceMatrixImp implements DistanceMatrix {
             }
 
             //getting the class data
-            StringTokenizer tCdata = new StringTokenizer(in.readLine(), ";");
+            StringTokenizer tCdata = new StringTokenizer(in.nextLine(), ";");
             ArrayList<Float> cdata_aux = new ArrayList<Float>();
 
             while (tCdata.hasMoreTokens()) {
@@ -365,23 +376,30 @@ public class DistanceMatrixImp implements DistanceMatrix {
                 this.distmatrix[i] = new float[i + 1];
             }
 
+            //distances are parsed concurrently, the minimum and maximum are found afterwards
+            final float[][] rows = this.distmatrix;
+            try {
+                in.parse(this.nrElements, true, threads, new DmatParser.Cells() {
+                    @Override
+                    public void set(int i, int j, double d) {
+                        rows[i - 1][j] = (float) d;
+                    }
+                });
+            } catch (ParseException e) {
+                throw new IOException("Wrong distance matrix file format.");
+            }
+
             for (int i = 0; i < this.distmatrix.length; i++) {
-                String line = in.readLine();
-
-                if (line != null) {
-                    StringTokenizer tDistance = new StringTokenizer(line, ";");
-
-                    for (int j = 0; j < this.distmatrix[i].length; j++) {
-                        if (tDistance.hasMoreTokens()) {
-                            String token = tDistance.nextToken();
-                            float dist = Float.parseFloat(token.trim());
-                            this.setDistance(i + 1, j, dist);
-                        } else {
-                            throw new IOException("Wrong distance matrix file format.");
-                        }
+                for (int j = 0; j < this.distmatrix[i].length; j++) {
+                    float dist = this.distmatrix[i][j];
+
+                    if (minDistance > dist && dist >= 0.0f) {
+                        minDistance = dist;
+                    }
+
+                    if (maxDistance < dist && dist >= 0.0f) {
+                        maxDistance = dist;
                     }
-                } else {
-                    throw new IOException("Wrong distance matrix file format.");
                 }
             }
 
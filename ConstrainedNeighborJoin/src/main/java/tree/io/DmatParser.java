@@ -0,0 +1,387 @@
+package tree.io;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A parser for the text of PEx dmat files, working on bytes rather than on tokenised
+ * strings.
+ *
+ * The header lines are read one at a time with nextLine(), and are left to the caller.
+ * The distances that follow are read by parse().  The rest of the file is mapped and split
+ * in chunks of bytes, and each chunk is parsed on its own in a fork/join pool.  A first
+ * pass counts the numbers starting in every chunk, so that each chunk knows the cell of
+ * its first number, and a second pass parses them.  Numbers are separated by semicolons
+ * and white space, so rows are only told apart by counting cells: row i has i cells.
+ *
+ * Numbers are converted exactly as Double.parseDouble or Float.parseFloat would do.
+ * Plain decimals whose digits fit in 53 bits and whose exponents are small are converted
+ * with a single exact product or quotient, and anything else is handed to those methods.
+ */
+public class DmatParser {
+
+  /**
+   * Receives the distances parsed.  Distinct cells may be set concurrently.
+   */
+  public interface Cells {
+    /**
+     * Sets Dij for j<i.
+     */
+    void set(int i, int j, double d);
+  }
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  // The smallest chunk of bytes parsed by a thread, and the largest one:
+  private static final int MIN_CHUNK = 1 << 20;
+  private static final int MAX_CHUNK = 1 << 28;
+
+  // The longest number accepted:
+  private static final int MAX_TOKEN = 1 << 10;
+
+  private static final double[] POWERS = {
+    1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+    1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+  };
+
+  private final String file;
+  private final InputStream in;
+  private long position = 0;
+
+  /**
+   * Opens a dmat file.
+   *
+   * @param file The file.
+   * @throws IOException If the file cannot be opened.
+   */
+  public DmatParser(String file) throws IOException {
+    this.file = file;
+    this.in = new BufferedInputStream(new FileInputStream(file));
+  }
+
+  /**
+   * Reads a header line, without its line terminator.
+   *
+   * @return the line, or null at the end of the file.
+   * @throws IOException If an IO error occurs.
+   */
+  public String nextLine() throws IOException {
+    ByteArrayOutputStream line = new ByteArrayOutputStream();
+    int b;
+    while ((b = in.read()) != -1) {
+      position++;
+      if (b == '\n')
+        break;
+      line.write(b);
+    }
+
+    if (b == -1 && line.size() == 0)
+      return null;
+
+    byte[] bytes = line.toByteArray();
+    int length = bytes.length;
+    if (length > 0 && bytes[length-1] == '\r')
+      length--;
+    return new String(bytes,0,length,UTF8);
+  }
+
+  /**
+   * Parses the distances of a n x n matrix, that follow the header lines read, in the order
+   * D10, D20, D21, D30, ..., Dn-1,n-2.  Numbers after the last distance are ignored.
+   *
+   * @param n The matrix dimension.
+   * @param floats True to convert distances as Float.parseFloat does, false to convert
+   * them as Double.parseDouble does.
+   * @param threads The number of threads.
+   * @param cells Receives the distances.
+   * @throws ParseException If there are fewer than n(n-1)/2 numbers or a number is malformed.
+   * @throws IOException If an IO error occurs.
+   */
+  public void parse(int n, boolean floats, int threads, Cells cells) throws IOException, ParseException {
+
+    RandomAccessFile raf = new RandomAccessFile(file,"r");
+    ForkJoinPool pool = threads > 1 ? new ForkJoinPool(threads) : null;
+
+    try {
+      FileChannel channel = raf.getChannel();
+      long end = channel.size();
+      long cellCount = (long) n*(n-1)/2;
+
+      long chunk = (end-position) / (4L*threads) + 1;
+      chunk = Math.min(Math.max(chunk,MIN_CHUNK),MAX_CHUNK);
+      int chunks = (int) ((end-position + chunk-1) / chunk);
+
+      Chunk[] C = new Chunk[chunks];
+      for (int c=0; c<chunks; c++)
+        C[c] = new Chunk(channel,position+c*chunk,Math.min(position+(c+1)*chunk,end),end,floats);
+
+      // Counts the numbers in every chunk:
+      run(pool,C,0,chunks);
+
+      long first = 0;
+      for (int c=0; c<chunks; c++) {
+        C[c].first = first;
+        first += C[c].count;
+      }
+
+      if (first < cellCount)
+        throw new ParseException("Format mismatch in "+file+": "+first+" distances found, "+cellCount+" expected.",
+                                 (int) Math.min(end,Integer.MAX_VALUE));
+
+      // Parses them:
+      for (int c=0; c<chunks; c++) {
+        C[c].cells = cells;
+        C[c].cellCount = cellCount;
+      }
+      run(pool,C,0,chunks);
+
+      for (int c=0; c<chunks; c++)
+        if (C[c].error != null)
+          throw C[c].error;
+    }
+    finally {
+      if (pool != null)
+        pool.shutdown();
+      raf.close();
+    }
+  }
+
+  /**
+   * Closes the file.
+   *
+   * @throws IOException If an IO error occurs.
+   */
+  public void close() throws IOException {
+    in.close();
+  }
+
+  private static void run(ForkJoinPool pool, Chunk[] C, int lo, int hi) throws IOException {
+    if (pool == null) {
+      for (int c=lo; c<hi; c++)
+        C[c].compute();
+    }
+    else
+      pool.invoke(new Chunks(C,lo,hi));
+
+    for (int c=lo; c<hi; c++)
+      if (C[c].io != null)
+        throw C[c].io;
+  }
+
+  private static boolean separator(byte b) {
+    return b == ';' || b == ' ' || b == '\n' || b == '\r' || b == '\t';
+  }
+
+  /**
+   * Converts the number in b[from,to) as Double.parseDouble does, or as Float.parseFloat
+   * does if floats is true.
+   */
+  private static double toDouble(MappedByteBuffer b, int from, int to, boolean floats) {
+
+    int k = from;
+    boolean negative = false;
+    if (b.get(k) == '-' || b.get(k) == '+') {
+      negative = b.get(k) == '-';
+      k++;
+    }
+
+    long m = 0;
+    int digits = 0, exponent = 0;
+    boolean any = false, point = false;
+
+    for ( ; k<to; k++) {
+      byte c = b.get(k);
+      if (c >= '0' && c <= '9') {
+        any = true;
+        if (m != 0 || c != '0')
+          digits++;
+        m = 10*m + (c-'0');
+        if (point)
+          exponent--;
+      }
+      else if (c == '.' && !point)
+        point = true;
+      else
+        break;
+    }
+
+    if (k < to && any && (b.get(k) == 'e' || b.get(k) == 'E')) {
+      k++;
+      boolean negativeExponent = false;
+      if (k < to && (b.get(k) == '-' || b.get(k) == '+')) {
+        negativeExponent = b.get(k) == '-';
+        k++;
+      }
+      int e = 0, start = k;
+      for ( ; k<to && b.get(k) >= '0' && b.get(k) <= '9' && e < 10000; k++)
+        e = 10*e + (b.get(k)-'0');
+      if (k == start)
+        any = false;
+      exponent += negativeExponent ? -e : e;
+    }
+
+    // Exact conversions only, m and the power of 10 must be exact doubles:
+    if (k == to && any && digits <= 18 && m < (1L << 53) && exponent >= -22 && exponent <= 22) {
+      double d = exponent < 0 ? m / POWERS[-exponent] : m * POWERS[exponent];
+      if (negative)
+        d = -d;
+
+      if (!floats)
+        return d;
+
+      // Rounding the double to a float gives the float nearest to the number, unless the
+      // double falls halfway between two floats or the float is not normal:
+      double a = Math.abs(d);
+      long bits = Double.doubleToRawLongBits(d);
+      if (a == 0 || (a >= Float.MIN_NORMAL && a <= Float.MAX_VALUE && (bits & 0x1FFFFFFFL) != 0x10000000L))
+        return (float) d;
+    }
+
+    byte[] bytes = new byte[to-from];
+    for (int i=0; i<bytes.length; i++)
+      bytes[i] = b.get(from+i);
+    String s = new String(bytes,UTF8);
+    return floats ? Float.parseFloat(s) : Double.parseDouble(s);
+  }
+
+  /**
+   * The bytes [start,end) of the file.  A chunk owns the numbers whose first byte is in
+   * it, though they may end after it.
+   */
+  private static class Chunk {
+
+    private final FileChannel channel;
+    private final long start, end, fileEnd;
+    private final boolean floats;
+
+    long count = 0;   // the numbers starting in the chunk
+    long first;       // the cell of the first of them
+    long cellCount;
+    Cells cells;      // null while counting
+
+    IOException io;
+    ParseException error;
+
+    Chunk(FileChannel channel, long start, long end, long fileEnd, boolean floats) {
+      this.channel = channel;
+      this.start = start;
+      this.end = end;
+      this.fileEnd = fileEnd;
+      this.floats = floats;
+    }
+
+    void compute() {
+      try {
+        // Maps the byte before the chunk too, to tell whether the chunk starts in a number:
+        long from = Math.max(start-1,0);
+        long to = Math.min(end+MAX_TOKEN,fileEnd);
+        MappedByteBuffer b = channel.map(FileChannel.MapMode.READ_ONLY,from,to-from);
+        int lo = (int) (start-from), hi = (int) (end-from), limit = (int) (to-from);
+
+        if (cells == null)
+          count(b,lo,hi);
+        else
+          parse(b,lo,hi,limit);
+      }
+      catch (IOException e) {
+        io = e;
+      }
+    }
+
+    private void count(MappedByteBuffer b, int lo, int hi) {
+      boolean inside = lo > 0 && !separator(b.get(lo-1));
+      for (int k=lo; k<hi; k++) {
+        boolean s = separator(b.get(k));
+        if (!s && !inside)
+          count++;
+        inside = !s;
+      }
+    }
+
+    private void parse(MappedByteBuffer b, int lo, int hi, int limit) {
+
+      long cell = first;
+      if (cell >= cellCount || count == 0)
+        return;
+
+      // The row and column of the first cell:
+      int i = (int) ((1 + Math.sqrt(1 + 8.0*cell)) / 2);
+      while ((long) i*(i-1)/2 > cell)
+        i--;
+      while ((long) (i+1)*i/2 <= cell)
+        i++;
+      int j = (int) (cell - (long) i*(i-1)/2);
+
+      int k = lo;
+      if (lo > 0 && !separator(b.get(lo-1)))
+        while (k < hi && !separator(b.get(k)))
+          k++;
+
+      while (k < hi && cell < cellCount) {
+        if (separator(b.get(k))) {
+          k++;
+          continue;
+        }
+
+        int from = k;
+        while (k < limit && !separator(b.get(k)))
+          k++;
+        if (k == limit && start+limit-lo < fileEnd) {
+          error = new ParseException("Number too long in "+(start+from-lo),(int) Math.min(start+from-lo,Integer.MAX_VALUE));
+          return;
+        }
+
+        try {
+          cells.set(i,j,toDouble(b,from,k,floats));
+        }
+        catch (NumberFormatException e) {
+          error = new ParseException("Malformed number at byte "+(start+from-lo)+": "+e.getMessage(),
+                                     (int) Math.min(start+from-lo,Integer.MAX_VALUE));
+          return;
+        }
+
+        cell++;
+        if (++j == i) {
+          i++;
+          j = 0;
+        }
+      }
+    }
+  }
+
+  private static class Chunks extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Chunk[] C;
+    private final int lo, hi;
+
+    Chunks(Chunk[] C, int lo, int hi) {
+      this.C = C;
+      this.lo = lo;
+      this.hi = hi;
+    }
+
+    @Override
+    protected void compute() {
+      if (hi-lo <= 1) {
+        if (hi > lo)
+          C[lo].compute();
+        return;
+      }
+
+      int mid = (lo+hi) >>> 1;
+      invokeAll(new Chunks(C,lo,mid),new Chunks(C,mid,hi));
+    }
+  }
+}
@@ -1,135 +1,248 @@
 package tree.layout;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import tree.basics.Edge;
 import tree.basics.Tree;
 
 /**
  * Creation of a radial layout to the tree. This methods uses the algorithm described in:
- * M. Cuadros, F. V. Paulovich, R. Minghim, and G. P. Telles. 
+ * M. Cuadros, F. V. Paulovich, R. Minghim, and G. P. Telles.
  * Point Placement by Phylogenetic Trees and its Application for Visual Analysis of Document Collections. "
  * In Proceedings of IEEE Symposium on Visual Analytics Science and Technology (VAST.2007), pages 99.106, Sacramento, CA, USA, 2007.
  *
+ * The edges of the tree are indexed once by node position, and the traversals are iterative:
+ * the number of leaves below every node is counted in one pass from the leaves up, and the
+ * nodes are then placed from the root down, the subtrees of large nodes being placed in
+ * parallel, since a node is placed from its parent only.  The coordinates do not depend on
+ * the number of threads.
+ *
  * @author Jose Gustavo de Souza Paiva
  */
 public class RadialLayout {
 
+    //subtrees with fewer nodes are placed by a single thread
+    private static final int GRAIN = 4096;
+
     public float[][] execute(Tree tree) {
-        
-        System.out.println("Radial Layout Procedure: M. Cuadros, F. V. Paulovich, R. Minghim, and G. P. Telles." 
+        return execute(tree, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates the layout, placing the subtrees in parallel.
+     *
+     * @param tree the tree
+     * @param threads the number of threads
+     * @return the coordinates of every node, in the order of the nodes list
+     */
+    public float[][] execute(Tree tree, int threads) {
+
+        System.out.println("Radial Layout Procedure: M. Cuadros, F. V. Paulovich, R. Minghim, and G. P. Telles."
             + " Point Placement by Phylogenetic Trees and its Application for Visual Analysis of Document Collections."
             + " In Proceedings of IEEE Symposium on Visual Analytics Science and Technology (VAST.2007),"
             + "pages 99.106, Sacramento, CA, USA, 2007.");
-        
+
         //initializing the tree
         init(tree);
 
-        for (int i=0;i<nodes.size();i++)
-            nodes.get(i).dist = 1.0f/(1.0f+nodes.get(i).dist);
-
-        //creating the layout
-        postorderTraversal(root);
+        int size = x.length;
+        float[][] projection = new float[size][2];
+        if (root == -1)
+            return projection;
 
-        root.x = 0.0f;
-        root.y = 0.0f;
-        root.w = (float) (2 * Math.PI);
-        root.t = 0;
+        for (int i=0;i<size;i++)
+            dist[i] = 1.0f/(1.0f+dist[i]);
 
-        preorderTraversal(root);
+        //creating the layout
+        postorderTraversal();
 
-        int size = nodes.size();
+        w[root] = (float) (2 * Math.PI);
+        t[root] = 0;
 
-        float[][] projection = new float[size][2];
+        if (threads > 1 && count[root] >= 2*GRAIN) {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            try {
+                pool.invoke(new Placement(root));
+            } finally {
+                pool.shutdown();
+            }
+        } else {
+            preorderTraversal(root);
+        }
 
         for (int i = 0; i < size; i++) {
-            float[] vect = new float[2];
-            vect[0] = nodes.get(i).x;
-            vect[1] = nodes.get(i).y;
-            projection[i] = vect;
+            projection[i][0] = x[i];
+            projection[i][1] = y[i];
         }
 
         return projection;
     }
 
     private void init(Tree tree) {
-        
+
         ArrayList<Edge> edges = tree.getEdges();
         int nrinstances = tree.getSize();
 
-        //creating the nodes
-        nodes = new ArrayList<Node>();
+        //the first node with every id, as edges refer to nodes by id
+        HashMap<Integer,Integer> position = new HashMap<Integer,Integer>();
+        root = -1;
+        int rootId = nrinstances > 0 ? tree.getRootId() : 0;
         for (int i = 0; i < nrinstances; i++) {
             int id = tree.getNode(i).getId();
-            Node node = new Node(id);
-            nodes.add(node);
-            if (tree.getRootId() == id)
-                root = node;
+            if (!position.containsKey(id))
+                position.put(id, i);
+            if (rootId == id)
+                root = i;
         }
 
+        x = new float[nrinstances];
+        y = new float[nrinstances];
+        w = new float[nrinstances];
+        t = new float[nrinstances];
+        l = new float[nrinstances];
+        dist = new float[nrinstances];
+        count = new int[nrinstances];
+        child = new int[nrinstances];
+        int[] last = new int[nrinstances]; //last child
+        sibling = new int[nrinstances];
+        boolean[] linked = new boolean[nrinstances];
+        for (int i = 0; i < nrinstances; i++) {
+            child[i] = -1;
+            sibling[i] = -1;
+        }
+
+        //children are chained in the order of the edges
         for (int i = 0;i < edges.size();i++) {
             Edge edge = edges.get(i);
-            Node parent = getNode(edge.getSource());
-            Node ch = getNode(edge.getTarget());
-            ch.parent = parent;
-            ch.dist = edge.getWeight();
-            parent.children.add(ch);
+            Integer parent = position.get(edge.getSource());
+            Integer ch = position.get(edge.getTarget());
+            if (parent == null || ch == null)
+                throw new IllegalArgumentException("The edge from "+edge.getSource()+" to "+edge.getTarget()+" links a node not in the tree.");
+            if (linked[ch])
+                throw new IllegalStateException("Node "+edge.getTarget()+" is the target of more than one edge.");
+            linked[ch] = true;
+            dist[ch] = edge.getWeight();
+            if (child[parent] == -1)
+                child[parent] = ch;
+            else
+                sibling[last[parent]] = ch;
+            last[parent] = ch;
         }
     }
 
-    private void postorderTraversal(RadialLayout.Node v) {
-        if (v.children.isEmpty()) {
-            v.l = 1;
-        } else {
-            v.l = 0;
-
-            for (RadialLayout.Node w : v.children) {
-                postorderTraversal(w);
-                v.l = v.l + w.l;
+    /**
+     * Counts the leaves and the nodes below every node reachable from the root, visiting
+     * the nodes level by level and adding them up from the last one.
+     */
+    private void postorderTraversal() {
+        int[] order = new int[x.length];
+        int size = 0;
+        order[size++] = root;
+        for (int k = 0; k < size; k++) {
+            for (int c = child[order[k]]; c != -1; c = sibling[c]) {
+                if (size == order.length || c == root)
+                    throw new IllegalStateException("The edges of the tree have a cycle.");
+                order[size++] = c;
             }
         }
-    }
 
-    private void preorderTraversal(RadialLayout.Node v) {
-        if (v != root) {
-            Node u = v.parent;
-            v.x = u.x + v.dist * (float) Math.cos(v.t + v.w / 2);
-            v.y = u.y + v.dist * (float) Math.sin(v.t + v.w / 2);
+        for (int k = size - 1; k >= 0; k--) {
+            int v = order[k];
+            count[v] = 1;
+            if (child[v] == -1) {
+                l[v] = 1;
+            } else {
+                l[v] = 0;
+                for (int c = child[v]; c != -1; c = sibling[c]) {
+                    l[v] = l[v] + l[c];
+                    count[v] += count[c];
+                }
+            }
         }
+    }
 
-        float n = v.t;
-
-        for (RadialLayout.Node w : v.children) {
-            w.w = w.l / root.l * (float) (2 * Math.PI);
-            w.t = n;
-            n = n + w.w;
-            preorderTraversal(w);
+    /**
+     * Places the children of v and every node below them.
+     */
+    private void preorderTraversal(int v) {
+        int[] stack = new int[count[v]];
+        int top = 0;
+        stack[top++] = v;
+        while (top > 0) {
+            int u = stack[--top];
+            place(u);
+            for (int c = child[u]; c != -1; c = sibling[c]) {
+                stack[top++] = c;
+            }
         }
     }
 
-    private Node getNode(int id) {
-        for (int i=0;i<this.nodes.size();i++) {
-            if (this.nodes.get(i).id == id) return this.nodes.get(i);
+    /**
+     * Places the children of v, from the angle and the coordinates of v.
+     */
+    private void place(int v) {
+        float n = t[v];
+
+        for (int c = child[v]; c != -1; c = sibling[c]) {
+            w[c] = l[c] / l[root] * (float) (2 * Math.PI);
+            t[c] = n;
+            n = n + w[c];
+            x[c] = x[v] + dist[c] * (float) Math.cos(t[c] + w[c] / 2);
+            y[c] = y[v] + dist[c] * (float) Math.sin(t[c] + w[c] / 2);
         }
-        return null;
     }
 
-    public class Node {
+    /**
+     * Places the subtrees below a node, forking for the large ones.
+     */
+    private class Placement extends RecursiveAction {
 
-        public Node(int id) {
-            this.id = id;
+        private static final long serialVersionUID = 1L;
+
+        private final int v;
+
+        Placement(int v) {
+            this.v = v;
         }
 
-        public int id;
-        public float x;
-        public float y;
-        public float w;
-        public float t;
-        public float l;
-        public Node parent;
-        public float dist; //distance to parent
-        public ArrayList<Node> children = new ArrayList<Node>();
+        @Override
+        protected void compute() {
+            if (count[v] < 2*GRAIN) {
+                preorderTraversal(v);
+                return;
+            }
+
+            place(v);
+            ArrayList<Placement> tasks = new ArrayList<Placement>();
+            for (int c = child[v]; c != -1; c = sibling[c]) {
+                if (count[c] >= GRAIN) {
+                    Placement task = new Placement(c);
+                    task.fork();
+                    tasks.add(task);
+                }
+            }
+            for (int c = child[v]; c != -1; c = sibling[c]) {
+                if (count[c] < GRAIN) {
+                    preorderTraversal(c);
+                }
+            }
+            for (Placement task : tasks) {
+                task.join();
+            }
+        }
     }
 
-    private ArrayList<Node> nodes;
-    private RadialLayout.Node root;
+    //the layout of every node, by position in the nodes list
+    private float[] x;
+    private float[] y;
+    private float[] w;
+    private float[] t;
+    private float[] l;
+    private float[] dist; //distance to parent
+    private int[] count; //nodes below, the node included
+    private int[] child; //first child, -1 if none
+    private int[] sibling; //next child of the same parent, -1 if none
+    private int root;
 }
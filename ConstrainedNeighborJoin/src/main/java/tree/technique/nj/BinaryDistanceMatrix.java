@@ -0,0 +1,380 @@
+package tree.technique.nj;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+
+/**
+ * A binary format for PEx distance matrices, loaded without parsing.  For a n x n matrix
+ * the file format is as follows, with every number in little-endian byte order.
+ *
+ *  the 4 bytes PEXB
+ *  the format version, an int, currently 1
+ *  n, an int
+ *  the size of each distance in bytes, an int, 4 for floats or 8 for doubles
+ *  the number of ids, an int, followed by the ids as ints
+ *  the number of labels, an int, followed by each label as an int length and that many
+ *  UTF-8 bytes
+ *  the number of classes, an int, followed by the classes as floats
+ *  zeros up to a multiple of 8 bytes
+ *  M[1][0], M[2][0], M[2][1], M[3][0], ..., M[n-1][n-2]
+ *
+ * that is, the packed lower triangular matrix laid out as in PexMatrix.  A count of -1
+ * stands for a missing array and a length of -1 for a missing label; any other count is n.
+ *
+ * Since the distances are laid out as in memory, a matrix may be mapped from its file
+ * into a MappedPexMatrix, or copied into a PexMatrix with bulk reads.
+ */
+public class BinaryDistanceMatrix {
+
+  private static final byte[] MAGIC = {'P','E','X','B'};
+  private static final int VERSION = 1;
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  // The number of distances written or copied at a time:
+  private static final int CHUNK = 1 << 16;
+
+  /**
+   * Tells whether a file starts as a binary matrix file.
+   *
+   * @param file The file.
+   * @return true if the file starts with PEXB.
+   * @throws IOException If an IO error occurs.
+   */
+  public static boolean isBinary(String file) throws IOException {
+    byte[] b = new byte[MAGIC.length];
+    InputStream in = new FileInputStream(file);
+    try {
+      int k = 0;
+      while (k < b.length) {
+        int r = in.read(b,k,b.length-k);
+        if (r == -1)
+          return false;
+        k += r;
+      }
+    }
+    finally {
+      in.close();
+    }
+
+    for (int i=0; i<b.length; i++)
+      if (b[i] != MAGIC[i])
+        return false;
+    return true;
+  }
+
+  /**
+   * Converts a PEx distance matrix text file into a binary matrix file.
+   *
+   * @param textFile The PEx dmat file.
+   * @param binaryFile The binary file to be written.
+   * @param floats True to store distances as floats, false for doubles.
+   * @throws ParseException If the text file is not properly formatted.
+   * @throws IOException If an IO error occurs.
+   */
+  public static void convert(String textFile, String binaryFile, boolean floats) throws IOException, ParseException {
+    PexMatrix p = DistanceMatrixReader.loadPex(textFile);
+    write(p,binaryFile,floats);
+    p.release();
+  }
+
+  /**
+   * Writes a matrix to a binary matrix file.
+   *
+   * @param p The matrix.
+   * @param file The file.
+   * @param floats True to store distances as floats, false for doubles.
+   * @throws IOException If an IO error occurs.
+   * @throws IllegalArgumentException If the ids, labels or classes are not n.
+   */
+  public static void write(PexMatrix p, String file, boolean floats) throws IOException {
+
+    if ((p.ids != null && p.ids.length != p.n) || (p.labels != null && p.labels.length != p.n) ||
+        (p.classes != null && p.classes.length != p.n))
+      throw new IllegalArgumentException("The ids, labels and classes of the matrix must be "+p.n+".");
+
+    byte[][] labels = null;
+    int size = 7*4 + (p.ids == null ? 0 : 4*p.ids.length) + (p.classes == null ? 0 : 4*p.classes.length);
+    if (p.labels != null) {
+      labels = new byte[p.labels.length][];
+      for (int i=0; i<labels.length; i++) {
+        labels[i] = p.labels[i] == null ? null : p.labels[i].getBytes(UTF8);
+        size += 4 + (labels[i] == null ? 0 : labels[i].length);
+      }
+    }
+    size = (size + 7) & ~7;
+
+    ByteBuffer header = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    header.put(MAGIC);
+    header.putInt(VERSION);
+    header.putInt(p.n);
+    header.putInt(floats ? 4 : 8);
+
+    header.putInt(p.ids == null ? -1 : p.ids.length);
+    if (p.ids != null)
+      for (int i=0; i<p.ids.length; i++)
+        header.putInt(p.ids[i]);
+
+    header.putInt(labels == null ? -1 : labels.length);
+    if (labels != null)
+      for (int i=0; i<labels.length; i++) {
+        header.putInt(labels[i] == null ? -1 : labels[i].length);
+        if (labels[i] != null)
+          header.put(labels[i]);
+      }
+
+    header.putInt(p.classes == null ? -1 : p.classes.length);
+    if (p.classes != null)
+      for (int i=0; i<p.classes.length; i++)
+        header.putFloat(p.classes[i]);
+
+    header.position(0);
+
+    RandomAccessFile raf = new RandomAccessFile(file,"rw");
+    try {
+      raf.setLength(0);
+      FileChannel channel = raf.getChannel();
+      while (header.hasRemaining())
+        channel.write(header);
+
+      ByteBuffer data = ByteBuffer.allocate(CHUNK*8).order(ByteOrder.LITTLE_ENDIAN);
+      for (int i=1; i<p.n; i++)
+        for (int j=0; j<i; j++) {
+          if (floats)
+            data.putFloat((float) p.get(i,j));
+          else
+            data.putDouble(p.get(i,j));
+
+          if (!data.hasRemaining())
+            flush(channel,data);
+        }
+      flush(channel,data);
+    }
+    finally {
+      raf.close();
+    }
+  }
+
+  private static void flush(FileChannel channel, ByteBuffer data) throws IOException {
+    data.flip();
+    while (data.hasRemaining())
+      channel.write(data);
+    data.clear();
+  }
+
+  /**
+   * Loads a binary matrix file.
+   *
+   * @param file The file.
+   * @param offHeap True to copy the distances from the file into a MappedPexMatrix, false
+   * to copy them into a PexMatrix.
+   * @return a PexMatrix record.
+   * @throws ParseException If file is not properly formatted.
+   * @throws IOException If an IO error occurs.
+   */
+  public static PexMatrix load(String file, boolean offHeap) throws IOException, ParseException {
+    return load(file,offHeap,false);
+  }
+
+  /**
+   * Loads a binary matrix file, as load(String,boolean), optionally copying the distances
+   * into a FloatPexMatrix.  Distances kept off the heap are kept as stored.
+   *
+   * @param file The file.
+   * @param offHeap True to copy the distances from the file into a MappedPexMatrix.
+   * @param floats True to copy the distances into a FloatPexMatrix when they are not
+   * mapped.
+   * @return a PexMatrix record.
+   * @throws ParseException If file is not properly formatted.
+   * @throws IOException If an IO error occurs.
+   */
+  public static PexMatrix load(String file, boolean offHeap, boolean floats) throws IOException, ParseException {
+
+    RandomAccessFile raf = new RandomAccessFile(file,"r");
+    try {
+      FileChannel channel = raf.getChannel();
+      long length = channel.size();
+      MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY,0,Math.min(length,Integer.MAX_VALUE));
+      header.order(ByteOrder.LITTLE_ENDIAN);
+
+      int n, width;
+      int[] ids = null;
+      String[] labels = null;
+      float[] classes = null;
+
+      try {
+        for (int i=0; i<MAGIC.length; i++)
+          if (header.get() != MAGIC[i])
+            throw new ParseException("Not a binary matrix file: "+file,i);
+        if (header.getInt() != VERSION)
+          throw new ParseException("Unknown binary matrix version in "+file,4);
+
+        n = header.getInt();
+        width = header.getInt();
+        if (n < 0 || (width != 4 && width != 8))
+          throw new ParseException("Format mismatch in "+file,8);
+
+        int count = count(header,n,file);
+        if (count >= 0) {
+          ids = new int[count];
+          for (int i=0; i<count; i++)
+            ids[i] = header.getInt();
+        }
+
+        count = count(header,n,file);
+        if (count >= 0) {
+          labels = new String[count];
+          for (int i=0; i<count; i++) {
+            int k = header.getInt();
+            if (k >= 0) {
+              byte[] b = new byte[k];
+              header.get(b);
+              labels[i] = new String(b,UTF8);
+            }
+          }
+        }
+
+        count = count(header,n,file);
+        if (count >= 0) {
+          classes = new float[count];
+          for (int i=0; i<count; i++)
+            classes[i] = header.getFloat();
+        }
+      }
+      catch (BufferUnderflowException e) {
+        throw new ParseException("Format mismatch in "+file,0);
+      }
+      catch (NegativeArraySizeException e) {
+        throw new ParseException("Format mismatch in "+file,0);
+      }
+
+      long start = (header.position() + 7) & ~7;
+      long size = (long) n*(n-1)/2;
+      if (length < start + size*width)
+        throw new ParseException("Truncated matrix in "+file,(int) Math.min(length,Integer.MAX_VALUE));
+
+      PexMatrix D;
+      if (offHeap)
+        D = new MappedPexMatrix(n,new File(file),start,width == 4,ByteOrder.LITTLE_ENDIAN);
+      else {
+        float[][] F = null;
+        double[][] M = null;
+        if (floats) {
+          D = new FloatPexMatrix(n);
+          F = ((FloatPexMatrix) D).F;
+        }
+        else {
+          D = new PexMatrix(n);
+          M = D.M;
+        }
+
+        // Read through one direct buffer, rather than mapping the file piece by piece:
+        ByteBuffer data = ByteBuffer.allocateDirect(CHUNK*8).order(ByteOrder.LITTLE_ENDIAN);
+        for (long k=0; k<size; k+=CHUNK) {
+          int m = (int) Math.min(CHUNK,size-k);
+          data.clear();
+          data.limit(m*width);
+          long at = start+k*width;
+          while (data.hasRemaining()) {
+            int r = channel.read(data,at);
+            if (r == -1)
+              throw new ParseException("Truncated matrix in "+file,(int) Math.min(at,Integer.MAX_VALUE));
+            at += r;
+          }
+          data.flip();
+
+          // Chunks start at multiples of CHUNK, so every chunk is within a segment:
+          int s = (int) (k >>> PexMatrix.SHIFT), o = (int) k & PexMatrix.MASK;
+          if (F != null && width == 4)
+            data.asFloatBuffer().get(F[s],o,m);
+          else if (F != null)
+            for (int i=0; i<m; i++)
+              F[s][o+i] = (float) data.getDouble(i << 3);
+          else if (width == 8)
+            data.asDoubleBuffer().get(M[s],o,m);
+          else
+            for (int i=0; i<m; i++)
+              M[s][o+i] = data.getFloat(i << 2);
+        }
+      }
+
+      D.ids = ids;
+      D.labels = labels;
+      D.classes = classes;
+      return D;
+    }
+    finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * Reads the count of an array of the header, that must be -1 or n.
+   */
+  private static int count(ByteBuffer header, int n, String file) throws ParseException {
+    int count = header.getInt();
+    if (count != -1 && count != n)
+      throw new ParseException("Format mismatch in "+file+": an array of "+count+" entries for "+n+" objects",
+                               header.position()-4);
+    return count;
+  }
+
+  /**
+   * Reads the dimension of the matrix in a binary matrix file, from its header only.
+   *
+   * @param file The file.
+   * @return n.
+   * @throws ParseException If file is not a binary matrix file.
+   * @throws IOException If an IO error occurs.
+   */
+  public static int size(String file) throws IOException, ParseException {
+    ByteBuffer header = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+    RandomAccessFile raf = new RandomAccessFile(file,"r");
+    try {
+      FileChannel channel = raf.getChannel();
+      while (header.hasRemaining())
+        if (channel.read(header) == -1)
+          throw new ParseException("Format mismatch in "+file,header.position());
+    }
+    finally {
+      raf.close();
+    }
+
+    for (int i=0; i<MAGIC.length; i++)
+      if (header.get(i) != MAGIC[i])
+        throw new ParseException("Not a binary matrix file: "+file,i);
+    if (header.getInt(4) != VERSION)
+      throw new ParseException("Unknown binary matrix version in "+file,4);
+
+    int n = header.getInt(8);
+    if (n < 0)
+      throw new ParseException("Format mismatch in "+file,8);
+    return n;
+  }
+
+  /**
+   * Converts a PEx dmat file into a binary matrix file.
+   *
+   * Usage: BinaryDistanceMatrix input.dmat output.bdmat [-float]
+   */
+  public static void main(String[] args) throws IOException, ParseException {
+
+    if (args.length < 2 || (args.length == 3 && !args[2].equals("-float")) || args.length > 3) {
+      System.err.println("Usage: BinaryDistanceMatrix input.dmat output.bdmat [-float]");
+      System.exit(1);
+    }
+
+    long t = System.currentTimeMillis();
+    convert(args[0],args[1],args.length == 3);
+    System.out.println("Converted "+args[0]+" in "+((System.currentTimeMillis()-t)/1000.0f)+" seconds.");
+  }
+}
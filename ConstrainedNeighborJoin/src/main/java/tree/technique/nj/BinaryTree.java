@@ -0,0 +1,476 @@
+package tree.technique.nj;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import tree.basics.ContentTree;
+import tree.basics.Tree;
+
+/**
+ * A binary format for trees, loaded without parsing.  For a tree of k nodes, with c child
+ * slots in all, the file format is as follows, with every number in little-endian byte
+ * order.
+ *
+ *  the 4 bytes PEXT
+ *  the format version, an int, currently 1
+ *  k, an int
+ *  c, an int
+ *  the number of label bytes, an int, or -1 if there are no labels
+ *  the tree type, as an int length, -1 for none, and that many UTF-8 bytes
+ *
+ * followed by the arrays below, each starting at a multiple of 8 bytes, the nodes being
+ * given in the order of the nodes list:
+ *
+ *  the ids, k ints
+ *  the parents, k ints, by position in the nodes list, -1 for none or a node not in the tree
+ *  the branch lengths to the parents, k floats, 0 if the parent does not hold the node
+ *  the levels, k ints
+ *  the classes, k floats
+ *  the supports, k floats
+ *  the validity, k bytes, 1 for valid nodes
+ *  the first child slot of every node, k+1 ints, the last one being c
+ *  the children, c ints, by position in the nodes list, -1 for an empty slot or a node not
+ *  in the tree
+ *  the branch lengths to the children, c floats
+ *  if there are labels, the first label byte of every node, k+1 ints, followed by the
+ *  labels in UTF-8, an empty label standing for none
+ *
+ * Since every array is laid out as a Java array, a file may be mapped and read in place
+ * (see View), or turned back into a Tree with bulk reads.
+ */
+public class BinaryTree {
+
+  private static final byte[] MAGIC = {'P','E','X','T'};
+  private static final int VERSION = 1;
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /**
+   * A binary tree file mapped in memory.  Nodes are given by position in the nodes list of
+   * the tree written.
+   */
+  public static class View {
+
+    private final int k, c;
+    private final String type;
+    private final IntBuffer ids, parents, levels, start, children, labelStart;
+    private final FloatBuffer lengths, classes, supports, childLengths;
+    private final ByteBuffer valid, labels;
+
+    private View(int k, int c, String type, IntBuffer ids, IntBuffer parents, FloatBuffer lengths, IntBuffer levels,
+                 FloatBuffer classes, FloatBuffer supports, ByteBuffer valid, IntBuffer start, IntBuffer children,
+                 FloatBuffer childLengths, IntBuffer labelStart, ByteBuffer labels) {
+      this.k = k;
+      this.c = c;
+      this.type = type;
+      this.ids = ids;
+      this.parents = parents;
+      this.lengths = lengths;
+      this.levels = levels;
+      this.classes = classes;
+      this.supports = supports;
+      this.valid = valid;
+      this.start = start;
+      this.children = children;
+      this.childLengths = childLengths;
+      this.labelStart = labelStart;
+      this.labels = labels;
+    }
+
+    /**
+     * Returns the number of nodes.
+     */
+    public int getSize() {
+      return k;
+    }
+
+    /**
+     * Returns the tree type, or null.
+     */
+    public String getType() {
+      return type;
+    }
+
+    public int getId(int i) {
+      return ids.get(i);
+    }
+
+    /**
+     * Returns the position of the parent of node i, or -1 if it has none.
+     */
+    public int getParent(int i) {
+      return parents.get(i);
+    }
+
+    /**
+     * Returns the branch length from node i to its parent.
+     */
+    public float getLength(int i) {
+      return lengths.get(i);
+    }
+
+    public int getLevel(int i) {
+      return levels.get(i);
+    }
+
+    public float getKlass(int i) {
+      return classes.get(i);
+    }
+
+    public float getSupport(int i) {
+      return supports.get(i);
+    }
+
+    public boolean isValid(int i) {
+      return valid.get(i) != 0;
+    }
+
+    /**
+     * Returns the number of child slots of node i, empty ones included.
+     */
+    public int getChildCount(int i) {
+      return start.get(i+1) - start.get(i);
+    }
+
+    /**
+     * Returns the position of the child in slot s of node i, or -1 for an empty slot.
+     */
+    public int getChild(int i, int s) {
+      return children.get(start.get(i)+s);
+    }
+
+    /**
+     * Returns the branch length from node i to the child in slot s.
+     */
+    public float getChildLength(int i, int s) {
+      return childLengths.get(start.get(i)+s);
+    }
+
+    /**
+     * Returns the label of node i, or null if it has none.
+     */
+    public String getLabel(int i) {
+      if (labelStart == null)
+        return null;
+      int a = labelStart.get(i), b = labelStart.get(i+1);
+      if (a == b)
+        return null;
+      byte[] bytes = new byte[b-a];
+      ByteBuffer l = labels.duplicate();
+      l.position(a);
+      l.get(bytes);
+      return new String(bytes,UTF8);
+    }
+
+    /**
+     * Builds the tree, with its edges generated again from the parents.
+     */
+    public Tree toTree() {
+      int[] id = read(ids,k), parent = read(parents,k), level = read(levels,k);
+      int[] first = read(start,k+1), child = read(children,c);
+      float[] klass = read(classes,k), support = read(supports,k), length = read(childLengths,c);
+      byte[] v = new byte[k];
+      valid.duplicate().get(v);
+
+      Tree t = new Tree();
+      t.setType(type);
+      for (int i=0; i<k; i++) {
+        ContentTree ct = new ContentTree(id[i]);
+        ct.setValid(v[i] != 0);
+        ct.setLevel(level[i]);
+        ct.setKlass(klass[i]);
+        ct.setSupport(support[i]);
+        ct.setParent(parent[i] == -1 ? -1 : id[parent[i]]);
+        for (int s=first[i]; s<first[i+1]; s++) {
+          ct.setChildrenId(s-first[i],child[s] == -1 ? -1 : id[child[s]]);
+          ct.setDistChildren(s-first[i],length[s]);
+        }
+        t.addNode(ct);
+      }
+      t.generateEdges();
+      return t;
+    }
+  }
+
+  private static int[] read(IntBuffer b, int n) {
+    int[] a = new int[n];
+    b.duplicate().get(a);
+    return a;
+  }
+
+  private static float[] read(FloatBuffer b, int n) {
+    float[] a = new float[n];
+    b.duplicate().get(a);
+    return a;
+  }
+
+  /**
+   * Tells whether a file starts as a binary tree file.
+   *
+   * @param file The file.
+   * @return true if the file starts with PEXT.
+   * @throws IOException If an IO error occurs.
+   */
+  public static boolean isBinary(String file) throws IOException {
+    byte[] b = new byte[MAGIC.length];
+    InputStream in = new FileInputStream(file);
+    try {
+      int k = 0;
+      while (k < b.length) {
+        int r = in.read(b,k,b.length-k);
+        if (r == -1)
+          return false;
+        k += r;
+      }
+    }
+    finally {
+      in.close();
+    }
+
+    for (int i=0; i<b.length; i++)
+      if (b[i] != MAGIC[i])
+        return false;
+    return true;
+  }
+
+  /**
+   * Writes a tree to a binary tree file, with no labels.
+   *
+   * @param t The tree.
+   * @param file The file.
+   * @throws IOException If an IO error occurs.
+   */
+  public static void write(Tree t, String file) throws IOException {
+    write(t,file,null,null);
+  }
+
+  /**
+   * Writes a tree to a binary tree file, labelling its valid nodes.
+   *
+   * @param t The tree.
+   * @param file The file.
+   * @param ids The ids of the objects labelled, or null for ids 0 to labels.length-1, as
+   * in a PexMatrix.
+   * @param labels The labels of the objects, or null for no labels.
+   * @throws IOException If an IO error occurs.
+   */
+  public static void write(Tree t, String file, int[] ids, String[] labels) throws IOException {
+
+    int k = t.getSize();
+    IdentityHashMap<ContentTree,Integer> position = new IdentityHashMap<ContentTree,Integer>();
+    for (int i=0; i<k; i++)
+      position.put(t.getNode(i),i);
+
+    HashMap<Integer,String> label = null;
+    if (labels != null) {
+      label = new HashMap<Integer,String>();
+      for (int i=0; i<labels.length; i++)
+        label.put(ids == null ? i : ids[i],labels[i]);
+    }
+
+    // The child slots of every node, up to its last child:
+    int[] start = new int[k+1];
+    for (int i=0; i<k; i++)
+      start[i+1] = start[i] + slots(t.getNode(i));
+    int c = start[k];
+
+    ByteBuffer idsB = section(4L*k), parentsB = section(4L*k), lengthsB = section(4L*k);
+    ByteBuffer levelsB = section(4L*k), classesB = section(4L*k), supportsB = section(4L*k);
+    ByteBuffer validB = section(k), startB = section(4L*(k+1));
+    ByteBuffer childrenB = section(4L*c), childLengthsB = section(4L*c);
+
+    byte[][] bytes = label == null ? null : new byte[k][];
+    long total = 0;
+    for (int i=0; i<k; i++) {
+      ContentTree ct = t.getNode(i);
+      idsB.putInt(ct.getId());
+      ContentTree parent = ct.getParent() == -1 ? null : t.getNodeById(ct.getParent());
+      parentsB.putInt(parent == null ? -1 : position.get(parent));
+      int s = parent == null ? -1 : parent.getChildrenIndex(ct.getId());
+      lengthsB.putFloat(s == -1 ? 0 : parent.getDistChildren(s));
+      levelsB.putInt(ct.getLevel());
+      classesB.putFloat(ct.getKlass());
+      supportsB.putFloat(ct.getSupport());
+      validB.put((byte) (ct.isValid() ? 1 : 0));
+      startB.putInt(start[i]);
+      for (int j=0; j<start[i+1]-start[i]; j++) {
+        ContentTree x = ct.getChildrenId(j) == -1 ? null : t.getNodeById(ct.getChildrenId(j));
+        childrenB.putInt(x == null ? -1 : position.get(x));
+        childLengthsB.putFloat(ct.getDistChildren(j));
+      }
+      if (bytes != null) {
+        String l = ct.isValid() ? label.get(ct.getId()) : null;
+        bytes[i] = l == null ? new byte[0] : l.getBytes(UTF8);
+        total += bytes[i].length;
+      }
+    }
+    startB.putInt(c);
+    if (total > Integer.MAX_VALUE-8)
+      throw new IOException("The labels of the tree take more than 2GB.");
+
+    ByteBuffer labelStartB = null, labelsB = null;
+    if (bytes != null) {
+      labelStartB = section(4L*(k+1));
+      labelsB = section(total);
+      int a = 0;
+      for (int i=0; i<k; i++) {
+        labelStartB.putInt(a);
+        labelsB.put(bytes[i]);
+        a += bytes[i].length;
+      }
+      labelStartB.putInt(a);
+    }
+
+    byte[] type = t.getType() == null ? null : t.getType().getBytes(UTF8);
+    ByteBuffer header = section(6*4 + (type == null ? 0 : type.length));
+    header.put(MAGIC);
+    header.putInt(VERSION);
+    header.putInt(k);
+    header.putInt(c);
+    header.putInt(bytes == null ? -1 : (int) total);
+    header.putInt(type == null ? -1 : type.length);
+    if (type != null)
+      header.put(type);
+
+    RandomAccessFile raf = new RandomAccessFile(file,"rw");
+    try {
+      raf.setLength(0);
+      FileChannel channel = raf.getChannel();
+      for (ByteBuffer b : new ByteBuffer[] {header,idsB,parentsB,lengthsB,levelsB,classesB,supportsB,validB,
+                                            startB,childrenB,childLengthsB,labelStartB,labelsB}) {
+        if (b == null)
+          continue;
+        b.position(0);
+        while (b.hasRemaining())
+          channel.write(b);
+      }
+    }
+    finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * Returns the number of child slots of a node, up to its last child.
+   */
+  private static int slots(ContentTree ct) {
+    int left = ct.getNumChildren();
+    int s = 0;
+    while (left > 0)
+      if (ct.getChildrenId(s++) != -1)
+        left--;
+    return s;
+  }
+
+  /**
+   * Returns a buffer for an array of the given bytes, padded to a multiple of 8 bytes.
+   */
+  private static ByteBuffer section(long bytes) throws IOException {
+    long size = (bytes + 7) & ~7L;
+    if (size > Integer.MAX_VALUE)
+      throw new IOException("An array of the tree takes more than 2GB.");
+    return ByteBuffer.allocate((int) size).order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  /**
+   * Maps a binary tree file in memory.  The file is closed once mapped, and the mapping is
+   * dropped when the view is no longer referenced.
+   *
+   * @param file The file.
+   * @return the view of the file.
+   * @throws ParseException If file is not properly formatted.
+   * @throws IOException If an IO error occurs.
+   */
+  public static View map(String file) throws IOException, ParseException {
+
+    RandomAccessFile raf = new RandomAccessFile(file,"r");
+    try {
+      FileChannel channel = raf.getChannel();
+      long length = channel.size();
+      MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY,0,Math.min(length,1 << 16));
+      header.order(ByteOrder.LITTLE_ENDIAN);
+
+      int k, c, b;
+      String type = null;
+      try {
+        for (int i=0; i<MAGIC.length; i++)
+          if (header.get() != MAGIC[i])
+            throw new ParseException("Not a binary tree file: "+file,i);
+        if (header.getInt() != VERSION)
+          throw new ParseException("Unknown binary tree version in "+file,4);
+
+        k = header.getInt();
+        c = header.getInt();
+        b = header.getInt();
+        int t = header.getInt();
+        if (k < 0 || c < 0 || b < -1 || t < -1)
+          throw new ParseException("Format mismatch in "+file,8);
+        if (t >= 0) {
+          byte[] bytes = new byte[t];
+          header.get(bytes);
+          type = new String(bytes,UTF8);
+        }
+      }
+      catch (BufferUnderflowException e) {
+        throw new ParseException("Format mismatch in "+file,0);
+      }
+
+      long at = (header.position() + 7) & ~7L;
+      long[] sizes = {4L*k,4L*k,4L*k,4L*k,4L*k,4L*k,k,4L*(k+1),4L*c,4L*c,b < 0 ? 0 : 4L*(k+1),b < 0 ? 0 : b};
+      ByteBuffer[] S = new ByteBuffer[sizes.length];
+      for (int i=0; i<sizes.length; i++) {
+        if (length < at + sizes[i])
+          throw new ParseException("Truncated tree in "+file,(int) Math.min(length,Integer.MAX_VALUE));
+        S[i] = channel.map(FileChannel.MapMode.READ_ONLY,at,sizes[i]).order(ByteOrder.LITTLE_ENDIAN);
+        at += (sizes[i] + 7) & ~7L;
+      }
+
+      return new View(k,c,type,S[0].asIntBuffer(),S[1].asIntBuffer(),S[2].asFloatBuffer(),S[3].asIntBuffer(),
+                      S[4].asFloatBuffer(),S[5].asFloatBuffer(),S[6],S[7].asIntBuffer(),S[8].asIntBuffer(),
+                      S[9].asFloatBuffer(),b < 0 ? null : S[10].asIntBuffer(),b < 0 ? null : S[11]);
+    }
+    finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * Loads a binary tree file.
+   *
+   * @param file The file.
+   * @return the tree, with its edges generated again from the parents.
+   * @throws ParseException If file is not properly formatted.
+   * @throws IOException If an IO error occurs.
+   */
+  public static Tree load(String file) throws IOException, ParseException {
+    return map(file).toTree();
+  }
+
+  /**
+   * Converts a Newick file into a binary tree file.
+   *
+   * Usage: BinaryTree input.nwk output.btree
+   */
+  public static void main(String[] args) throws IOException {
+
+    if (args.length != 2) {
+      System.err.println("Usage: BinaryTree input.nwk output.btree");
+      System.exit(1);
+    }
+
+    long t = System.currentTimeMillis();
+    write(new Tree(args[0]),args[1]);
+    System.out.println("Converted "+args[0]+" in "+((System.currentTimeMillis()-t)/1000.0f)+" seconds.");
+  }
+}
@@ -0,0 +1,261 @@
+package tree.technique.nj;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import tree.basics.ContentTree;
+import tree.basics.Tree;
+import tree.basics.TreeIndex;
+import tree.implementation.DistanceMatrixBuilder;
+import tree.interfaces.Matrix;
+import tree.io.DmatParser;
+
+/**
+ * The bootstrap support of the clades of a tree, estimated in process.
+ *
+ * Every replicate draws as many sites (the columns of the data) as there are, with
+ * replacement, computes the distances between the objects over the sites drawn and joins
+ * them.  Workers take the replicates one at a time, each with its own rows of resampled
+ * sites and its own packed matrix, allocated once and overwritten by every replicate, and
+ * its own tally of the clades found.  The sites of a replicate are drawn from a generator
+ * seeded by the seed given and the replicate number, so the support does not depend on the
+ * number of workers.
+ *
+ * A clade is the bipartition of the objects made by an edge of the tree.  Every object has a
+ * random 64-bit key, and a side of a clade is hashed as the exclusive or of the keys of its
+ * objects, so the hashes of all the clades of a tree are computed in one pass from the
+ * leaves up.  Of the hashes of the two sides, the smallest one stands for the clade.  Two
+ * distinct clades get the same hash with a probability of about 2^-64.
+ */
+class Bootstrap {
+
+    private final float[][] rows;
+    private final int n, m;
+    private final DistanceMatrixBuilder.Metric metric;
+    private final NJ.NJAlgorithmType type;
+    private final long rapidMemory;
+    private final int replicates;
+    private final long seed;
+    private final long[] key;       // the key of every object
+    private final long all;         // the hash of all the objects
+    private final AtomicInteger next = new AtomicInteger();
+
+    private Bootstrap(float[][] rows, int m, DistanceMatrixBuilder.Metric metric, NJ.NJAlgorithmType type,
+                      long rapidMemory, int replicates, long seed) {
+        this.rows = rows;
+        this.n = rows.length;
+        this.m = m;
+        this.metric = metric;
+        this.type = type;
+        this.rapidMemory = rapidMemory;
+        this.replicates = replicates;
+        this.seed = seed;
+
+        Random g = new Random(seed);
+        key = new long[n];
+        long h = 0;
+        for (int i=0; i<n; i++) {
+            key[i] = g.nextLong();
+            h ^= key[i];
+        }
+        all = h;
+    }
+
+    /**
+     * Sets the support of every clade of a tree, as NJ.bootstrap does.  The replicates are
+     * built without printing the reference of the implementation.
+     *
+     * @param plan The plan of a replicate (see NJPlanner).
+     * @param rapidMemory The bound on the sorted rows of Rapid NJ, 0 for none.
+     */
+    static void support(Tree tree, Matrix data, DistanceMatrixBuilder.Metric metric, NJPlanner.Plan plan,
+                        long rapidMemory, int replicates, long seed, int threads) {
+
+        int n = data.getRowCount();
+        int m = data.getDimensions();
+        if (n < 4)
+            throw new IllegalArgumentException("At least four objects are needed to have clades, there are "+n+".");
+        if (m < 1)
+            throw new IllegalArgumentException("There are no sites to resample.");
+        if (replicates < 1)
+            throw new IllegalArgumentException("At least one replicate is needed.");
+
+        float[][] rows = new float[n][];
+        for (int i=0; i<n; i++) {
+            rows[i] = data.getRow(i).toArray();
+            if (rows[i].length < m)
+                throw new IllegalArgumentException("Row "+i+" has "+rows[i].length+" sites of "+m+".");
+        }
+
+        // The objects of the data by their ids in the tree:
+        ArrayList<Integer> ids = data.getIds();
+        HashMap<Integer,Integer> objects = new HashMap<Integer,Integer>();
+        for (int i=0; i<n; i++)
+            if (objects.put(ids != null && ids.size() == n ? ids.get(i) : i,i) != null)
+                throw new IllegalArgumentException("Id "+ids.get(i)+" is given to more than one row.");
+
+        // Every worker holds a matrix and the working space of the implementation:
+        long each = plan.bytes + 4L*n*m;
+        int workers = (int) Math.max(1,Math.min(Math.min(threads,replicates),NJPlanner.available()/each));
+
+        Bootstrap b = new Bootstrap(rows,m,metric,plan.type,rapidMemory,replicates,seed);
+        Worker[] W = new Worker[workers];
+        for (int w=0; w<workers; w++)
+            W[w] = b.new Worker();
+
+        if (workers > 1) {
+            ForkJoinPool pool = new ForkJoinPool(workers);
+            try {
+                for (Worker w : W)
+                    pool.execute(w);
+                for (Worker w : W)
+                    w.join();
+            } finally {
+                pool.shutdown();
+            }
+        }
+        else
+            W[0].compute();
+
+        HashMap<Long,Integer> tally = new HashMap<Long,Integer>();
+        for (Worker w : W)
+            for (Map.Entry<Long,int[]> e : w.tally.entrySet()) {
+                Integer c = tally.get(e.getKey());
+                tally.put(e.getKey(),(c == null ? 0 : c) + e.getValue()[0]);
+            }
+
+        b.annotate(tree,objects,tally);
+    }
+
+    /**
+     * Sets the support of the nodes of the tree from the tally of the clades of the
+     * replicates.  The root, the leaves and the nodes that split a single object off the
+     * others get no support.
+     */
+    private void annotate(Tree tree, HashMap<Integer,Integer> objects, HashMap<Long,Integer> tally) {
+        TreeIndex ix = new TreeIndex(tree);
+        long[] h = new long[ix.size];
+        int[] c = new int[ix.size];
+        int found = 0;
+        for (int v=ix.size-1; v>=0; v--) {
+            ContentTree ct = ix.node[v];
+            if (ct.isValid()) {
+                Integer i = objects.get(ct.getId());
+                if (i == null)
+                    throw new IllegalArgumentException("Object "+ct.getId()+" of the tree is not in the data.");
+                h[v] ^= key[i];
+                c[v]++;
+                found++;
+            }
+            if (v > 0) {
+                h[ix.parent[v]] ^= h[v];
+                c[ix.parent[v]] += c[v];
+            }
+        }
+        if (found != n)
+            throw new IllegalArgumentException("The tree holds "+found+" of the "+n+" objects of the data.");
+
+        for (int v=0; v<ix.size; v++) {
+            float s = -1;
+            if (v > 0 && c[v] >= 2 && c[v] <= n-2) {
+                Integer k = tally.get(clade(h[v]));
+                s = (k == null ? 0 : k) / (float) replicates;
+            }
+            ix.node[v].setSupport(s);
+        }
+    }
+
+    private long clade(long h) {
+        return Math.min(h,h ^ all);
+    }
+
+    /**
+     * Runs replicates until there are none left.
+     */
+    private class Worker extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final float[][] R = new float[n][m];    // the rows of the sites drawn
+        private final int[] site = new int[m];
+        private final PexMatrix p = new PexMatrix(n);
+        private final DmatParser.Cells cells = new DmatParser.Cells() {
+            @Override
+            public void set(int i, int j, double d) {
+                p.set(i,j,d);
+            }
+        };
+        private final long[] h = new long[2*n];
+        private final int[] c = new int[2*n];
+        private final HashSet<Long> seen = new HashSet<Long>();
+        final HashMap<Long,int[]> tally = new HashMap<Long,int[]>();
+
+        @Override
+        protected void compute() {
+            for (int r=next.getAndIncrement(); r<replicates; r=next.getAndIncrement()) {
+                Random g = new Random(seed ^ (0x9E3779B97F4A7C15L * (r+1)));
+                for (int k=0; k<m; k++)
+                    site[k] = g.nextInt(m);
+                for (int i=0; i<n; i++) {
+                    float[] x = rows[i], y = R[i];
+                    for (int k=0; k<m; k++)
+                        y[k] = x[site[k]];
+                }
+
+                DistanceMatrixBuilder.build(R,metric,cells,1);
+                p.n = n;
+                count(build());
+            }
+        }
+
+        private JoinRecorder build() {
+            switch (type) {
+                case ORIGINAL:
+                    return NJ.originalJoins(p,1);
+                case FAST:
+                    return NJ.fastJoins(p,1);
+                case RAPID:
+                    return rapidMemory > 0 ? NJ.rapidJoins(p,1,rapidMemory) : NJ.rapidJoins(p,1);
+                default:
+                    return NJ.relaxedJoins(p,1);
+            }
+        }
+
+        /**
+         * Adds the clades of the tree of a replicate to the tally, once each.
+         */
+        private void count(JoinRecorder joins) {
+            int root = joins.getRoot();
+            seen.clear();
+            for (int x=0; x<joins.getSize(); x++) {
+                if (x < n) {
+                    h[x] = key[x];
+                    c[x] = 1;
+                    continue;
+                }
+                h[x] = 0;
+                c[x] = 0;
+                for (int k=0; k<joins.getChildCount(x); k++) {
+                    int y = joins.getChild(x,k);
+                    h[x] ^= h[y];
+                    c[x] += c[y];
+                }
+                if (x != root && c[x] >= 2 && c[x] <= n-2)
+                    seen.add(clade(h[x]));
+            }
+
+            for (Long k : seen) {
+                int[] t = tally.get(k);
+                if (t == null)
+                    tally.put(k,new int[] {1});
+                else
+                    t[0]++;
+            }
+        }
+    }
+}
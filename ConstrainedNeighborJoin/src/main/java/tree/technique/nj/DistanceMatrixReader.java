@@ -1,12 +1,9 @@
 package tree.technique.nj;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
 import java.io.IOException;
 import java.text.ParseException;
-import java.util.NoSuchElementException;
-import java.util.Scanner;
 import tree.interfaces.DistanceMatrix;
+import tree.io.DmatParser;
 
 /**
  * A class for reading data provided by PEx dmat files.
@@ -32,64 +29,141 @@ public class DistanceMatrixReader {
    * 
    * L[.] are object labels and C[.] are object classes. 
    * 
+   * A file written by BinaryDistanceMatrix is also accepted, and loaded without parsing.
+   * 
    * Details can be found in http://infoserver.lcad.icmc.usp.br/infovis2/PEXImage
    * 
    * @param file The file.
    * @return a PexMatrix record, where the matrix itself is a 
-   * lower triangular matrix with an all zeros main diagonal
+   * packed lower triangular matrix
    * @throws ParseException If file is not properly formatted.
    * @throws IOException If an IO error occurs. 
    * 
    * @author Guilherme P. Telles 
    */
   public static PexMatrix loadPex(String file) throws IOException, ParseException {
+    return loadPex(file,false);
+  }
+
+  /**
+   * Loads a PEx distance matrix file, as loadPex(String), optionally keeping the 
+   * distances out of the Java heap in a MappedPexMatrix.  The backing file is created 
+   * in the directory given by the java.io.tmpdir property, except for binary files, 
+   * which are mapped themselves.
+   * 
+   * @param file The file.
+   * @param offHeap True to store the distances in a memory-mapped file.
+   * @return a PexMatrix record.
+   * @throws ParseException If file is not properly formatted.
+   * @throws IOException If an IO error occurs. 
+   */
+  public static PexMatrix loadPex(String file, boolean offHeap) throws IOException, ParseException {
+    return loadPex(file,offHeap,Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Loads a PEx distance matrix file, as loadPex(String,boolean), parsing the distances 
+   * with a given number of threads.
+   * 
+   * @param file The file.
+   * @param offHeap True to store the distances in a memory-mapped file.
+   * @param threads The number of threads parsing the distances.
+   * @return a PexMatrix record.
+   * @throws ParseException If file is not properly formatted.
+   * @throws IOException If an IO error occurs. 
+   */
+  public static PexMatrix loadPex(String file, boolean offHeap, int threads) throws IOException, ParseException {
+    return loadPex(file,offHeap,false,threads);
+  }
+
+  /**
+   * Loads a PEx distance matrix file, as loadPex(String,boolean,int), optionally storing
+   * the distances as floats, in a FloatPexMatrix or in a MappedPexMatrix of floats.
+   * Binary files holding doubles are still mapped as doubles.
+   * 
+   * @param file The file.
+   * @param offHeap True to store the distances in a memory-mapped file.
+   * @param floats True to store the distances as floats.
+   * @param threads The number of threads parsing the distances.
+   * @return a PexMatrix record.
+   * @throws ParseException If file is not properly formatted.
+   * @throws IOException If an IO error occurs. 
+   */
+  public static PexMatrix loadPex(String file, boolean offHeap, boolean floats, int threads) throws IOException, ParseException {
 
-      String st = "";
+    if (BinaryDistanceMatrix.isBinary(file))
+      return BinaryDistanceMatrix.load(file,offHeap,floats);
+
+    DmatParser s = new DmatParser(file);
     try {
-      Scanner s = new Scanner(new BufferedReader(new FileReader(file)));
-      PexMatrix D = new PexMatrix();
-  
-      D.n = s.nextInt();
-      s.nextLine();
-      D.labels = s.nextLine().split("\\s*;\\s*");
-
-      String[] cdata = s.nextLine().split(";");
+      String line = s.nextLine();
+      if (line == null)
+        throw new ParseException("Format mismatch in "+file,0);
+
+      int size = Integer.parseInt(line.trim());
+      final PexMatrix D = offHeap ? new MappedPexMatrix(size,null,floats) : 
+        floats ? new FloatPexMatrix(size) : new PexMatrix(size);
+
+      line = s.nextLine();
+      if (line == null)
+        throw new ParseException("Format mismatch in "+file,0);
+      D.labels = line.split("\\s*;\\s*");
+
+      line = s.nextLine();
+      if (line == null)
+        throw new ParseException("Format mismatch in "+file,0);
+      String[] cdata = line.split(";");
       D.classes = new float[D.n];
-      for (int i = 0; i < D.n; i++) {
-        //Double n = Double.parseDouble(cdata[i]);
-        Float n = Float.parseFloat(cdata[i]);
-        D.classes[i] = n;//n.intValue();
-      }
+      for (int i = 0; i < D.n; i++)
+        D.classes[i] = Float.parseFloat(cdata[i]);
 
-      s.useDelimiter("\\s*;\\s*|;?\\s*\\n");
-      //s.useDelimiter("[;\\n\\s]*");
-  
-//      D.classes = new int[D.n];
-//      for (int i = 0; i < D.n; i++)
-//        D.classes[i] = (int) s.nextDouble();
-
-      D.M = new double[D.n][];
-      D.M[0] = new double[1];
-      for (int i=1; i<D.n; i++) {
-        D.M[i] = new double[i+1];
-  
-        for (int j=0; j<i; j++) {
-          st = s.next();
-          //D.M[i][j] = s.nextDouble();
-          D.M[i][j] = Double.parseDouble(st);
-          //System.out.println("OK : "+st);
+      s.parse(D.n,floats,threads,new DmatParser.Cells() {
+        @Override
+        public void set(int i, int j, double d) {
+          D.set(i,j,d);
         }
-  
-        D.M[i][i] = 0;
-      }
-      s.close();
-  
+      });
+
       return D;
     }
-    catch (NoSuchElementException e) {
-        //System.out.println("Erro : "+st);
+    catch (NumberFormatException e) {
       throw new ParseException("Format mismatch in "+file,0);
     }
+    catch (ArrayIndexOutOfBoundsException e) {
+      throw new ParseException("Format mismatch in "+file,0);
+    }
+    finally {
+      s.close();
+    }
+  }
+
+  /**
+   * Reads the dimension of the matrix in a PEx distance matrix file or a binary matrix
+   * file, without loading the matrix.
+   * 
+   * @param file The file.
+   * @return n.
+   * @throws ParseException If file is not properly formatted.
+   * @throws IOException If an IO error occurs. 
+   */
+  public static int size(String file) throws IOException, ParseException {
+
+    if (BinaryDistanceMatrix.isBinary(file))
+      return BinaryDistanceMatrix.size(file);
+
+    DmatParser s = new DmatParser(file);
+    try {
+      String line = s.nextLine();
+      if (line == null)
+        throw new ParseException("Format mismatch in "+file,0);
+      return Integer.parseInt(line.trim());
+    }
+    catch (NumberFormatException e) {
+      throw new ParseException("Format mismatch in "+file,0);
+    }
+    finally {
+      s.close();
+    }
   }
 
   /**
@@ -102,10 +176,78 @@ public class DistanceMatrixReader {
    * @author Guilherme P. Telles
    */
   public static PexMatrix loadPex(DistanceMatrix dmat) {
+      try {
+          return loadPex(dmat,false);
+      } catch (IOException e) {
+          //only the off-heap storage does IO
+          throw new IllegalStateException(e);
+      }
+  }
+
+  /**
+   * Loads a PEx distance matrix object, as loadPex(DistanceMatrix), optionally keeping 
+   * the distances out of the Java heap in a MappedPexMatrix.
+   * 
+   * @param dmat the distance matrix object
+   * @param offHeap True to store the distances in a memory-mapped file.
+   * @return a PexMatrix record.
+   * @throws IOException If the memory-mapped file cannot be created.
+   */
+  public static PexMatrix loadPex(DistanceMatrix dmat, boolean offHeap) throws IOException {
+      return loadPex(dmat,offHeap,false);
+  }
+
+  /**
+   * Loads a PEx distance matrix object, as loadPex(DistanceMatrix,boolean), optionally 
+   * storing the distances as floats, as the object does, in a FloatPexMatrix or in a 
+   * MappedPexMatrix of floats.
+   * 
+   * @param dmat the distance matrix object
+   * @param offHeap True to store the distances in a memory-mapped file.
+   * @param floats True to store the distances as floats.
+   * @return a PexMatrix record.
+   * @throws IOException If the memory-mapped file cannot be created.
+   */
+  public static PexMatrix loadPex(DistanceMatrix dmat, boolean offHeap, boolean floats) throws IOException {
 
-      PexMatrix dm = new PexMatrix();
+      int n = dmat.getElementCount();
+      PexMatrix dm = offHeap ? new MappedPexMatrix(n,null,floats) : 
+          floats ? new FloatPexMatrix(n) : new PexMatrix(n);
+
+      loadData(dmat,dm);
+
+      //distmatrix[i] holds row i+1
+      float[][] distmatrix = dmat.getDistmatrix();
+      for (int i=0;i<distmatrix.length;i++) {
+          for (int j=0;j<distmatrix[i].length;j++) {
+              dm.set(i+1,j,distmatrix[i][j]);
+          }
+      }
+      return dm;
+    
+  }
+
+  /**
+   * Wraps a PEx distance matrix object in a DistanceMatrixView, that reads its distances 
+   * in place instead of copying them.  The object must not be changed while the view is 
+   * in use.  Distances are read more slowly than from a copy, and the view is meant for
+   * matrices whose copy does not fit in the heap.
+   * 
+   * @param dmat the distance matrix object
+   * @param floats True to keep the distances of new nodes as floats, false for doubles.
+   * @return a PexMatrix record.
+   */
+  public static PexMatrix viewPex(DistanceMatrix dmat, boolean floats) {
+      PexMatrix dm = new DistanceMatrixView(dmat,floats);
+      loadData(dmat,dm);
+      return dm;
+  }
+
+  /**
+   * Copies the ids, labels and classes of a PEx distance matrix object.
+   */
+  private static void loadData(DistanceMatrix dmat, PexMatrix dm) {
 
-      dm.n = dmat.getElementCount();
       dm.ids = new int[dm.n];
       dm.labels = new String[dm.n];
       dm.classes = new float[dm.n];
@@ -137,19 +279,6 @@ public class DistanceMatrixReader {
               }
           }
       }
-      
-      dm.M = new double[dm.n][];
-      dm.M[0] = new double[1];
-      dm.M[0][0] = 0.0;
-      for (int i=0;i<dmat.getDistmatrix().length;i++) {
-          dm.M[i+1] = new double[dmat.getDistmatrix()[i].length+1];
-          for (int j=0;j<dmat.getDistmatrix()[i].length;j++) {
-              dm.M[i+1][j] = dmat.getDistmatrix()[i][j];
-          }
-          dm.M[i+1][dmat.getDistmatrix()[i].length] = 0.0;
-      }
-      return dm;
-    
   }
 
 }
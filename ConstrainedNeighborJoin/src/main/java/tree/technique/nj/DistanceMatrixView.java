@@ -0,0 +1,245 @@
+package tree.technique.nj;
+
+import tree.interfaces.DistanceMatrix;
+
+/**
+ * A PexMatrix that reads the distances of a DistanceMatrix in place, from its float[][]
+ * storage, where row i-1 holds Di0, Di1, ..., Di,i-1.  The field M is not used.
+ *
+ * The NJ implementations store every new node at the position of one of the nodes joined,
+ * after calling detachRow() on it, and move the last position onto the position of the
+ * other one.  Positions are mapped to the objects of the DistanceMatrix.  A new node gets
+ * a row of its own, copied from the row it replaces, and the row is dropped when the node
+ * is joined in turn.  Only these rows are ever written, so the DistanceMatrix is left
+ * unchanged, and the only distances copied are those of the new nodes alive and of the
+ * last row moved.  The rows are kept as floats when distances are rounded to floats.
+ *
+ * Every distance read through dist() looks for the rows of both positions first, and is
+ * slower than a read from a PexMatrix of its own: the view is meant for matrices whose
+ * copy does not fit in the heap (see NJ.execute(DistanceMatrix)).  The scans of whole rows
+ * made by the view itself find the row of a position once.
+ */
+public class DistanceMatrixView extends PexMatrix {
+
+  private float[][] D;       // The storage of the DistanceMatrix.
+  private int[] object;      // The object at every position.
+  private double[][] rows;   // The distances of the new node at every position, or null.
+  private float[][] frows;   // The same, when distances are rounded to floats.
+  private final boolean floats;
+
+  /**
+   * Creates a view of the distances of a DistanceMatrix.
+   *
+   * @param dmat The distance matrix.
+   * @param floats True to round the distances of new nodes to floats, as a FloatPexMatrix
+   * does, false to keep them as doubles.
+   */
+  public DistanceMatrixView(DistanceMatrix dmat, boolean floats) {
+    this.n = dmat.getElementCount();
+    this.D = dmat.getDistmatrix();
+    this.floats = floats;
+    object = new int[n];
+    if (floats)
+      frows = new float[n][];
+    else
+      rows = new double[n][];
+    for (int i=0; i<n; i++)
+      object[i] = i;
+  }
+
+  @Override
+  public double get(int i, int j) {
+    return dist(i,j);
+  }
+
+  @Override
+  public void set(int i, int j, double d) {
+    setDist(i,j,d);
+  }
+
+  @Override
+  public double dist(int i, int j) {
+    if (floats) {
+      float[] r = frows[i];
+      if (r != null)
+        return i == j ? 0 : r[j];
+      r = frows[j];
+      if (r != null)
+        return r[i];
+    }
+    else {
+      double[] r = rows[i];
+      if (r != null)
+        return i == j ? 0 : r[j];
+      r = rows[j];
+      if (r != null)
+        return r[i];
+    }
+    return stored(object[i],object[j]);
+  }
+
+  /**
+   * Returns the distance between objects a and b of the DistanceMatrix.
+   */
+  private double stored(int a, int b) {
+    if (a > b)
+      return D[a-1][b];
+    else if (a < b)
+      return D[b-1][a];
+    else
+      return 0;
+  }
+
+  private boolean detached(int i) {
+    return floats ? frows[i] != null : rows[i] != null;
+  }
+
+  @Override
+  public void setDist(int i, int j, double d) {
+    if (!detached(i) && !detached(j))
+      detachRow(i);
+    if (floats) {
+      if (frows[i] != null)
+        frows[i][j] = (float) d;
+      if (frows[j] != null)
+        frows[j][i] = (float) d;
+    }
+    else {
+      if (rows[i] != null)
+        rows[i][j] = d;
+      if (rows[j] != null)
+        rows[j][i] = d;
+    }
+  }
+
+  /**
+   * Copies the distances of i into a row of its own, unless it has one already.
+   */
+  @Override
+  public void detachRow(int i) {
+    if (detached(i))
+      return;
+
+    if (floats) {
+      float[] r = new float[n];
+      for (int k=0; k<n; k++)
+        r[k] = (float) column(i,k);
+      frows[i] = r;
+    }
+    else {
+      double[] r = new double[n];
+      for (int k=0; k<n; k++)
+        r[k] = column(i,k);
+      rows[i] = r;
+    }
+  }
+
+  /**
+   * Returns Dik for a position i with no row of its own.
+   */
+  private double column(int i, int k) {
+    if (floats) {
+      if (frows[k] != null)
+        return frows[k][i];
+    }
+    else if (rows[k] != null)
+      return rows[k][i];
+    return stored(object[i],object[k]);
+  }
+
+  @Override
+  public double rowSum(int i) {
+    if (floats)
+      return compensatedRowSum(i);
+
+    double s = 0;
+    double[] r = rows[i];
+    if (r != null) {
+      for (int k=0; k<i; k++)
+        s += r[k];
+      for (int k=i+1; k<n; k++)
+        s += r[k];
+    }
+    else {
+      for (int k=0; k<i; k++)
+        s += column(i,k);
+      for (int k=i+1; k<n; k++)
+        s += column(i,k);
+    }
+    return s;
+  }
+
+  @Override
+  public double round(double d) {
+    return floats ? (float) d : d;
+  }
+
+  /**
+   * Moves the distances of object from onto object to.  Object from must be the last one,
+   * n-1, as n is expected to be decremented right after.  Its distances are kept in a row
+   * of their own, unchanged, as in PexMatrix, and the row kept by the move before is dropped.
+   */
+  @Override
+  public void moveRow(int from, int to) {
+    if (from == to)
+      return;
+
+    if (floats) {
+      float[] left = frows[from];
+      if (left == null) {
+        left = new float[n];
+        for (int k=0; k<n; k++)
+          left[k] = (float) column(from,k);
+      }
+      else
+        left = left.clone();
+
+      for (int k=0; k<n; k++)
+        if (frows[k] != null && k != from && k != to)
+          frows[k][to] = frows[k][from];
+
+      // An object only changes position, a new node takes its row along:
+      object[to] = object[from];
+      frows[to] = frows[from];
+      if (frows[to] != null)
+        frows[to][from] = left[to];
+
+      frows[from] = left;
+      if (from+1 < frows.length)
+        frows[from+1] = null;
+    }
+    else {
+      double[] left = rows[from];
+      if (left == null) {
+        left = new double[n];
+        for (int k=0; k<n; k++)
+          left[k] = column(from,k);
+      }
+      else
+        left = left.clone();
+
+      for (int k=0; k<n; k++)
+        if (rows[k] != null && k != from && k != to)
+          rows[k][to] = rows[k][from];
+
+      object[to] = object[from];
+      rows[to] = rows[from];
+      if (rows[to] != null)
+        rows[to][from] = left[to];
+
+      rows[from] = left;
+      if (from+1 < rows.length)
+        rows[from+1] = null;
+    }
+  }
+
+  /**
+   * Drops the rows of the new nodes.  The DistanceMatrix is not changed.
+   */
+  @Override
+  public void release() {
+    D = null;
+    rows = null;
+    frows = null;
+  }
+}
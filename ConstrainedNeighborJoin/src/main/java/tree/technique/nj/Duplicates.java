@@ -0,0 +1,192 @@
+package tree.technique.nj;
+
+import java.util.HashMap;
+
+/**
+ * The objects of a matrix that duplicate others, collapsed before the joins.
+ *
+ * Two objects are duplicates when their rows are equal, Dii and Djj included, that is, when
+ * they are at distance 0 and at the same distance from every other object.  Every row is
+ * hashed in one pass over the matrix, each cell adding a hash of its value and its column to
+ * the hashes of both of its rows, and only the rows with equal hashes are compared.  Every
+ * group of duplicates is kept as its first object, the others being dropped from the matrix
+ * as the NJ implementations drop the nodes they join, by moving the last row onto theirs.
+ *
+ * The joins of the smaller matrix are then expanded back to the objects of the whole matrix:
+ * every group is joined first, in zero-length cherries, and the joins of the smaller matrix
+ * follow, from the cherries.  Since duplicates no longer add up in the row sums of the other
+ * objects, the tree may differ from the one built from the whole matrix.
+ */
+class Duplicates {
+
+    private static final long GOLDEN = 0x9E3779B97F4A7C15L;
+
+    private final PexMatrix p;
+    private final int n;            // the objects of the whole matrix
+    private final int[] rep;        // the object kept for every object
+    private final int[] at;         // the object at every position of the smaller matrix
+    private final int[] ids;        // the ids, labels and classes of the whole matrix
+    private final String[] labels;
+    private final float[] classes;
+
+    private Duplicates(PexMatrix p, int[] rep, int[] at) {
+        this.p = p;
+        this.n = rep.length;
+        this.rep = rep;
+        this.at = at;
+        this.ids = p.ids;
+        this.labels = p.labels;
+        this.classes = p.classes;
+    }
+
+    /**
+     * Drops the duplicates from a matrix, leaving one object of every group.
+     *
+     * @param p The matrix.  Its positions, ids, labels and classes are changed to those of the
+     * objects left, until expand() is called.
+     * @return the groups collapsed, or null if there are no duplicates, or fewer than three
+     * objects would be left.
+     */
+    static Duplicates collapse(PexMatrix p) {
+        int n = p.n;
+
+        long[] h = new long[n];
+        for (int i=0; i<n; i++) {
+            h[i] += hash(0,i);
+            for (int j=0; j<i; j++) {
+                double d = p.get(i,j);
+                h[i] += hash(d,j);
+                h[j] += hash(d,i);
+            }
+        }
+
+        int[] rep = new int[n];
+        int[] next = new int[n];    // the next object kept with the same hash, -1 if none
+        HashMap<Long,Integer> first = new HashMap<Long,Integer>();
+        int left = 0;
+        for (int i=0; i<n; i++) {
+            rep[i] = i;
+            Integer f = first.get(h[i]);
+            if (f != null)
+                for (int r=f; r!=-1; r=next[r])
+                    if (same(p,i,r)) {
+                        rep[i] = r;
+                        break;
+                    }
+            if (rep[i] != i)
+                continue;
+            left++;
+            if (f == null) {
+                first.put(h[i],i);
+                next[i] = -1;
+            }
+            else {
+                next[i] = next[f];
+                next[f] = i;
+            }
+        }
+
+        if (left == n || left < 3)
+            return null;
+
+        int[] at = new int[n];
+        int[] pos = new int[n];
+        for (int i=0; i<n; i++)
+            at[i] = pos[i] = i;
+        for (int i=n-1; i>=0; i--)
+            if (rep[i] != i) {
+                int x = pos[i], last = p.n-1;
+                if (x != last) {
+                    p.moveRow(last,x);
+                    at[x] = at[last];
+                    pos[at[x]] = x;
+                }
+                p.n--;
+            }
+
+        Duplicates g = new Duplicates(p,rep,at);
+        p.ids = new int[left];
+        for (int a=0; a<left; a++)
+            p.ids[a] = g.ids == null ? at[a] : g.ids[at[a]];
+        if (g.labels != null) {
+            p.labels = new String[left];
+            for (int a=0; a<left; a++)
+                p.labels[a] = g.labels[at[a]];
+        }
+        if (g.classes != null && g.classes.length >= n) {
+            p.classes = new float[left];
+            for (int a=0; a<left; a++)
+                p.classes[a] = g.classes[at[a]];
+        }
+        return g;
+    }
+
+    /**
+     * Returns the number of objects dropped.
+     */
+    int getCollapsed() {
+        int c = 0;
+        for (int i=0; i<n; i++)
+            if (rep[i] != i)
+                c++;
+        return c;
+    }
+
+    /**
+     * Expands the joins of the smaller matrix to the objects of the whole matrix, and gives
+     * the matrix back its ids, labels and classes.
+     *
+     * @param joins The joins of the smaller matrix.
+     * @return the joins of the whole matrix.
+     */
+    JoinRecorder expand(JoinRecorder joins) {
+        p.ids = ids;
+        p.labels = labels;
+        p.classes = classes;
+
+        JoinRecorder all = new JoinRecorder(n,ids,labels);
+        int[] top = new int[n];     // the last cherry of every object kept
+        for (int i=0; i<n; i++) {
+            top[i] = i;
+            if (rep[i] != i)
+                top[rep[i]] = all.join(top[rep[i]],i,0,0);
+        }
+
+        int m = joins.getLeafCount();
+        int[] node = new int[joins.getSize()];
+        for (int a=0; a<m; a++)
+            node[a] = top[at[a]];
+        for (int x=m; x<joins.getSize(); x++) {
+            if (joins.getChildCount(x) == 3)
+                node[x] = all.join(node[joins.getChild(x,0)],node[joins.getChild(x,1)],node[joins.getChild(x,2)],
+                                   joins.getLength(x,0),joins.getLength(x,1),joins.getLength(x,2));
+            else
+                node[x] = all.join(node[joins.getChild(x,0)],node[joins.getChild(x,1)],
+                                   joins.getLength(x,0),joins.getLength(x,1));
+        }
+        return all;
+    }
+
+    /**
+     * Returns true if the rows of i and r are equal.
+     */
+    private static boolean same(PexMatrix p, int i, int r) {
+        for (int k=0; k<p.n; k++)
+            if (p.dist(i,k) != p.dist(r,k))
+                return false;
+        return true;
+    }
+
+    /**
+     * Returns the hash of distance d in column k, mixed as in the finalizer of MurmurHash3.
+     */
+    private static long hash(double d, int k) {
+        long h = (d == 0 ? 0 : Double.doubleToLongBits(d)) ^ ((k+1)*GOLDEN);
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,118 @@
+package tree.technique.nj;
+
+/**
+ * A PexMatrix whose distances are stored as floats, in half the space of doubles.
+ *
+ * The packed lower triangular matrix is laid out as in PexMatrix, in the segments F, and
+ * the field M is not used.  The NJ implementations still compute in double precision, on
+ * the distances read as floats, and new distances are rounded to floats when stored.  Row
+ * sums are computed with compensated summation, so that the order of the joins does not
+ * depend on the rounding errors of long sums.
+ */
+public class FloatPexMatrix extends PexMatrix {
+  public float[][] F;
+
+  private float[] first;    // F[0] when it is the only segment, null otherwise
+
+  /**
+   * Creates a record with room for a n x n matrix, all distances set to zero.
+   *
+   * @param n The matrix dimension.
+   */
+  public FloatPexMatrix(int n) {
+    this.n = n;
+    long size = size(n);
+    this.F = new float[segments(size)][];
+    for (int s=0; s<F.length; s++)
+      F[s] = new float[length(size,s)];
+    if (F.length == 1)
+      first = F[0];
+  }
+
+  private float read(long k) {
+    if (first != null)
+      return first[(int) k];
+    return F[(int) (k >>> SHIFT)][(int) k & MASK];
+  }
+
+  private void write(long k, double d) {
+    if (first != null)
+      first[(int) k] = (float) d;
+    else
+      F[(int) (k >>> SHIFT)][(int) k & MASK] = (float) d;
+  }
+
+  @Override
+  public double get(int i, int j) {
+    return read(row(i)+j);
+  }
+
+  @Override
+  public void set(int i, int j, double d) {
+    write(row(i)+j,d);
+  }
+
+  @Override
+  public double dist(int i, int j) {
+    if (i > j)
+      return read(row(i)+j);
+    else if (i < j)
+      return read(row(j)+i);
+    else
+      return 0;
+  }
+
+  @Override
+  public void setDist(int i, int j, double d) {
+    if (i > j)
+      write(row(i)+j,d);
+    else
+      write(row(j)+i,d);
+  }
+
+  @Override
+  public double rowSum(int i) {
+    return compensatedRowSum(i);
+  }
+
+  @Override
+  public double round(double d) {
+    return (float) d;
+  }
+
+  @Override
+  public void release() {
+    F = null;
+    first = null;
+  }
+
+  @Override
+  public void moveRow(int from, int to) {
+    if (from == to)
+      return;
+
+    int lo = Math.min(from,to);
+    long rf = row(from), rt = row(to);
+
+    // Columns before both rows are contiguous in both rows:
+    for (int k=0; k<lo; ) {
+      int a = (int) (rf+k) & MASK, b = (int) (rt+k) & MASK;
+      int m = Math.min(lo-k,MASK+1-Math.max(a,b));
+      System.arraycopy(F[(int) ((rf+k) >>> SHIFT)],a,F[(int) ((rt+k) >>> SHIFT)],b,m);
+      k += m;
+    }
+
+    if (from > to) {
+      for (int k=to+1; k<from; k++)
+        write(row(k)+to,read(rf+k));
+      for (int k=from+1; k<n; k++)
+        write(row(k)+to,read(row(k)+from));
+    }
+    else {
+      for (int k=from+1; k<to; k++)
+        write(rt+k,read(row(k)+from));
+      for (int k=to+1; k<n; k++)
+        write(row(k)+to,read(row(k)+from));
+    }
+  }
+}
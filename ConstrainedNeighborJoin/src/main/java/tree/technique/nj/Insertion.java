@@ -0,0 +1,495 @@
+package tree.technique.nj;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import tree.basics.ContentTree;
+import tree.basics.Edge;
+import tree.basics.Tree;
+import tree.basics.TreeIndex;
+
+/**
+ * The insertion of new objects into a tree built by NJ, without building it again.
+ *
+ * Every new object is placed where a new leaf fits its distances to the objects of the tree
+ * best, in the least-squares sense: for every edge, the point of the edge and the length of
+ * the pendant edge minimizing the sum over the objects i of the tree of (D(x,i) - T(x,i))^2,
+ * T being the path length in the tree, are found in closed form, and the edge with the
+ * smallest sum is taken.  The sums over the objects on each side of every edge are
+ * gathered in one pass from the leaves up and one from the root down, so an object is
+ * placed in time linear in the size of the tree, and k objects in O(kn) time.
+ *
+ * Given only the distances to the objects of the matrix, the new objects are placed
+ * independently on the tree given, concurrently if asked to, and objects placed on the same
+ * edge are inserted along it in the order of their points.  Given also the distances
+ * between new objects, they are inserted one after the other, each on the tree holding the
+ * ones before it, so that new objects may be joined to each other.  The tree is then
+ * optionally re-optimized: each new object in turn is taken off the tree and placed again
+ * with all the others in it.
+ */
+class Insertion {
+
+    // The number of objects placed at a time by a thread:
+    private static final int CHUNK = 8;
+
+    /**
+     * The point where an object is placed: at delta from node v of the snapshot on the edge
+     * to its parent, with a pendant edge of the given length.
+     */
+    private static class Placement {
+        int v = -1;
+        double delta;
+        double pendant;
+        double q = Double.MAX_VALUE;
+    }
+
+    /**
+     * The tree reachable from its root, with the rows of the distances to its objects.
+     */
+    private static class Snapshot extends TreeIndex {
+
+        final int[] row;        // the row of the distances to the object of a node, -1 if none
+
+        Snapshot(Tree t, HashMap<Integer,Integer> rows) {
+            super(t);
+            row = new int[size];
+            for (int v=0; v<size; v++) {
+                Integer r = node[v].isValid() ? rows.get(node[v].getId()) : null;
+                row[v] = r == null ? -1 : r;
+            }
+        }
+    }
+
+    /**
+     * The sums over the objects of the tree that do not depend on the new object: for every
+     * node v, the number of objects below v, and the sums of their path lengths to v and of
+     * their squares, and the same for the objects not below v, measured from the parent of
+     * v.
+     */
+    private static class TreeSums {
+
+        final double[] cnt, sl, sl2;
+        final double[] cntA, slA, sl2A;
+
+        TreeSums(Snapshot s) {
+            int n = s.size;
+            cnt = new double[n];
+            sl = new double[n];
+            sl2 = new double[n];
+            cntA = new double[n];
+            slA = new double[n];
+            sl2A = new double[n];
+
+            for (int v=n-1; v>=0; v--) {
+                if (s.row[v] >= 0)
+                    cnt[v]++;
+                int u = s.parent[v];
+                if (u >= 0) {
+                    double l = s.length[v];
+                    cnt[u] += cnt[v];
+                    sl[u] += sl[v] + l*cnt[v];
+                    sl2[u] += sl2[v] + 2*l*sl[v] + l*l*cnt[v];
+                }
+            }
+
+            for (int v=1; v<n; v++) {
+                int u = s.parent[v];
+                double l = s.length[v];
+                cntA[v] = cnt[0] - cnt[v];
+                slA[v] = sl[u] - (sl[v] + l*cnt[v]);
+                sl2A[v] = sl2[u] - (sl2[v] + 2*l*sl[v] + l*l*cnt[v]);
+                if (s.parent[u] >= 0) {
+                    double lu = s.length[u];
+                    slA[v] += slA[u] + lu*cntA[u];
+                    sl2A[v] += sl2A[u] + 2*lu*slA[u] + lu*lu*cntA[u];
+                }
+            }
+        }
+    }
+
+    private Insertion() {
+    }
+
+    /**
+     * Inserts new objects into a tree, as NJ.insert does.
+     */
+    static void insert(Tree t, PexMatrix p, double[][] dist, int[] ids, float[] classes, boolean reoptimize, int threads) {
+
+        int k = ids.length;
+        if (dist.length != k || (classes != null && classes.length != k))
+            throw new IllegalArgumentException("There must be as many distance rows, ids and classes as new objects.");
+
+        // True if the rows hold the distances between new objects:
+        boolean between = true;
+        HashSet<Integer> added = new HashSet<Integer>();
+        HashSet<ContentTree> renamed = new HashSet<ContentTree>();
+        for (int x=0; x<k; x++) {
+            if (dist[x].length < p.n)
+                throw new IllegalArgumentException("The distances of new object "+ids[x]+" to the "+p.n+" objects of the matrix are missing.");
+            if (dist[x].length < p.n + x)
+                between = false;
+            ContentTree ct = t.getNodeById(ids[x]);
+            if ((ct != null && ct.isValid()) || !added.add(ids[x]))
+                throw new IllegalArgumentException("Id "+ids[x]+" is already in the tree.");
+            if (ct != null)
+                renamed.add(ct);
+        }
+        if (reoptimize && !between)
+            throw new IllegalArgumentException("The distances between the new objects are needed to re-optimize the tree.");
+        if (k == 0)
+            return;
+
+        int nextId = Integer.MIN_VALUE;
+        for (ContentTree ct : t.getNodes())
+            nextId = Math.max(nextId,ct.getId());
+        for (int x=0; x<k; x++)
+            nextId = Math.max(nextId,ids[x]);
+        nextId++;
+        nextId = rename(t,renamed,nextId);
+
+        // The rows of the objects of the matrix, and then of the new objects:
+        HashMap<Integer,Integer> rows = new HashMap<Integer,Integer>();
+        for (int i=0; i<p.n; i++)
+            rows.put(p.ids == null ? i : p.ids[i],i);
+
+        Snapshot s = new Snapshot(t,rows);
+        if (s.size < 2)
+            throw new IllegalArgumentException("The tree must have at least one edge.");
+        TreeSums ts = new TreeSums(s);
+        if (ts.cnt[0] == 0)
+            throw new IllegalArgumentException("No object of the tree is in the matrix.");
+        ContentTree root = s.node[0];
+
+        Placement[] P = new Placement[k];
+        ContentTree[] leaves = new ContentTree[k];
+
+        if (!between) {
+            if (threads > 1 && k > CHUNK) {
+                ForkJoinPool pool = new ForkJoinPool(threads);
+                try {
+                    pool.invoke(new Places(s,ts,dist,P,0,k));
+                } finally {
+                    pool.shutdown();
+                }
+            }
+            else
+                place(s,ts,dist,P,0,k);
+
+            Integer[] order = new Integer[k];
+            for (int x=0; x<k; x++)
+                order[x] = x;
+            attach(t,s,P,order,ids,classes,leaves,nextId);
+        }
+        else {
+            double[] d = new double[p.n + k];
+            for (int x=0; x<k; x++) {
+                nextId = insert(t,s,ts,distances(p,dist,x,d),P,x,ids,classes,leaves,nextId);
+                rows.put(ids[x],p.n + x);
+                s = new Snapshot(t,rows);
+                ts = new TreeSums(s);
+            }
+
+            if (reoptimize)
+                for (int x=0; x<k; x++) {
+                    detach(t,leaves[x]);
+                    s = new Snapshot(t,rows);
+                    ts = new TreeSums(s);
+                    nextId = insert(t,s,ts,distances(p,dist,x,d),P,x,ids,classes,leaves,nextId);
+                }
+        }
+
+        // The root is kept last on the nodes list, where saveXML takes it from:
+        HashSet<ContentTree> last = new HashSet<ContentTree>();
+        last.add(root);
+        t.removeNodes(last);
+        t.addNode(root);
+
+        t.setEdges(new ArrayList<Edge>());
+        t.generateEdges();
+    }
+
+    /**
+     * Places and attaches new object x alone.
+     *
+     * @return the next id not given.
+     */
+    private static int insert(Tree t, Snapshot s, TreeSums ts, double[] d, Placement[] P, int x,
+                              int[] ids, float[] classes, ContentTree[] leaves, int nextId) {
+        int n = s.size;
+        P[x] = place(s,ts,d,new double[n],new double[n],new double[n],new double[n]);
+        return attach(t,s,P,new Integer[] {x},ids,classes,leaves,nextId);
+    }
+
+    /**
+     * Returns in d the distances of new object x by row: to the objects of the matrix, and
+     * then to every other new object.
+     */
+    private static double[] distances(PexMatrix p, double[][] dist, int x, double[] d) {
+        System.arraycopy(dist[x],0,d,0,p.n + x);
+        for (int y=x+1; y<dist.length; y++)
+            d[p.n + y] = dist[y][p.n + x];
+        return d;
+    }
+
+    /**
+     * Gives new ids, from nextId, to virtual nodes having the ids of new objects, as NJ
+     * numbers virtual nodes from the largest object id on.
+     *
+     * @return the next id not given.
+     */
+    private static int rename(Tree t, HashSet<ContentTree> renamed, int nextId) {
+        if (renamed.isEmpty())
+            return nextId;
+
+        // The nodes linked to the renamed ones are found by the old ids first:
+        ContentTree[] nodes = renamed.toArray(new ContentTree[renamed.size()]);
+        ContentTree[] parents = new ContentTree[nodes.length];
+        ContentTree[][] children = new ContentTree[nodes.length][];
+        for (int k=0; k<nodes.length; k++) {
+            parents[k] = t.getNodeById(nodes[k].getParent());
+            children[k] = new ContentTree[nodes[k].getNumChildren()];
+            for (int j=0; j<children[k].length; j++)
+                children[k][j] = t.getNodeById(nodes[k].getChildrenId(j));
+        }
+
+        t.removeNodes(renamed);
+        for (int k=0; k<nodes.length; k++) {
+            int old = nodes[k].getId();
+            int id = nextId++;
+            if (parents[k] != null && parents[k].getChildrenIndex(old) != -1)
+                parents[k].setChildrenId(parents[k].getChildrenIndex(old),id);
+            for (ContentTree c : children[k])
+                if (c != null && c.getParent() == old)
+                    c.setParent(id);
+            nodes[k].setId(id);
+            t.addNode(nodes[k]);
+        }
+        return nextId;
+    }
+
+    /**
+     * Places the objects [lo,hi).
+     */
+    private static void place(Snapshot s, TreeSums ts, double[][] dist, Placement[] P, int lo, int hi) {
+        int n = s.size;
+        double[] sd = new double[n], sd2 = new double[n], sdt = new double[n], sdtA = new double[n];
+        for (int x=lo; x<hi; x++)
+            P[x] = place(s,ts,dist[x],sd,sd2,sdt,sdtA);
+    }
+
+    /**
+     * Places an object, given its distances d to the objects of the tree by row.  The arrays
+     * sd, sd2, sdt and sdtA are overwritten.
+     */
+    private static Placement place(Snapshot s, TreeSums ts, double[] d, double[] sd, double[] sd2, double[] sdt, double[] sdtA) {
+        int n = s.size;
+
+        // The sums of the distances below every node, of their squares and of their products
+        // with the path lengths:
+        Arrays.fill(sd,0,n,0);
+        Arrays.fill(sd2,0,n,0);
+        Arrays.fill(sdt,0,n,0);
+        for (int v=n-1; v>=0; v--) {
+            if (s.row[v] >= 0) {
+                double dv = d[s.row[v]];
+                sd[v] += dv;
+                sd2[v] += dv*dv;
+            }
+            int u = s.parent[v];
+            if (u >= 0) {
+                sd[u] += sd[v];
+                sd2[u] += sd2[v];
+                sdt[u] += sdt[v] + s.length[v]*sd[v];
+            }
+        }
+
+        Placement best = new Placement();
+        for (int v=1; v<n; v++) {
+            int u = s.parent[v];
+            double l = s.length[v];
+            sdtA[v] = sdt[u] - (sdt[v] + l*sd[v]);
+            if (s.parent[u] >= 0)
+                sdtA[v] += sdtA[u] + s.length[u]*(sd[0]-sd[u]);
+            if (v == s.implicit)
+                continue;
+
+            // Residuals below v, with the object at v, and above v, with the object at u:
+            double nb = ts.cnt[v], na = ts.cntA[v];
+            double Sb = sd[v] - ts.sl[v];
+            double Sb2 = sd2[v] - 2*sdt[v] + ts.sl2[v];
+            double Ta = (sd[0]-sd[v]) - ts.slA[v];
+            double Ta2 = (sd2[0]-sd2[v]) - 2*sdtA[v] + ts.sl2A[v];
+            double Sa = Ta - l*na;
+            double Sa2 = Ta2 - 2*l*Ta + l*l*na;
+            fit(v,l,nb,Sb,Sb2,na,Sa,Sa2,best);
+        }
+        return best;
+    }
+
+    /**
+     * Minimizes Q(p,delta) = sum below (r - p - delta)^2 + sum above (s - p + delta)^2 for
+     * p >= 0 and 0 <= delta <= l, given the counts, sums and sums of squares of the residuals
+     * r and s, and keeps the point in best if Q is smaller there.  Q is convex, so its
+     * minimum is either the unconstrained one or the minimum on a face of the box.
+     */
+    private static void fit(int v, double l, double nb, double Sb, double Sb2, double na, double Sa, double Sa2, Placement best) {
+        double m = nb + na;
+        if (m == 0)
+            return;
+
+        if (nb > 0 && na > 0) {
+            double a = Sb/nb, b = Sa/na;
+            double p = (a+b)/2, delta = (a-b)/2;
+            if (p >= 0 && delta >= 0 && delta <= l)
+                keep(v,p,delta,nb,Sb,Sb2,na,Sa,Sa2,best);
+        }
+        keep(v,Math.max(0,(Sb+Sa)/m),0,nb,Sb,Sb2,na,Sa,Sa2,best);
+        keep(v,Math.max(0,(Sb+Sa-(nb-na)*l)/m),l,nb,Sb,Sb2,na,Sa,Sa2,best);
+        keep(v,0,Math.min(Math.max((Sb-Sa)/m,0),l),nb,Sb,Sb2,na,Sa,Sa2,best);
+    }
+
+    private static void keep(int v, double p, double delta, double nb, double Sb, double Sb2, double na, double Sa, double Sa2, Placement best) {
+        double a = p+delta, b = p-delta;
+        double q = Sb2 - 2*a*Sb + nb*a*a + Sa2 - 2*b*Sa + na*b*b;
+        if (q < best.q) {
+            best.q = q;
+            best.v = v;
+            best.delta = delta;
+            best.pendant = p;
+        }
+    }
+
+    /**
+     * Attaches the leaves of the objects in order at their placements, creating the leaves
+     * not given.  The placements on an edge are made from its lower end, each through a new
+     * virtual node splitting the edge.  Edges are taken from the last node of the snapshot,
+     * so that the levels below an edge are raised before the edge is split.
+     *
+     * @return the next id not given.
+     */
+    private static int attach(Tree t, Snapshot s, final Placement[] P, Integer[] order, int[] ids, float[] classes,
+                              ContentTree[] leaves, int nextId) {
+
+        Arrays.sort(order,new Comparator<Integer>() {
+            @Override
+            public int compare(Integer x, Integer y) {
+                if (P[x].v != P[y].v)
+                    return P[x].v > P[y].v ? -1 : 1;
+                if (P[x].delta != P[y].delta)
+                    return P[x].delta < P[y].delta ? -1 : 1;
+                return x.compareTo(y);
+            }
+        });
+
+        int k = 0;
+        while (k < order.length) {
+            int v = P[order[k]].v;
+            ContentTree lower = s.node[v];
+            ContentTree upper = s.node[s.parent[v]];
+            double at = 0;
+
+            for ( ; k < order.length && P[order[k]].v == v; k++) {
+                int x = order[k];
+                if (leaves[x] == null) {
+                    leaves[x] = new ContentTree(ids[x]);
+                    if (classes != null)
+                        leaves[x].setKlass(classes[x]);
+                }
+                ContentTree w = new ContentTree(nextId++);
+                w.setValid(false);
+                w.setChildrenId(0,lower.getId());
+                w.setDistChildren(0,(float) (P[x].delta - at));
+                w.setChildrenId(1,leaves[x].getId());
+                w.setDistChildren(1,(float) P[x].pendant);
+                w.setLevel(lower.getLevel()+1);
+                lower.setParent(w.getId());
+                leaves[x].setParent(w.getId());
+                t.addNode(leaves[x]);
+                t.addNode(w);
+                lower = w;
+                at = P[x].delta;
+            }
+
+            int j = upper.getChildrenIndex(s.node[v].getId());
+            upper.setChildrenId(j,lower.getId());
+            upper.setDistChildren(j,(float) (s.length[v] - at));
+            // The two roots left by the leaf promotion are each other's parent:
+            if (upper.getParent() == s.node[v].getId())
+                upper.setParent(lower.getId());
+            lower.setParent(upper.getId());
+            raise(s,s.parent[v],lower.getLevel()+1);
+        }
+
+        return nextId;
+    }
+
+    /**
+     * Takes a leaf attached by attach() off the tree, with the virtual node attaching it,
+     * whose edges are merged.
+     */
+    private static void detach(Tree t, ContentTree leaf) {
+        ContentTree w = t.getNodeById(leaf.getParent());
+        ContentTree upper = t.getNodeById(w.getParent());
+        int j = w.getChildrenIndex(leaf.getId());
+        ContentTree lower = t.getNodeById(w.getChildrenId(1-j));
+
+        int i = upper.getChildrenIndex(w.getId());
+        upper.setChildrenId(i,lower.getId());
+        upper.setDistChildren(i,upper.getDistChildren(i) + w.getDistChildren(1-j));
+        if (upper.getParent() == w.getId())
+            upper.setParent(lower.getId());
+        lower.setParent(upper.getId());
+
+        HashSet<ContentTree> removed = new HashSet<ContentTree>();
+        removed.add(leaf);
+        removed.add(w);
+        t.removeNodes(removed);
+        leaf.setParent(-1);
+    }
+
+    /**
+     * Raises the levels from node u of the snapshot to the root, so that every node is above
+     * its children.
+     */
+    private static void raise(Snapshot s, int u, int level) {
+        for ( ; u >= 0 && s.node[u].getLevel() < level; u = s.parent[u], level++)
+            s.node[u].setLevel(level);
+    }
+
+    /**
+     * Places the objects [lo,hi) in a fork/join pool, CHUNK at a time.
+     */
+    private static class Places extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Snapshot s;
+        private final TreeSums ts;
+        private final double[][] dist;
+        private final Placement[] P;
+        private final int lo, hi;
+
+        Places(Snapshot s, TreeSums ts, double[][] dist, Placement[] P, int lo, int hi) {
+            this.s = s;
+            this.ts = ts;
+            this.dist = dist;
+            this.P = P;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo <= CHUNK) {
+                place(s,ts,dist,P,lo,hi);
+                return;
+            }
+            int mid = (lo + hi) >>> 1;
+            invokeAll(new Places(s,ts,dist,P,lo,mid),new Places(s,ts,dist,P,mid,hi));
+        }
+    }
+}
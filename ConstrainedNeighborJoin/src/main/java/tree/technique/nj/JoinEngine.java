@@ -0,0 +1,458 @@
+package tree.technique.nj;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Searches for the pair of nodes to be joined by the NJ implementations.
+ *
+ * With more than one thread the active rows are split into stripes of about the same
+ * number of matrix cells, which are searched concurrently in a fork/join pool.  Stripes
+ * are reduced in row order and a stripe only replaces the minimum of the stripes before
+ * it if its value is strictly smaller, so ties are broken exactly as in a sequential scan
+ * and the tree does not depend on the number of threads.
+ *
+ * Rapid NJ rows are pruned against the best value found so far, so its rows are handed out
+ * to the threads in small chunks, in the order of the sequential scan, and the best value
+ * found by any thread is shared as a common bound.
+ */
+class JoinEngine {
+
+    /**
+     * The minimum value found and where it was found.
+     */
+    static class Min {
+        double s = Double.MAX_VALUE;
+        int i = 0;
+        int j = 0;
+    }
+
+    // A stripe having fewer cells than this is searched sequentially:
+    private static final int CELLS = 1 << 14;
+
+    // The number of sorted rows taken at a time by a Rapid NJ thread:
+    private static final int CHUNK = 8;
+
+    private final int threads;
+    private final ForkJoinPool pool;
+    private int[] rows = new int[0];
+
+    /**
+     * @param threads The number of threads.  With a single thread every search runs in
+     * the calling thread.
+     */
+    JoinEngine(int threads) {
+        this.threads = threads;
+        this.pool = threads > 1 ? new ForkJoinPool(threads) : null;
+    }
+
+    /**
+     * Stops the threads of the engine.
+     */
+    void shutdown() {
+        if (pool != null)
+            pool.shutdown();
+    }
+
+    /**
+     * Finds the minimum of the Q criterion of the original NJ among the p.n active rows.
+     *
+     * @param p The distance matrix.
+     * @param sum The distance sums of every row.
+     * @param Sum The sum of all distances.
+     * @return The minimum, with i>j.
+     */
+    Min originalMin(PexMatrix p, double[] sum, double Sum) {
+        if (pool == null)
+            return originalMin(p,sum,Sum,1,p.n);
+        return pool.invoke(new OriginalTask(p,sum,Sum,1,p.n));
+    }
+
+    /**
+     * Finds the closest pair with minimum value among C[0,c).
+     *
+     * @return The position of the minimum in C.
+     */
+    int fastMin(NJ.ClosestPair[] C, int c) {
+        if (pool == null)
+            return fastMin(C,0,c);
+        return pool.invoke(new FastTask(C,0,c));
+    }
+
+    /**
+     * Rebuilds the closest pairs of Fast NJ in C[0,c) after nodes imin and jmin have been
+     * joined into jmin and the last row has been moved onto imin.  The closest pairs that
+     * pointed to the moved row are redirected to imin.
+     *
+     * @param all True to rebuild every closest pair, as needed before the first join.
+     */
+    void closestPairs(PexMatrix p, double[] sum, NJ.ClosestPair[] C, int c, int imin, int jmin, boolean all) {
+
+        if (rows.length < c)
+            rows = new int[c];
+        int r = 0;
+
+        for (int i=0; i<c; i++) {
+
+            // The closest pairs for the new node, having j=imin or j=jmin must be rebuilt:
+            if (all || i == jmin || C[i].j == imin || C[i].j == jmin)
+                rows[r++] = i;
+
+            // Any other closest pair must be updated:
+            else {
+                if(C[i].j == p.n)
+                    C[i].j = imin;
+            }
+        }
+
+        if (pool == null)
+            closestPairs(p,sum,C,rows,0,r);
+        else
+            pool.invoke(new ClosestTask(p,sum,C,rows,0,r));
+    }
+
+    /**
+     * Finds the minimum of the Q criterion of Rapid NJ, scanning the sorted rows S[0,l) from
+     * the last one.  Each row is scanned until the lower bound given by the largest sum
+     * is not smaller than the best value found.
+     *
+     * @param S The sorted rows, S[i][j] is the distance from i to I[i][j].
+     * @param I The nodes in the sorted rows.
+     * @param pos The position of every node in the matrix, -1 for nodes already joined.
+     * @param sum The distance sums of every node.
+     * @param smax A value not smaller than the sum of any active node.
+     * @param l The number of nodes.
+     * @param n The number of active nodes.
+     * @return The minimum, with i>j.
+     */
+    Min rapidMin(double[][] S, int[][] I, int[] pos, double[] sum, double smax, int l, int n) {
+
+        if (pool == null) {
+            Min m = new Min();
+            for (int i=l-1; i>=0; i--)
+                rapidMin(S,I,pos,sum,smax,n,i,m,null);
+            return m;
+        }
+
+        AtomicInteger next = new AtomicInteger(l);
+        AtomicLong bound = new AtomicLong(Double.doubleToLongBits(Double.MAX_VALUE));
+        final RapidTask[] tasks = new RapidTask[threads];
+        for (int t=0; t<threads; t++)
+            tasks[t] = new RapidTask(S,I,pos,sum,smax,n,next,bound);
+
+        pool.invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                invokeAll(tasks);
+            }
+        });
+
+        // Every thread scanned its rows from the last one, so ties go to the larger row:
+        Min m = tasks[0].m;
+        for (int t=1; t<threads; t++)
+            if (tasks[t].m.s < m.s || (tasks[t].m.s == m.s && tasks[t].m.i > m.i))
+                m = tasks[t].m;
+        return m;
+    }
+
+    /**
+     * Finds the minimum of the Q criterion of Rapid NJ as rapidMin() above, on rows kept in
+     * bounded memory (see SortedRows).
+     *
+     * @param R The sorted rows.
+     * @param p The distance matrix.
+     * @param pos The position of every node in the matrix, -1 for nodes already joined.
+     * @param at The node at every position of the matrix.
+     * @param sum The distance sums of every node.
+     * @param smax A value not smaller than the sum of any active node.
+     * @param l The number of nodes.
+     * @param n The number of active nodes.
+     * @return The minimum, with i>j.
+     */
+    Min rapidMin(SortedRows R, PexMatrix p, int[] pos, int[] at, double[] sum, double smax, int l, int n) {
+
+        if (pool == null) {
+            Min m = new Min();
+            for (int i=l-1; i>=0; i--)
+                R.min(p,pos,at,sum,smax,n,i,m,null);
+            return m;
+        }
+
+        AtomicInteger next = new AtomicInteger(l);
+        AtomicLong bound = new AtomicLong(Double.doubleToLongBits(Double.MAX_VALUE));
+        final RapidTask[] tasks = new RapidTask[threads];
+        for (int t=0; t<threads; t++)
+            tasks[t] = new RapidTask(R,p,pos,at,sum,smax,n,next,bound);
+
+        pool.invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                invokeAll(tasks);
+            }
+        });
+
+        Min m = tasks[0].m;
+        for (int t=1; t<threads; t++)
+            if (tasks[t].m.s < m.s || (tasks[t].m.s == m.s && tasks[t].m.i > m.i))
+                m = tasks[t].m;
+        return m;
+    }
+
+    private static void rapidMin(double[][] S, int[][] I, int[] pos, double[] sum, double smax, int n,
+                                 int i, Min m, AtomicLong bound) {
+
+        if (pos[i] == -1)
+            return;
+
+        double[] Si = S[i];
+        int[] Ii = I[i];
+
+        for (int j=0; j<i; j++)
+            if (pos[Ii[j]] != -1) {
+                double b = Si[j] - (sum[i]+smax) / (n-2);
+                // A shared bound only prunes values strictly larger than itself, since a
+                // tie found in an earlier row must still win:
+                if (Si[j] < Double.MAX_VALUE && b < m.s && (bound == null || b <= Double.longBitsToDouble(bound.get()))) {
+                    double s = Si[j] - (sum[i]+sum[Ii[j]]) / (n-2);
+                    if (s < m.s) {
+                        m.s = s;
+                        m.i = i;
+                        m.j = Ii[j];
+                        if (bound != null)
+                            tighten(bound,s);
+                    }
+                }
+                else
+                    break;
+            }
+    }
+
+    static void tighten(AtomicLong bound, double s) {
+        for (;;) {
+            long b = bound.get();
+            if (s >= Double.longBitsToDouble(b) || bound.compareAndSet(b,Double.doubleToLongBits(s)))
+                return;
+        }
+    }
+
+    private static Min originalMin(PexMatrix p, double[] sum, double Sum, int lo, int hi) {
+
+        Min m = new Min();
+
+        for (int i=lo; i<hi; i++) {
+            for (int j=0; j<i; j++) {
+
+                double dij = p.get(i,j);
+                double s = (sum[i] - dij + sum[j] - dij)/(2*(p.n-2)) +
+                            dij/2 + (Sum - sum[i] - sum[j] + dij)/(p.n-2);
+                if (s<m.s) {
+                    m.s = s;
+                    m.i = i;
+                    m.j = j;
+                }
+            }
+        }
+
+        return m;
+    }
+
+    private static int fastMin(NJ.ClosestPair[] C, int lo, int hi) {
+        int cmin = lo;
+        for (int i=lo+1; i<hi; i++)
+            if (C[i].d < C[cmin].d)
+                cmin = i;
+        return cmin;
+    }
+
+    private static void closestPairs(PexMatrix p, double[] sum, NJ.ClosestPair[] C, int[] rows, int lo, int hi) {
+
+        for (int r=lo; r<hi; r++) {
+            int i = rows[r];
+            double s;
+            C[i].d = Double.MAX_VALUE;
+
+            for (int j=0; j<i; j++) {
+                s = p.get(i,j) - (sum[i]+sum[j]) / (p.n-2);
+                if (s<C[i].d) {
+                    C[i].d = s;
+                    C[i].j = j;
+                }
+            }
+
+            for (int j=i+1; j<p.n; j++) {
+                s = p.get(j,i) - (sum[i]+sum[j]) / (p.n-2);
+                if (s<C[i].d) {
+                    C[i].d = s;
+                    C[i].j = j;
+                }
+            }
+        }
+    }
+
+    /**
+     * Splits rows [lo,hi) of a lower triangular matrix in two stripes with about the same
+     * number of cells.
+     */
+    private static int split(int lo, int hi) {
+        int mid = (int) Math.sqrt(((double) lo*lo + (double) hi*hi) / 2);
+        return Math.min(Math.max(mid,lo+1),hi-1);
+    }
+
+    private static class OriginalTask extends RecursiveTask<Min> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final PexMatrix p;
+        private final double[] sum;
+        private final double Sum;
+        private final int lo, hi;
+
+        OriginalTask(PexMatrix p, double[] sum, double Sum, int lo, int hi) {
+            this.p = p;
+            this.sum = sum;
+            this.Sum = Sum;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected Min compute() {
+            if (hi-lo < 2 || ((long) hi*hi - (long) lo*lo) / 2 < CELLS)
+                return originalMin(p,sum,Sum,lo,hi);
+
+            int mid = split(lo,hi);
+            OriginalTask left = new OriginalTask(p,sum,Sum,lo,mid);
+            OriginalTask right = new OriginalTask(p,sum,Sum,mid,hi);
+            right.fork();
+            Min l = left.compute();
+            Min r = right.join();
+            return r.s < l.s ? r : l;
+        }
+    }
+
+    private static class FastTask extends RecursiveTask<Integer> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final NJ.ClosestPair[] C;
+        private final int lo, hi;
+
+        FastTask(NJ.ClosestPair[] C, int lo, int hi) {
+            this.C = C;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected Integer compute() {
+            if (hi-lo < CELLS)
+                return fastMin(C,lo,hi);
+
+            int mid = (lo+hi) >>> 1;
+            FastTask left = new FastTask(C,lo,mid);
+            FastTask right = new FastTask(C,mid,hi);
+            right.fork();
+            int l = left.compute();
+            int r = right.join();
+            return C[r].d < C[l].d ? r : l;
+        }
+    }
+
+    private static class RapidTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final double[][] S;
+        private final int[][] I;
+        private final SortedRows R;
+        private final PexMatrix p;
+        private final int[] at;
+        private final int[] pos;
+        private final double[] sum;
+        private final double smax;
+        private final int n;
+        private final AtomicInteger next;
+        private final AtomicLong bound;
+        Min m = new Min();
+
+        RapidTask(double[][] S, int[][] I, int[] pos, double[] sum, double smax, int n,
+                  AtomicInteger next, AtomicLong bound) {
+            this.S = S;
+            this.I = I;
+            this.R = null;
+            this.p = null;
+            this.at = null;
+            this.pos = pos;
+            this.sum = sum;
+            this.smax = smax;
+            this.n = n;
+            this.next = next;
+            this.bound = bound;
+        }
+
+        RapidTask(SortedRows R, PexMatrix p, int[] pos, int[] at, double[] sum, double smax, int n,
+                  AtomicInteger next, AtomicLong bound) {
+            this.S = null;
+            this.I = null;
+            this.R = R;
+            this.p = p;
+            this.at = at;
+            this.pos = pos;
+            this.sum = sum;
+            this.smax = smax;
+            this.n = n;
+            this.next = next;
+            this.bound = bound;
+        }
+
+        @Override
+        protected void compute() {
+            for (;;) {
+                int hi = next.getAndAdd(-CHUNK);
+                if (hi <= 0)
+                    return;
+                for (int i=hi-1; i>=Math.max(hi-CHUNK,0); i--)
+                    if (R == null)
+                        rapidMin(S,I,pos,sum,smax,n,i,m,bound);
+                    else
+                        R.min(p,pos,at,sum,smax,n,i,m,bound);
+            }
+        }
+    }
+
+    private static class ClosestTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final PexMatrix p;
+        private final double[] sum;
+        private final NJ.ClosestPair[] C;
+        private final int[] rows;
+        private final int lo, hi;
+
+        ClosestTask(PexMatrix p, double[] sum, NJ.ClosestPair[] C, int[] rows, int lo, int hi) {
+            this.p = p;
+            this.sum = sum;
+            this.C = C;
+            this.rows = rows;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected void compute() {
+            // Every closest pair rebuilt scans a whole row:
+            if ((long) (hi-lo) * p.n < CELLS || hi-lo < 2) {
+                closestPairs(p,sum,C,rows,lo,hi);
+                return;
+            }
+
+            int mid = (lo+hi) >>> 1;
+            invokeAll(new ClosestTask(p,sum,C,rows,lo,mid),
+                      new ClosestTask(p,sum,C,rows,mid,hi));
+        }
+    }
+}
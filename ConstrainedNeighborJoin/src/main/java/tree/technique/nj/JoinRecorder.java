@@ -0,0 +1,212 @@
+package tree.technique.nj;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * The joins made by the NJ implementations, recorded as a table of nodes.
+ *
+ * Nodes are numbered by position: the n objects of the matrix are nodes 0 to n-1 and every
+ * join adds a new node after them.  Each new node has two children, except for the last
+ * one, which joins the three remaining nodes.  The table is kept in primitive arrays: the
+ * id and the parent of every node, and for every new node its children with their branch
+ * lengths.  Ids of new nodes are assigned in creation order, starting right after the
+ * largest object id.
+ *
+ * A Newick representation may be written from the table with writeNewick().
+ */
+public class JoinRecorder {
+
+    private final int n;
+    private int size;
+    private int nextId;
+    private int triple = -1;  // the node with three children
+    private final int[] ids;
+    private final int[] parent;
+    private final int[] children;  // children of node x start at children[2*(x-n)]
+    private final double[] lengths;  // lengths[k] is the branch length to children[k]
+    private final String[] labels;
+
+    /**
+     * Creates a table holding the n objects of a matrix.
+     *
+     * @param n The number of objects.
+     * @param ids The object ids, or null to number objects from 0 to n-1.
+     * @param labels The object labels, used in the Newick representation, or null to use ids.
+     */
+    public JoinRecorder(int n, int[] ids, String[] labels) {
+        this.n = n;
+        this.size = n;
+        this.labels = labels;
+        this.ids = new int[2*n];
+        this.parent = new int[2*n];
+        this.children = new int[2*n+1];
+        this.lengths = new double[2*n+1];
+
+        int maxId = Integer.MIN_VALUE;
+        for (int i=0; i<n; i++) {
+            this.ids[i] = ids == null ? i : ids[i];
+            this.parent[i] = -1;
+            if (this.ids[i] > maxId)
+                maxId = this.ids[i];
+        }
+        nextId = maxId+1;
+    }
+
+    /**
+     * Records the join of nodes a and b.
+     *
+     * @param a A node.
+     * @param b Another node.
+     * @param la The branch length from the new node to a.
+     * @param lb The branch length from the new node to b.
+     * @return the new node.
+     */
+    public int join(int a, int b, double la, double lb) {
+        int x = add();
+        link(x,0,a,la);
+        link(x,1,b,lb);
+        return x;
+    }
+
+    /**
+     * Records the join of the three last nodes a, b and c.
+     *
+     * @return the new node, that is the root of the tree.
+     */
+    public int join(int a, int b, int c, double la, double lb, double lc) {
+        int x = add();
+        link(x,0,a,la);
+        link(x,1,b,lb);
+        link(x,2,c,lc);
+        triple = x;
+        return x;
+    }
+
+    private int add() {
+        int x = size++;
+        ids[x] = nextId++;
+        parent[x] = -1;
+        return x;
+    }
+
+    private void link(int x, int k, int child, double length) {
+        children[2*(x-n)+k] = child;
+        lengths[2*(x-n)+k] = length;
+        parent[child] = x;
+    }
+
+    /**
+     * Returns the number of objects, that are the leaves of the tree.
+     */
+    public int getLeafCount() {
+        return n;
+    }
+
+    /**
+     * Returns the number of nodes recorded.
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Returns the last node recorded, that is the root once every join is done.
+     */
+    public int getRoot() {
+        return size-1;
+    }
+
+    public int getId(int x) {
+        return ids[x];
+    }
+
+    /**
+     * Returns the parent of node x, or -1 if x has not been joined.
+     */
+    public int getParent(int x) {
+        return parent[x];
+    }
+
+    public int getChildCount(int x) {
+        if (x < n)
+            return 0;
+        return x == triple ? 3 : 2;
+    }
+
+    /**
+     * Returns the kth child of node x.
+     */
+    public int getChild(int x, int k) {
+        return children[2*(x-n)+k];
+    }
+
+    /**
+     * Returns the branch length from node x to its kth child.
+     */
+    public double getLength(int x, int k) {
+        return lengths[2*(x-n)+k];
+    }
+
+    /**
+     * Writes the tree in Newick format, as in ((a:1.0,b:2.0)7:0.5,c:1.5,d:3.0)8;
+     * Objects are written by their labels (or ids if there are no labels) and new nodes
+     * by their ids.  The tree is walked without recursion, so deep trees may be written.
+     *
+     * @param out The writer.  It is neither buffered nor closed here.
+     * @throws IOException If an IO error occurs.
+     */
+    public void writeNewick(Writer out) throws IOException {
+
+        int root = getRoot();
+        if (root < n) {
+            out.write(name(root));
+            out.write(";");
+            return;
+        }
+
+        // A stack of nodes and the next child of each one to be written:
+        int[] stack = new int[size];
+        int[] next = new int[size];
+        int top = 0;
+        stack[0] = root;
+        next[0] = 0;
+        out.write("(");
+
+        while (top >= 0) {
+            int x = stack[top];
+            int k = next[top];
+
+            if (k < getChildCount(x)) {
+                next[top]++;
+                if (k > 0)
+                    out.write(",");
+                int c = getChild(x,k);
+                if (c < n) {
+                    out.write(name(c));
+                    out.write(":");
+                    out.write(Double.toString(getLength(x,k)));
+                }
+                else {
+                    out.write("(");
+                    stack[++top] = c;
+                    next[top] = 0;
+                }
+            }
+            else {
+                out.write(")");
+                out.write(Integer.toString(ids[x]));
+                top--;
+                if (top >= 0) {
+                    out.write(":");
+                    out.write(Double.toString(getLength(stack[top],next[top]-1)));
+                }
+            }
+        }
+        out.write(";");
+    }
+
+    private String name(int x) {
+        return labels != null && labels[x] != null ? labels[x] : Integer.toString(ids[x]);
+    }
+}
@@ -0,0 +1,276 @@
+package tree.technique.nj;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import tree.basics.ContentTree;
+import tree.basics.Tree;
+
+/**
+ * The leaf promotion of NJ.promoteLeafs, on an indexed view of the tree.
+ *
+ * The nodes are visited in the order of the nodes list, where children come before their
+ * parents in trees built by NJ, and every step is the one of the original procedure, so the
+ * tree promoted is the same.  What the procedure asked the tree for in linear time is kept
+ * in indices updated in logarithmic time instead: a Fenwick tree of the nodes not removed
+ * gives the node at a position of the list, a segment tree of the levels gives the root as
+ * Tree.getRootId does, and the nodes sharing an id are chained in list order.  Removed nodes
+ * are only dropped from the tree at the end, all at once.
+ */
+class LeafPromotion {
+
+    private final ContentTree[] N;  // The nodes, in the order of the nodes list.
+    private final IdentityHashMap<ContentTree,Integer> slot = new IdentityHashMap<ContentTree,Integer>();
+    private final boolean[] removed;
+    private int size;
+
+    private final int[] count;      // Fenwick tree of the nodes not removed.
+    private final int top;          // The highest power of 2 not larger than N.length.
+
+    private final int leaves;       // The leaves of the segment tree, a power of 2.
+    private final int[] best;       // The last node with the highest level below every segment tree node, -1 if none.
+
+    private final HashMap<Integer,Integer> first = new HashMap<Integer,Integer>();  // The first node with each id.
+    private final int[] nextSame;   // The next node with the same id, -1 if none.
+
+    private LeafPromotion(Tree t) {
+        int n = t.getSize();
+        N = t.getNodes().toArray(new ContentTree[n]);
+        removed = new boolean[n];
+        size = n;
+
+        count = new int[n+1];
+        for (int i=1; i<=n; i++) {
+            count[i]++;
+            int j = i + (i & -i);
+            if (j <= n)
+                count[j] += count[i];
+        }
+        int b = 1;
+        while (2*b <= n)
+            b *= 2;
+        top = b;
+
+        int m = 1;
+        while (m < n)
+            m *= 2;
+        leaves = m;
+        best = new int[2*m];
+        for (int i=0; i<m; i++)
+            best[m+i] = i < n ? i : -1;
+        for (int i=m-1; i>=1; i--)
+            best[i] = better(best[2*i],best[2*i+1]);
+
+        nextSame = new int[n];
+        HashMap<Integer,Integer> last = new HashMap<Integer,Integer>();
+        for (int i=0; i<n; i++) {
+            slot.put(N[i],i);
+            nextSame[i] = -1;
+            Integer id = N[i].getId();
+            Integer l = last.put(id,i);
+            if (l == null)
+                first.put(id,i);
+            else
+                nextSame[l] = i;
+        }
+    }
+
+    /**
+     * Promotes the leaves of a tree, as NJ.promoteLeafs does.
+     */
+    static void promote(Tree t) {
+        if (t.getSize() == 0)
+            return;
+        new LeafPromotion(t).run(t);
+    }
+
+    private void run(Tree t) {
+
+        ContentTree virtualNode = null; //current virtual node
+        ContentTree parentVirtualNode = null; //current virtual node parent
+        ContentTree childrenParentVirtualNode = null; //current virtual node son
+
+        for (int i=0;i<size;i++) {
+            ContentTree node = get(i);
+            if ((!node.isValid())&&(node.getId() != rootId())) { //only virtual nodes, and no roots (highest level)
+                virtualNode = node;
+                parentVirtualNode = byId(virtualNode.getParent());
+                if (parentVirtualNode != null && parentVirtualNode.hasChildren()) {
+                    for (int j=0;j<parentVirtualNode.getNumChildren();j++) {
+                        //analysing the other son...
+                        if (parentVirtualNode.getChildrenId(j) == virtualNode.getId())
+                            continue;
+                        childrenParentVirtualNode = byId(parentVirtualNode.getChildrenId(j));
+                        if (childrenParentVirtualNode == null||!childrenParentVirtualNode.isValid()||childrenParentVirtualNode.hasChildren())
+                            continue;
+
+                        //Pattern found, performing changing...
+                        if (virtualNode.hasChildren()) {
+                            for (int k=0;k<virtualNode.getNumChildren();k++) {
+                                ContentTree child = byId(virtualNode.getChildrenId(k));
+                                if (child != null) {
+                                    child.setParent(childrenParentVirtualNode.getId());
+                                    float d = virtualNode.getDistChildren(k) +
+                                            (parentVirtualNode.getDistChildren(parentVirtualNode.getChildrenIndex(virtualNode.getId()))/2) +
+                                            (parentVirtualNode.getDistChildren(parentVirtualNode.getChildrenIndex(childrenParentVirtualNode.getId()))/4);
+                                    if (childrenParentVirtualNode.getChildrenId(0) == -1) {
+                                        childrenParentVirtualNode.setChildrenId(0,virtualNode.getChildrenId(k));
+                                        childrenParentVirtualNode.setDistChildren(0,d);
+                                    } else {
+                                        childrenParentVirtualNode.setChildrenId(1,virtualNode.getChildrenId(k));
+                                        childrenParentVirtualNode.setDistChildren(1,d);
+                                    }
+                                }
+                            }
+                        }
+                        //Setting promoted node father...
+                        childrenParentVirtualNode.setParent(parentVirtualNode.getParent());
+                        setLevel(childrenParentVirtualNode,parentVirtualNode.getLevel());
+                        ContentTree grandParent = parentVirtualNode.getParent() != -1 ? byId(parentVirtualNode.getParent()) : null;
+                        if (grandParent != null && grandParent.hasChildren()) {
+                            //In this case, a node does not appear as son of the other, and vice-versa, and it is not removed
+                            //from the list of the other, nor the other added on the list of this node
+                            if ((byId(grandParent.getParent()) != null)&&(grandParent.getParent() == parentVirtualNode.getId())) {
+                                byId(childrenParentVirtualNode.getParent()).setParent(childrenParentVirtualNode.getId());
+                                //These are the last nodes (roots), setting their levels to equal values
+                                if (grandParent.getLevel() > childrenParentVirtualNode.getLevel()) {
+                                    setLevel(childrenParentVirtualNode,grandParent.getLevel());
+                                } else {
+                                    ContentTree p = byId(childrenParentVirtualNode.getParent());
+                                    if (p != null)
+                                        setLevel(p,childrenParentVirtualNode.getLevel());
+                                }
+                            } else {
+                                //collecting the distance between the promoted node and its parent...
+                                int ind = grandParent.getChildrenIndex(parentVirtualNode.getId());
+                                float k = grandParent.getDistChildren(ind);
+                                float b = parentVirtualNode.getDistChildren(parentVirtualNode.getChildrenIndex(virtualNode.getId()));
+                                float a = parentVirtualNode.getDistChildren(parentVirtualNode.getChildrenIndex(childrenParentVirtualNode.getId()));
+                                float dp = k + b/2 + a/2;
+                                if (ind != -1) {
+                                    grandParent.setChildrenId(ind,childrenParentVirtualNode.getId());
+                                    grandParent.setDistChildren(ind,dp);
+                                }
+                            }
+                        }
+                        parentVirtualNode.setParent(-1);
+                        virtualNode.setParent(-1);
+                        //If the parentVirtualNode has 3 children, it is the tree root. It is excluded, so 2 nodes will last,
+                        //and they will be joined, forming the new tree.
+                        if (parentVirtualNode.getNumChildren() == 3) {
+                            for (int x=0;x<parentVirtualNode.getNumChildren();x++) {
+                                if (parentVirtualNode.getChildrenId(x) != childrenParentVirtualNode.getId()&&
+                                    parentVirtualNode.getChildrenId(x) != virtualNode.getId()) {
+                                    childrenParentVirtualNode.setParent(parentVirtualNode.getChildrenId(x));
+                                    ContentTree other = byId(parentVirtualNode.getChildrenId(x));
+                                    if (other != null) {
+                                        other.setParent(childrenParentVirtualNode.getId());
+                                        //In this case, the parentVirtualNode level was the highest one, so its children
+                                        //will be set with this level, because they will be the new roots.
+                                        setLevel(other,parentVirtualNode.getLevel());
+                                    }
+                                    setLevel(childrenParentVirtualNode,parentVirtualNode.getLevel());
+                                }
+                            }
+                        }
+                        remove(parentVirtualNode);
+                        remove(virtualNode);
+                        virtualNode = null;
+                        i--;
+                        //The root node is the only one that has 3 children, and the process can reach this part before
+                        //the last one, so the other children are not analysed once the change is done.
+                        break;
+                    }
+                }
+            }
+        }
+
+        HashSet<ContentTree> gone = new HashSet<ContentTree>();
+        for (int i=0; i<N.length; i++)
+            if (removed[i])
+                gone.add(N[i]);
+        t.removeNodes(gone);
+    }
+
+    /**
+     * Returns the node at position i of the nodes list.
+     */
+    private ContentTree get(int i) {
+        return N[find(i)];
+    }
+
+    /**
+     * Returns the slot of the node at position i of the nodes list.
+     */
+    private int find(int i) {
+        int s = 0;
+        int k = i+1;
+        for (int b=top; b>0; b/=2)
+            if (s+b <= N.length && count[s+b] < k) {
+                s += b;
+                k -= count[s];
+            }
+        return s;
+    }
+
+    /**
+     * Returns the first node with an id on the nodes list, as Tree.getNodeById does.
+     */
+    private ContentTree byId(int id) {
+        Integer f = first.get(id);
+        if (f == null)
+            return null;
+        int s = f;
+        while (s != -1 && removed[s])
+            s = nextSame[s];
+        if (s != f) {
+            if (s == -1)
+                first.remove(id);
+            else
+                first.put(id,s);
+        }
+        return s == -1 ? null : N[s];
+    }
+
+    /**
+     * Returns the id of the root, as Tree.getRootId does: the last node with the highest
+     * level, or 0 if that is the first node only.
+     */
+    private int rootId() {
+        int r = best[1];
+        return r == find(0) ? 0 : N[r].getId();
+    }
+
+    private int better(int a, int b) {
+        if (a == -1)
+            return b;
+        if (b == -1)
+            return a;
+        return N[a].getLevel() > N[b].getLevel() ? a : b;
+    }
+
+    private void setLevel(ContentTree node, int level) {
+        node.setLevel(level);
+        Integer s = slot.get(node);
+        if (s != null && !removed[s])
+            update(s);
+    }
+
+    private void update(int s) {
+        int i = (leaves+s)/2;
+        best[leaves+s] = removed[s] ? -1 : s;
+        for ( ; i>=1; i/=2)
+            best[i] = better(best[2*i],best[2*i+1]);
+    }
+
+    private void remove(ContentTree node) {
+        Integer s = slot.get(node);
+        if (s == null || removed[s])
+            return;
+        removed[s] = true;
+        size--;
+        for (int i=s+1; i<=N.length; i+=i & -i)
+            count[i]--;
+        update(s);
+    }
+}
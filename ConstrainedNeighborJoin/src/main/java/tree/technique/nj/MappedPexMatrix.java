@@ -0,0 +1,219 @@
+package tree.technique.nj;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A PexMatrix whose distances are kept out of the Java heap, in a memory-mapped file.
+ *
+ * The packed lower triangular matrix is laid out as in PexMatrix, as 8-byte doubles or
+ * 4-byte floats, and mapped in segments of 2^27 distances, since a single mapping is
+ * limited to 2GB.
+ * The field M is not used.  Large matrices are then limited by the disk and the
+ * address space rather than by the maximum heap size.
+ *
+ * The backing file is a temporary file that is deleted by release().  A matrix stored by
+ * BinaryDistanceMatrix may also be loaded from its file, as floats or doubles: the file is
+ * only read, and its distances are copied as stored into the backing file, that the NJ
+ * then rewrites.  A private mapping of the file itself would need it to be writable, and
+ * every page rewritten would become anonymous memory, so that the matrix would end up in
+ * RAM as the joins go.  The copy costs the disk space of the distances once more.  When
+ * the file holds floats, the distances set by the NJ are rounded to floats as well.
+ */
+public class MappedPexMatrix extends PexMatrix {
+
+  private static final int SHIFT = 27;
+  private static final int MASK = (1 << SHIFT) - 1;
+
+  private File file;
+  private boolean floats;
+  private RandomAccessFile raf;
+  private MappedByteBuffer[] segments;
+
+  /**
+   * Creates a record with room for a n x n matrix, all distances set to zero.
+   *
+   * @param n The matrix dimension.
+   * @param dir The directory for the backing file, or null for the default temporary
+   * directory.
+   * @throws IOException If the backing file cannot be created or mapped.
+   */
+  public MappedPexMatrix(int n, File dir) throws IOException {
+    this(n,dir,false);
+  }
+
+  /**
+   * Creates a record with room for a n x n matrix, all distances set to zero.
+   *
+   * @param n The matrix dimension.
+   * @param dir The directory for the backing file, or null for the default temporary
+   * directory.
+   * @param floats True to store distances as 4-byte floats, false for doubles.
+   * @throws IOException If the backing file cannot be created or mapped.
+   */
+  public MappedPexMatrix(int n, File dir, boolean floats) throws IOException {
+    this.n = n;
+    this.floats = floats;
+    create(dir);
+
+    map(ByteOrder.nativeOrder());
+  }
+
+  /**
+   * Copies a packed n x n matrix stored in an existing file into a temporary file in the
+   * default temporary directory, and maps the copy.
+   *
+   * @param n The matrix dimension.
+   * @param source The file.  It is only read.
+   * @param start The position of D10 in the file.
+   * @param floats True if the distances are stored as 4-byte floats, false for doubles.
+   * @param order The byte order of the distances.
+   * @throws IOException If the file cannot be copied or mapped.
+   */
+  MappedPexMatrix(int n, File source, long start, boolean floats, ByteOrder order) throws IOException {
+    this.n = n;
+    this.floats = floats;
+    create(null);
+
+    long size = offset(n)*(floats ? 4 : 8);
+    FileChannel to = raf.getChannel();
+    RandomAccessFile in = new RandomAccessFile(source,"r");
+    try {
+      FileChannel from = in.getChannel();
+      for (long k=0; k<size; ) {
+        long r = from.transferTo(start+k,size-k,to.position(k));
+        if (r <= 0)
+          throw new IOException("Could not copy the distances of "+source);
+        k += r;
+      }
+    }
+    catch (IOException e) {
+      release();
+      throw e;
+    }
+    finally {
+      in.close();
+    }
+
+    map(order);
+  }
+
+  /**
+   * Creates the backing file, with room for the matrix.
+   */
+  private void create(File dir) throws IOException {
+    file = File.createTempFile("pex",".dmat",dir);
+    file.deleteOnExit();
+    raf = new RandomAccessFile(file,"rw");
+    raf.setLength(offset(n)*(floats ? 4 : 8));
+  }
+
+  private void map(ByteOrder order) throws IOException {
+    long size = offset(n);
+    int width = floats ? 4 : 8;
+
+    FileChannel channel = raf.getChannel();
+    segments = new MappedByteBuffer[(int) ((size + MASK) >>> SHIFT)];
+    for (int s=0; s<segments.length; s++) {
+      long first = (long) s << SHIFT;
+      long length = Math.min(size-first,MASK+1L);
+      segments[s] = channel.map(FileChannel.MapMode.READ_WRITE,first*width,length*width);
+      segments[s].order(order);
+    }
+  }
+
+  /**
+   * The position of Di0 in the packed matrix.
+   */
+  private static long offset(int i) {
+    return (long) i*(i-1)/2;
+  }
+
+  private double read(long k) {
+    if (floats)
+      return segments[(int) (k >>> SHIFT)].getFloat(((int) k & MASK) << 2);
+    return segments[(int) (k >>> SHIFT)].getDouble(((int) k & MASK) << 3);
+  }
+
+  private void write(long k, double d) {
+    if (floats)
+      segments[(int) (k >>> SHIFT)].putFloat(((int) k & MASK) << 2, (float) d);
+    else
+      segments[(int) (k >>> SHIFT)].putDouble(((int) k & MASK) << 3, d);
+  }
+
+  @Override
+  public double get(int i, int j) {
+    return read(offset(i)+j);
+  }
+
+  @Override
+  public void set(int i, int j, double d) {
+    write(offset(i)+j,d);
+  }
+
+  @Override
+  public double dist(int i, int j) {
+    if (i > j)
+      return read(offset(i)+j);
+    else if (i < j)
+      return read(offset(j)+i);
+    else
+      return 0;
+  }
+
+  @Override
+  public void setDist(int i, int j, double d) {
+    if (i > j)
+      write(offset(i)+j,d);
+    else
+      write(offset(j)+i,d);
+  }
+
+  @Override
+  public double rowSum(int i) {
+    if (floats)
+      return compensatedRowSum(i);
+
+    double s = 0;
+    for (int k=0; k<i; k++)
+      s += get(i,k);
+    for (int k=i+1; k<n; k++)
+      s += get(k,i);
+    return s;
+  }
+
+  @Override
+  public double round(double d) {
+    return floats ? (float) d : d;
+  }
+
+  @Override
+  public void moveRow(int from, int to) {
+    if (from == to)
+      return;
+
+    for (int k=0; k<n; k++)
+      if (k != from && k != to)
+        setDist(to,k,dist(from,k));
+  }
+
+  /**
+   * Unmaps the matrix and deletes the backing file.
+   */
+  @Override
+  public void release() {
+    segments = null;
+    try {
+      raf.close();
+    }
+    catch (IOException e) {
+      // Nothing to be done, the mapping is dropped anyway.
+    }
+    file.delete();
+  }
+}
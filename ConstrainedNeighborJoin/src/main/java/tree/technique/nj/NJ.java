@@ -6,7 +6,9 @@ import java.util.*;
 import javax.swing.JOptionPane;
 import tree.basics.ContentTree;
 import tree.basics.Tree;
+import tree.implementation.DistanceMatrixBuilder;
 import tree.interfaces.DistanceMatrix;
+import tree.interfaces.Matrix;
 
 /**
  * Implementations of NJ.
@@ -21,6 +23,10 @@ import tree.interfaces.DistanceMatrix;
  *  { 7, 0 },
  *  { 8, 5, 0 },
  *  {11, 8, 5, 0 }}
+ *
+ * which is given packed row by row, without the main diagonal, in a PexMatrix:
+ *
+ * { 7, 8, 5, 11, 8, 5 }
  *  
  * @author Guilherme P. Telles (techniques implementation), Jose Gustavo S. Paiva (integration implementation).
 */
@@ -30,7 +36,9 @@ public class NJ {
 
         ORIGINAL("Original Neighbor-Joining"),
         FAST("Fast Neighbor-Joining"),
-        RAPID("Rapid Neighbor-Joining");
+        RAPID("Rapid Neighbor-Joining"),
+        RELAXED("Relaxed Neighbor-Joining"),
+        AUTO("Automatic Neighbor-Joining");
 
         private NJAlgorithmType(String name) {
             this.name = name;
@@ -44,14 +52,30 @@ public class NJ {
         private final String name;
     }
 
+    /**
+    * The closest pair of a row in Fast NJ.
+    */
+    static class ClosestPair {
+        public int j;
+        public double d;
+    }
+
     private boolean promotion = false;
+    private boolean offHeap = false;
+    private boolean floats = false;
+    private boolean inPlace = false;
+    private long rapidMemory = 0;
+    private boolean collapse = false;
     private NJAlgorithmType type;
+    private NJPlanner.Plan plan;
     
     /**
     * Constructor of the NJ tree generator
     *
     * @param pnj True if the promotion leaf procedure has to be executed after the tree construction, false if not
-    * @param type Algorithm to be used (Fast, Original or Rapid)
+    * @param type Algorithm to be used (Fast, Original, Rapid or Relaxed), or Auto for Rapid NJ, or
+    * Original NJ if Rapid NJ does not fit in the heap (see NJPlanner). Fast and Relaxed NJ are
+    * heuristics, whose trees may differ from those of NJ, so they are only run when asked for
     *
 
     */
@@ -60,164 +84,219 @@ public class NJ {
         this.type = type;
     }
 
+    /**
+    * Sets where the distance matrix is stored while the tree is constructed.
+    *
+    * @param offHeap True to keep the distances in a memory-mapped temporary file (see MappedPexMatrix),
+    * false to keep them on the Java heap
+    */
+    public void setOffHeap(boolean offHeap) {
+        this.offHeap = offHeap;
+    }
+
+    /**
+    * Sets the precision the distance matrix is stored with while the tree is constructed.
+    *
+    * @param floats True to store distances as floats (see FloatPexMatrix), in half the memory, 
+    * false to store them as doubles
+    */
+    public void setFloatPrecision(boolean floats) {
+        this.floats = floats;
+    }
+
+    /**
+    * Sets whether execute(DistanceMatrix) reads the distances in place, rather than copying them.
+    *
+    * @param inPlace True to always read the distances from the storage of the DistanceMatrix (see
+    * DistanceMatrixView), more slowly but copying only the distances of new nodes, whether or not
+    * the matrix is set off heap; false to copy them, unless the copy does not fit in the heap
+    */
+    public void setInPlace(boolean inPlace) {
+        this.inPlace = inPlace;
+    }
+
+    /**
+    * Bounds the memory taken by the sorted rows of Rapid NJ, that otherwise take about 1.5 times
+    * the memory of a matrix of doubles.
+    *
+    * @param bytes The bytes the sorted rows may take (see rapidNJ(PexMatrix,int,long)), or 0 for
+    * no bound
+    */
+    public void setRapidMemory(long bytes) {
+        this.rapidMemory = bytes;
+    }
+
+    /**
+    * Sets whether objects with equal rows, at distance 0 and at the same distance from every other
+    * object, are collapsed into one before the joins (see Duplicates). Each group is then joined
+    * first in the tree, by zero-length cherries, and the joins run on a smaller matrix.
+    *
+    * @param collapse True to collapse duplicate objects, false to join every object of the matrix
+    */
+    public void setCollapseDuplicates(boolean collapse) {
+        this.collapse = collapse;
+    }
+
+    /**
+    * Returns the plan of the last execute(), also reported with its timings.
+    *
+    * @return The implementation run and its estimated heap and time (see NJPlanner), or null
+    * before the first execute()
+    */
+    public NJPlanner.Plan getPlan() {
+        return plan;
+    }
+
+    /**
+    * Prints the reference of an implementation.
+    *
+    * @param type The implementation, other than AUTO.
+    * @param rapidMemory The bound on the sorted rows of Rapid NJ, 0 for none.
+    */
+    static void cite(NJAlgorithmType type, long rapidMemory) {
+        switch (type) {
+            case ORIGINAL:
+                System.out.println("ORIGINAL NJ: N. Saitou and M. Nei. "
+                    + "The Neighbor-Joining Method: A New Method for Reconstructing Phylogenetic Trees. "
+                    + "Molecular Biology and Evolution, 4(4):406–425, 1987");
+                break;
+            case FAST:
+                System.out.println("FAST NJ: I. Elias and J. Lagergren. "
+                    + "Fast Neighbor Joining. In Proceedings of the 32nd International Colloquium on Automata, "
+                    + "Languages and Programming (ICALP’05), volume 3580, pages 1263–1274, 2005");
+                break;
+            case RAPID:
+                if (rapidMemory > 0)
+                    System.out.println("RAPID NJ: M. Simonsen, T. Mailund, and C. N. Pedersen. "
+                        + "Building very large neighbour-joining trees. In Proceedings of BIOINFORMATICS 2010, pages 26-32");
+                else
+                    System.out.println("RAPID NJ: M. Simonsen, T. Mailund, and C. N. Pedersen. "
+                        + "Rapid Neighbour-Joining. In Proceedings of WABI 2008, pages 113–122, Karlsruhe, Germany, September 2008");
+                break;
+            case RELAXED:
+                System.out.println("RELAXED NJ: J. Sheneman, J. Evans, and J. A. Foster. "
+                    + "Clearcut: a fast implementation of relaxed neighbor joining. "
+                    + "Bioinformatics, 22(22):2823–2824, 2006");
+                break;
+        }
+    }
+
     /**
     * NJ as proposed by Saitou and Nei.
     *
     * @param p A lower triangular matrix.
-    * @return Hashmap containing the nodes of the constructed tree.
+    * @return The joins that build the tree.
     */
-    public static HashMap<Integer,Node> originalNJ(PexMatrix p) {
-        
-        System.out.println("ORIGINAL NJ: N. Saitou and M. Nei. "
-            + "The Neighbor-Joining Method: A New Method for Reconstructing Phylogenetic Trees. "
-            + "Molecular Biology and Evolution, 4(4):406–425, 1987");
+    public static JoinRecorder originalNJ(PexMatrix p) {
+        return originalNJ(p,1);
+    }
+
+    /**
+    * NJ as proposed by Saitou and Nei, searching for the pair to join with many threads.
+    *
+    * @param p A lower triangular matrix.
+    * @param threads The number of threads.
+    * @return The joins that build the tree.
+    */
+    public static JoinRecorder originalNJ(PexMatrix p, int threads) {
+        cite(NJAlgorithmType.ORIGINAL,0);
+        return originalJoins(p,threads);
+    }
+
+    /**
+    * As originalNJ(PexMatrix,int), without printing the reference.
+    */
+    static JoinRecorder originalJoins(PexMatrix p, int threads) {
         
         double Sum = 0;  // The distances sum.
         double[] sum = new double[p.n];  // The distances sum for node i:
         double[] joined = new double[p.n]; // Half of the distance between two nodes joined into a new node.
-        String[] newick = new String[p.n];
-        HashMap<Integer,Node> nodes = new HashMap<Integer,Node>();
-        int nextId = p.n;
-        int maxId = Integer.MIN_VALUE;
+        JoinRecorder joins = new JoinRecorder(p.n,p.ids,p.labels);
+        int[] node = new int[p.n];  // The tree node at each position of the matrix.
 
         for (int k=0; k<p.n; k++) {
-            newick[k] = p.ids == null ? Integer.toString(k) : Integer.toString(p.ids[k]);
-            sum[k] = 0;
-            nodes.put(Integer.parseInt(newick[k]),new Node(Integer.parseInt(newick[k])));
-            
-            if (Integer.parseInt(newick[k]) > maxId)
-                maxId = Integer.parseInt(newick[k]);
-
-            for (int x=0; x<k; x++) {
-                sum[k] += p.M[k][x];
-                Sum += p.M[k][x];
-            }
-            for (int x=k+1; x<p.n; x++) {
-                sum[k] += p.M[x][k];
-                Sum += p.M[x][k];
-            }
+            node[k] = k;
+            sum[k] = p.rowSum(k);
+            Sum += sum[k];
         }
-        
-        nextId = maxId+1;
 
-        while (p.n > 2) {
+        JoinEngine engine = new JoinEngine(threads);
+
+        // Joins pairs down to 3 nodes, that are joined together last:
+        while (p.n > 3) {
             // Evals S[i][j] and gets minimum:
-            double smin = Double.MAX_VALUE;
-            int imin=0, jmin=0;
-
-            for (int i=1; i<p.n; i++) {
-                for (int j=0; j<i; j++) {
-
-                    double s = (sum[i] - p.M[i][j] + sum[j] - p.M[i][j])/(2*(p.n-2)) +
-                                p.M[i][j]/2 + (Sum - sum[i] - sum[j] + p.M[i][j])/(p.n-2);
-                    if (s<smin) {
-                        smin = s;
-                        imin = i;
-                        jmin = j;
-                    }
-                }
-            }
+            JoinEngine.Min min = engine.originalMin(p,sum,Sum);
+            int imin = min.i, jmin = min.j;
 
             // Stores data on new node (imin,jmin) at jmin:
-            double dikmin = (sum[imin] - p.M[imin][jmin])/(p.n-2);
-            double djkmin = (sum[jmin] - p.M[imin][jmin])/(p.n-2);
-
-            String oldvalue = newick[jmin];
-
-            newick[jmin] = "(" +
-                            newick[imin] + ":" +
-                            new Formatter().format(Locale.US,"%1.2f",(p.M[imin][jmin]+dikmin-djkmin)/2-joined[imin]).toString() +
-                            "," +
-                            newick[jmin] + ":" +
-                            new Formatter().format(Locale.US,"%1.2f",(p.M[imin][jmin]+djkmin-dikmin)/2-joined[jmin]).toString() +
-                            ")" + Integer.toString(nextId);
-
-            int id = nextId;
-            nextId++;
-            Node node = new Node(id);
-            node.distance.add((p.M[imin][jmin]+dikmin-djkmin)/2-joined[imin]);
-            node.distance.add((p.M[imin][jmin]+djkmin-dikmin)/2-joined[jmin]);
-            if (newick[imin].lastIndexOf(")") != -1)
-                node.children.add(nodes.get(Integer.parseInt(newick[imin].substring(newick[imin].lastIndexOf(")")+1))));
-            else
-                node.children.add(nodes.get(Integer.parseInt(newick[imin])));
-            if (oldvalue.lastIndexOf(")") != -1)
-                node.children.add(nodes.get(Integer.parseInt(oldvalue.substring(oldvalue.lastIndexOf(")")+1))));
-            else
-                node.children.add(nodes.get(Integer.parseInt(oldvalue)));
-            nodes.put(id,node);
-
-            joined[jmin] = p.M[imin][jmin]/2;
+            double dmin = p.get(imin,jmin);
+            double dikmin = (sum[imin] - dmin)/(p.n-2);
+            double djkmin = (sum[jmin] - dmin)/(p.n-2);
+
+            node[jmin] = joins.join(node[imin],node[jmin],
+                                    (dmin+dikmin-djkmin)/2-joined[imin],
+                                    (dmin+djkmin-dikmin)/2-joined[jmin]);
+
+            joined[jmin] = dmin/2;
 
+            p.detachRow(jmin);
             sum[jmin] = 0;
             for (int k=0; k<jmin; k++)
                 if (k != imin) {
-                Sum -= p.M[jmin][k];
-                sum[k] -= p.M[jmin][k];
-                p.M[jmin][k] = (p.M[jmin][k] + (k<imin ? p.M[imin][k] : p.M[k][imin])) / 2;
-                Sum += p.M[jmin][k];
-                sum[k] += p.M[jmin][k];
-                sum[jmin] += p.M[jmin][k];
+                double d = p.get(jmin,k);
+                Sum -= d;
+                sum[k] -= d;
+                d = p.round((d + p.dist(imin,k)) / 2);
+                p.set(jmin,k,d);
+                Sum += d;
+                sum[k] += d;
+                sum[jmin] += d;
                 }
 
             for (int k=jmin+1; k<p.n; k++)
                 if (k != imin) {
-                Sum -= p.M[k][jmin];
-                sum[k] -= p.M[k][jmin];
-                p.M[k][jmin] = (p.M[k][jmin] + (k<imin ? p.M[imin][k] : p.M[k][imin])) / 2;
-                Sum += p.M[k][jmin];
-                sum[k] += p.M[k][jmin];
-                sum[jmin] += p.M[k][jmin];
+                double d = p.get(k,jmin);
+                Sum -= d;
+                sum[k] -= d;
+                d = p.round((d + p.dist(imin,k)) / 2);
+                p.set(k,jmin,d);
+                Sum += d;
+                sum[k] += d;
+                sum[jmin] += d;
                 }
 
-            sum[jmin] += p.M[imin][jmin];
+            sum[jmin] += dmin;
 
             // Moves n-1 to imin:
             for (int k=0; k<imin; k++) {
-                Sum -= p.M[imin][k];
-                sum[k] -= p.M[imin][k];
-                p.M[imin][k] = p.M[p.n-1][k];
+                Sum -= p.get(imin,k);
+                sum[k] -= p.get(imin,k);
             }
 
             for (int k=imin+1; k<p.n-1; k++) {
-                Sum -= p.M[k][imin];
-                sum[k] -= p.M[k][imin];
-                p.M[k][imin] = p.M[p.n-1][k];
+                Sum -= p.get(k,imin);
+                sum[k] -= p.get(k,imin);
             }
 
-            Sum -= p.M[p.n-1][imin];
+            Sum -= p.dist(p.n-1,imin);
 
-            newick[imin] = newick[p.n-1];
+            node[imin] = node[p.n-1];
             joined[imin] = joined[p.n-1];
-            sum[imin] = sum[p.n-1] - p.M[p.n-1][imin];
+            sum[imin] = sum[p.n-1] - p.dist(p.n-1,imin);
+            p.moveRow(p.n-1,imin);
             p.n--;
         }
 
+        engine.shutdown();
+
         // 3 points:
-        double x = (p.M[1][0]+p.M[2][0]-p.M[2][1])/2 - joined[0];
-        double y = (p.M[1][0]+p.M[2][1]-p.M[2][0])/2 - joined[1];
-        double z = (p.M[2][0]+p.M[2][1]-p.M[1][0])/2 - joined[2];
-
-        int id = nextId;
-        Node node = new Node(id);
-        node.distance.add(x);
-        node.distance.add(y);
-        node.distance.add(z);
-        if (newick[0].lastIndexOf(")") != -1)
-            node.children.add(nodes.get(Integer.parseInt(newick[0].substring(newick[0].lastIndexOf(")")+1))));
-        else
-            node.children.add(nodes.get(Integer.parseInt(newick[0])));
-        if (newick[1].lastIndexOf(")") != -1)
-            node.children.add(nodes.get(Integer.parseInt(newick[1].substring(newick[1].lastIndexOf(")")+1))));
-        else
-            node.children.add(nodes.get(Integer.parseInt(newick[1])));
-        if (newick[2].lastIndexOf(")") != -1)
-            node.children.add(nodes.get(Integer.parseInt(newick[2].substring(newick[2].lastIndexOf(")")+1))));
-        else
-            node.children.add(nodes.get(Integer.parseInt(newick[2])));
-        nodes.put(id,node);
-
-        return nodes;
+        double x = (p.get(1,0)+p.get(2,0)-p.get(2,1))/2 - joined[0];
+        double y = (p.get(1,0)+p.get(2,1)-p.get(2,0))/2 - joined[1];
+        double z = (p.get(2,0)+p.get(2,1)-p.get(1,0))/2 - joined[2];
+
+        joins.join(node[0],node[1],node[2],x,y,z);
+
+        return joins;
 
     }
 
@@ -227,73 +306,53 @@ public class NJ {
     * I. Elias, J. Lagergren. Fast Neighbor Joining. Proc. of ICALP 2005.  *
     * @param p A lower triangular distance matrix.  D is destroyed during processing.
     *
-    * @return Hashmap containing the nodes of the constructed tree.
+    * @return The joins that build the tree.
     */
-    public static HashMap<Integer,Node> fastNJ(PexMatrix p) {
+    public static JoinRecorder fastNJ(PexMatrix p) {
+        return fastNJ(p,1);
+    }
 
-        class closestPair {
-            public int j;
-            public double d;
-        }
+    /**
+    * An implementation of Fast NJ, searching for the pair to join with many threads.
+    *
+    * @param p A lower triangular distance matrix.  D is destroyed during processing.
+    * @param threads The number of threads.
+    *
+    * @return The joins that build the tree.
+    */
+    public static JoinRecorder fastNJ(PexMatrix p, int threads) {
+        cite(NJAlgorithmType.FAST,0);
+        return fastJoins(p,threads);
+    }
 
-        System.out.println("FAST NJ: I. Elias and J. Lagergren. "
-            + "Fast Neighbor Joining. In Proceedings of the 32nd International Colloquium on Automata, "
-            + "Languages and Programming (ICALP’05), volume 3580, pages 1263–1274, 2005");
+    /**
+    * As fastNJ(PexMatrix,int), without printing the reference.
+    */
+    static JoinRecorder fastJoins(PexMatrix p, int threads) {
         
-        int nextId = p.n;
-        int maxId = Integer.MIN_VALUE;
-        String[] newick = new String[p.n];
-        HashMap<Integer,Node> nodes = new HashMap<Integer,Node>();
-        for (int i=0; i<p.n; i++) {
-            newick[i] = p.ids == null ? Integer.toString(i) : Integer.toString(p.ids[i]);
-            nodes.put(Integer.parseInt(newick[i]),new Node(Integer.parseInt(newick[i])));
-            if (Integer.parseInt(newick[i]) > maxId)
-                maxId = Integer.parseInt(newick[i]);
-        }
-        nextId = maxId+1;
+        JoinRecorder joins = new JoinRecorder(p.n,p.ids,p.labels);
+        int[] node = new int[p.n];  // The tree node at each position of the matrix.
+        for (int i=0; i<p.n; i++)
+            node[i] = i;
 
         // Evals the distances sum for node k:
         double[] sum = new double[p.n];
-        for (int k=0; k<p.n; k++) {
-            sum[k] = 0;
-            for (int x=0; x<k; x++)
-                sum[k] += p.M[k][x];
-            for (int x=k+1; x<p.n; x++)
-                sum[k] += p.M[x][k];
-        }
+        for (int k=0; k<p.n; k++)
+            sum[k] = p.rowSum(k);
 
-        closestPair[] C = new closestPair[p.n+1];
+        ClosestPair[] C = new ClosestPair[p.n+1];
         int c = p.n;
         // Builds the set of closest pairs:
-        for (int i=0; i<p.n; i++) {
-            C[i] = new closestPair();
-
-            C[i].d = Double.MAX_VALUE;
-
-            for (int j=0; j<i; j++) {
-                double s = p.M[i][j] - (sum[i]+sum[j]) / (p.n-2);
-                if (s<C[i].d) {
-                C[i].d = s;
-                C[i].j = j;
-                }
-            }
+        for (int i=0; i<p.n; i++)
+            C[i] = new ClosestPair();
 
-            for (int j=i+1; j<p.n; j++) {
-                double s = p.M[j][i] - (sum[i]+sum[j]) / (p.n-2);
-                if (s<C[i].d) {
-                    C[i].d = s;
-                    C[i].j = j;
-                }
-            }
-        }
+        JoinEngine engine = new JoinEngine(threads);
+        engine.closestPairs(p,sum,C,c,-1,-1,true);
 
         while (p.n > 3) {
 
             // Gets minimum:
-            int cmin = 0;
-            for (int i=1; i<c; i++)
-                if (C[i].d < C[cmin].d)
-                cmin = i;
+            int cmin = engine.fastMin(C,c);
 
             int imin, jmin;
 
@@ -308,69 +367,49 @@ public class NJ {
 
             // Data on new node (imin,jmin) will be stored at jmin.
             // Evals branch lengths Lik and Ljk:
-            double lik = 0.5 * (p.M[imin][jmin] + ((sum[imin]-sum[jmin])/(p.n-2)));
-            double ljk = p.M[imin][jmin] - lik;
+            double dmin = p.get(imin,jmin);
+            double lik = 0.5 * (dmin + ((sum[imin]-sum[jmin])/(p.n-2)));
+            double ljk = dmin - lik;
 
             // Updates tree:
-            String oldvalue = newick[jmin];
-
-            newick[jmin] = "(" +
-                newick[imin] + ":" +
-                new Formatter().format(Locale.US,"%.2f",lik).toString() +
-                "," +
-                newick[jmin] + ":" +
-                new Formatter().format(Locale.US,"%.2f",ljk).toString() +
-                ")" + Integer.toString(nextId);
-
-            int id = nextId;
-            nextId++;
-            Node node = new Node(id);
-            node.distance.add(Math.abs(lik));
-            node.distance.add(Math.abs(ljk));
-            if (newick[imin].lastIndexOf(")") != -1)
-                node.children.add(nodes.get(Integer.parseInt(newick[imin].substring(newick[imin].lastIndexOf(")")+1))));
-            else
-                node.children.add(nodes.get(Integer.parseInt(newick[imin])));
-            if (oldvalue.lastIndexOf(")") != -1)
-                node.children.add(nodes.get(Integer.parseInt(oldvalue.substring(oldvalue.lastIndexOf(")")+1))));
-            else
-                node.children.add(nodes.get(Integer.parseInt(oldvalue)));
-            nodes.put(id,node);
+            node[jmin] = joins.join(node[imin],node[jmin],Math.abs(lik),Math.abs(ljk));
 
             // Updates D and sum:
+            p.detachRow(jmin);
             sum[jmin] = 0;
             for (int k=0; k<jmin; k++)
                 if (k != imin) {
-                    sum[k] -= p.M[jmin][k];
-                    p.M[jmin][k] = (p.M[jmin][k] + (k<imin ? p.M[imin][k] : p.M[k][imin]) - p.M[imin][jmin]) / 2;
-                    sum[k] += p.M[jmin][k];
-                    sum[jmin] += p.M[jmin][k];
+                    double d = p.get(jmin,k);
+                    sum[k] -= d;
+                    d = p.round((d + p.dist(imin,k) - dmin) / 2);
+                    p.set(jmin,k,d);
+                    sum[k] += d;
+                    sum[jmin] += d;
                 }
 
             for (int k=jmin+1; k<p.n; k++)
                 if (k != imin) {
-                    sum[k] -= p.M[k][jmin];
-                    p.M[k][jmin] = (p.M[k][jmin] + (k<imin ? p.M[imin][k] : p.M[k][imin]) - p.M[imin][jmin]) / 2;
-                    sum[k] += p.M[k][jmin];
-                    sum[jmin] += p.M[k][jmin];
+                    double d = p.get(k,jmin);
+                    sum[k] -= d;
+                    d = p.round((d + p.dist(imin,k) - dmin) / 2);
+                    p.set(k,jmin,d);
+                    sum[k] += d;
+                    sum[jmin] += d;
                 }
 
-            sum[jmin] += p.M[imin][jmin];
+            sum[jmin] += dmin;
 
             // Moves n-1 onto imin:
 
-            for (int k=0; k<imin; k++) {
-                sum[k] -= p.M[imin][k];
-                p.M[imin][k] = p.M[p.n-1][k];
-            }
+            for (int k=0; k<imin; k++)
+                sum[k] -= p.get(imin,k);
 
-            for (int k=imin+1; k<p.n-1; k++) {
-                sum[k] -= p.M[k][imin];
-                p.M[k][imin] = p.M[p.n-1][k];
-            }
+            for (int k=imin+1; k<p.n-1; k++)
+                sum[k] -= p.get(k,imin);
 
-            newick[imin] = newick[p.n-1];
-            sum[imin] = sum[p.n-1] - p.M[p.n-1][imin];
+            node[imin] = node[p.n-1];
+            sum[imin] = sum[p.n-1] - p.dist(p.n-1,imin);
+            p.moveRow(p.n-1,imin);
 
             p.n--;
 
@@ -378,69 +417,24 @@ public class NJ {
 
             // Moves n-1 onto imin:
             c--;
-            closestPair a = C[imin];
+            ClosestPair a = C[imin];
             C[imin] = C[c];
             C[c] = a;
 
-            for (int i=0; i<c; i++) {
-
-                // The closest pairs for the new node, having j=imin or j=jmin must be rebuilt:
-                if (i == jmin || C[i].j == imin || C[i].j == jmin) {
-                    double s;
-                    C[i].d = Double.MAX_VALUE;
-
-                    for (int j=0; j<i; j++) {
-                        s = p.M[i][j] - (sum[i]+sum[j]) / (p.n-2);
-                        if (s<C[i].d) {
-                            C[i].d = s;
-                            C[i].j = j;
-                        }
-                    }
+            engine.closestPairs(p,sum,C,c,imin,jmin,false);
 
-                    for (int j=i+1; j<p.n; j++) {
-                        s = p.M[j][i] - (sum[i]+sum[j]) / (p.n-2);
-                        if (s<C[i].d) {
-                            C[i].d = s;
-                            C[i].j = j;
-                        }
-                    }
-                }
+        }
 
-                // Any other closest pair must be updated:
-                else {
-                    if(C[i].j == p.n)
-                        C[i].j = imin;
-                    }
+        engine.shutdown();
 
-            }
+        // 3 points:
+        double x = (p.get(1,0)+p.get(2,0)-p.get(2,1))/2;
+        double y = (p.get(1,0)+p.get(2,1)-p.get(2,0))/2;
+        double z = (p.get(2,0)+p.get(2,1)-p.get(1,0))/2;
 
-        }
+        joins.join(node[0],node[1],node[2],x,y,z);
 
-        // 3 points:
-        double x = (p.M[1][0]+p.M[2][0]-p.M[2][1])/2;
-        double y = (p.M[1][0]+p.M[2][1]-p.M[2][0])/2;
-        double z = (p.M[2][0]+p.M[2][1]-p.M[1][0])/2;
-
-        int id = nextId;
-        Node node = new Node(id);
-        node.distance.add(x);
-        node.distance.add(y);
-        node.distance.add(z);
-        if (newick[0].lastIndexOf(")") != -1)
-            node.children.add(nodes.get(Integer.parseInt(newick[0].substring(newick[0].lastIndexOf(")")+1))));
-        else
-            node.children.add(nodes.get(Integer.parseInt(newick[0])));
-        if (newick[1].lastIndexOf(")") != -1)
-            node.children.add(nodes.get(Integer.parseInt(newick[1].substring(newick[1].lastIndexOf(")")+1))));
-        else
-            node.children.add(nodes.get(Integer.parseInt(newick[1])));
-        if (newick[2].lastIndexOf(")") != -1)
-            node.children.add(nodes.get(Integer.parseInt(newick[2].substring(newick[2].lastIndexOf(")")+1))));
-        else
-            node.children.add(nodes.get(Integer.parseInt(newick[2])));
-        nodes.put(id,node);
-
-        return nodes;
+        return joins;
     }
 
     /**
@@ -451,292 +445,549 @@ public class NJ {
     *
     * @param p A lower triangular distance matrix.  D is destroyed during processing.
     * 
-    * @return Hashmap containing the nodes of the constructed tree.
+    * @return The joins that build the tree.
     */
-    public static HashMap<Integer,Node> rapidNJ(PexMatrix p) {
-
-        System.out.println("RAPID NJ: M. Simonsen, T. Mailund, and C. N. Pedersen. "
-            + "Rapid Neighbour-Joining. In Proceedings of WABI 2008, pages 113–122, Karlsruhe, Germany, September 2008");
-        
-        HashMap<Integer,Node> nodes = new HashMap<Integer,Node>();
-        int nextId = p.n;
-        int maxId = Integer.MIN_VALUE;
+    public static JoinRecorder rapidNJ(PexMatrix p) {
+        return rapidNJ(p,1);
+    }
 
-        // Makes room for a larger matrix:
+    /**
+    * An implementation of Rapid NJ, scanning the sorted rows with many threads that share the
+    * best value found as a bound.
+    *
+    * @param p A lower triangular distance matrix.  D is destroyed during processing.
+    * @param threads The number of threads.
+    * 
+    * @return The joins that build the tree.
+    */
+    public static JoinRecorder rapidNJ(PexMatrix p, int threads) {
+        cite(NJAlgorithmType.RAPID,0);
+        return rapidJoins(p,threads);
+    }
 
-        double[][] E = new double[2*p.n-3][];
+    /**
+    * As rapidNJ(PexMatrix,int), without printing the reference.
+    */
+    static JoinRecorder rapidJoins(PexMatrix p, int threads) {
+        
+        // Nodes are numbered from 0 to 2n-4, and a new node always gets a number larger than
+        // the others.  The matrix is not enlarged: the distances of a new node are stored at
+        // the position of one of the joined nodes and the last position is moved onto the
+        // position of the other one.  pos[i] has the position of node i in p, or -1 if node
+        // i has already been joined, and at[x] has the node stored at position x:
+        int[] pos = new int[2*p.n-3];
+        int[] at = new int[p.n];
         for (int i=0; i<p.n; i++)
-            E[i] = p.M[i];
-        p.M = E;
+            pos[i] = at[i] = i;
 
-        // Labels:
-        String[] newick = new String[2*p.n-3];
-        for (int i=0; i<p.n; i++) {
-            newick[i] = (p.ids == null ? Integer.toString(i) : Integer.toString(p.ids[i]));
-            nodes.put(Integer.parseInt(newick[i]),new Node(Integer.parseInt(newick[i])));
-            if (Integer.parseInt(newick[i]) > maxId)
-                maxId = Integer.parseInt(newick[i]);
-        }
-        nextId = maxId+1;
+        // The tree node of every node:
+        JoinRecorder joins = new JoinRecorder(p.n,p.ids,p.labels);
+        int[] node = new int[2*p.n-3];
+        for (int i=0; i<p.n; i++)
+            node[i] = i;
 
         // The sorted matrix S and the indices I:
         double S[][] = new double[2*p.n-3][];
-        int I[][] = new int[2*p.n-3][];   // I[i][j] has the position of S[i][j] in D[i].
+        int I[][] = new int[2*p.n-3][];   // I[i][j] has the node whose distance to i is S[i][j].
 
         for (int i=0; i<p.n; i++) {
             S[i] = new double[i+1];
             I[i] = new int[i+1];
 
             for (int j=0; j<i; j++)
-                S[i][j] = p.M[i][j];
-
-            Sort.qsort(S[i], I[i], 0, i);
+                S[i][j] = p.get(i,j);
         }
 
-        // Evals the distances sum for every node k and records the maximum sum:
+        Sort.sortRows(S,I,0,p.n,threads);
+
+        // Evals the distances sum for every node k and keeps the sums in a heap:
         double[] sum = new double[2*p.n-3];
-        double smax = Double.MIN_VALUE;
+        SumHeap heap = new SumHeap(2*p.n-3);
 
         for (int k=0; k<p.n; k++) {
-        sum[k] = 0;
-        for (int x=0; x<k; x++)
-            sum[k] += p.M[k][x];
-        for (int x=k+1; x<p.n; x++)
-            sum[k] += p.M[x][k];
-
-        if (sum[k]>smax)
-            smax = sum[k];
+            sum[k] = p.rowSum(k);
+            heap.add(k,sum[k]);
         }
 
-        // The last row in the matrix is l, the number of active rows is n:
+        // The last node is l-1, the number of active nodes is n:
         int l = p.n;
 
+        JoinEngine engine = new JoinEngine(threads);
+
         while (p.n > 3) {
 
             // Gets minimum:
-            double s, smin = Double.MAX_VALUE;
-            int imin=0, jmin=0;
-
-            for (int i=l-1; i>=0; i--)
-                if (p.M[i] != null)
-                    for (int j=0; j<i; j++)
-                        if (p.M[I[i][j]] != null)
-                            if (S[i][j] < Double.MAX_VALUE && S[i][j] - (sum[i]+smax) / (p.n-2) < smin) {
-                                    s = S[i][j] - (sum[i]+sum[I[i][j]]) / (p.n-2);
-                                    if (s < smin) {
-                                    smin = s;
-                                    imin = i;
-                                    jmin = I[i][j];
-                                }
-                            }
-                            else
-                                break;
-
-            // Data on new node (imin,jmin) will be stored at l.
+            double smax = heap.max(sum);
+            JoinEngine.Min min = engine.rapidMin(S,I,pos,sum,smax,l,p.n);
+            int imin = min.i, jmin = min.j;
+
+            // Data on new node (imin,jmin) will be stored at the position of jmin.
             // Evals branch lengths Lik and Ljk:
-            double lik = 0.5 * (p.M[imin][jmin] + ((sum[imin]-sum[jmin])/(p.n-2)));
-            double ljk = p.M[imin][jmin] - lik;
+            int pi = pos[imin], pj = pos[jmin];
+            double dmin = p.dist(pi,pj);
+            double lik = 0.5 * (dmin + ((sum[imin]-sum[jmin])/(p.n-2)));
+            double ljk = dmin - lik;
 
             // Updates tree:
-            newick[l] = "(" +
-                newick[imin] + ":" +
-                new Formatter().format(Locale.US,"%.2f",lik).toString() +
-                "," +
-                newick[jmin] + ":" +
-                new Formatter().format(Locale.US,"%.2f",ljk).toString() +
-                ")" + Integer.toString(nextId);//"A" + Integer.toString((l-n)/2);
-
-            int id = nextId;
-            nextId++;
-            Node node = new Node(id);
-            node.distance.add(lik);
-            node.distance.add(ljk);
-            if (newick[imin].lastIndexOf(")") != -1)
-                node.children.add(nodes.get(Integer.parseInt(newick[imin].substring(newick[imin].lastIndexOf(")")+1))));
-            else
-                node.children.add(nodes.get(Integer.parseInt(newick[imin])));
-            if (newick[jmin].lastIndexOf(")") != -1)
-                node.children.add(nodes.get(Integer.parseInt(newick[jmin].substring(newick[jmin].lastIndexOf(")")+1))));
-            else
-                node.children.add(nodes.get(Integer.parseInt(newick[jmin])));
-            nodes.put(id,node);
-
-            newick[imin] = newick[jmin] = null;
+            node[l] = joins.join(node[imin],node[jmin],lik,ljk);
 
             // Updates D, S, I, sum:
+            p.detachRow(pj);
             sum[l] = 0;
-            p.M[l] = new double[l+1];
             S[l] = new double[l+1];
             I[l] = new int[l+1];
 
-            for (int k=0; k<jmin; k++)
-                if (k != imin && p.M[k] != null) {
-                    sum[k] -= p.M[jmin][k];
-                    p.M[l][k] = (p.M[jmin][k] + (k<imin ? p.M[imin][k] : p.M[k][imin]) - p.M[imin][jmin]) / 2;
-                    S[l][k] = p.M[l][k];
-                    sum[l] += p.M[l][k];
-                    sum[k] += p.M[l][k];
+            for (int k=0; k<l; k++)
+                if (k != imin && k != jmin && pos[k] != -1) {
+                    double d = p.dist(pj,pos[k]);
+                    sum[k] -= d;
+                    d = p.round((d + p.dist(pi,pos[k]) - dmin) / 2);
+                    p.setDist(pj,pos[k],d);
+                    S[l][k] = d;
+                    sum[l] += d;
+                    sum[k] += d;
                 }
                 else  // Positions already removed at row l will be "sorted-out"
                     S[l][k] = Double.MAX_VALUE;
 
-            for (int k=jmin+1; k<l; k++)
-                if (k != imin && p.M[k] != null) {
-                    sum[k] -= p.M[k][jmin];
-                    p.M[l][k] = (p.M[k][jmin] + (k<imin ? p.M[imin][k] : p.M[k][imin]) - p.M[imin][jmin]) / 2;
-                    S[l][k] = p.M[l][k];
-                    sum[l] += p.M[l][k];
-                    sum[k] += p.M[l][k];
+            for (int k=0; k<l; k++)
+                if (k != imin && k != jmin && pos[k] != -1) {
+                    sum[k] -= p.dist(pi,pos[k]);
+                    heap.raise(k,sum[k]);
                 }
-                else  // Positions already removed at row l will be "sorted-out"
-                    S[l][k] = Double.MAX_VALUE;
-
-            for (int k=0; k<imin; k++)
-                if (k != jmin && p.M[k] != null)
-                    sum[k] -= p.M[imin][k];
 
-            for (int k=imin+1; k<l; k++)
-                if (k != jmin && p.M[k] != null)
-                    sum[k] -= p.M[k][imin];
+            Sort.sort(S[l],I[l],0,l);
 
-            Sort.qsort(S[l],I[l],0,l);
-
-            p.M[imin] = p.M[jmin] = null;
             S[imin] = S[jmin] = null;
             I[imin] = I[jmin] = null;
 
-            // Updates the maximum sum:
-            smax = Double.MIN_VALUE;
-            for (int k=0; k<l; k++)
-                if (p.M[k] != null && sum[k] > smax)
-                    smax = sum[k];
+            // Stores l at the position of jmin and moves the last position onto the position of imin:
+            pos[imin] = pos[jmin] = -1;
+            pos[l] = pj;
+            at[pj] = l;
+
+            if (pi != p.n-1) {
+                p.moveRow(p.n-1,pi);
+                at[pi] = at[p.n-1];
+                pos[at[pi]] = pi;
+            }
+
+            // Updates the sums heap:
+            heap.remove(imin);
+            heap.remove(jmin);
+            heap.add(l,sum[l]);
 
             p.n--;
             l++;
         }
 
+        engine.shutdown();
+
         // 3 points:
         // Finds the points out:
         int i,j,k;
 
         int a=0;
         for ( ; ; a++)
-        if (p.M[a] != null) {
+        if (pos[a] != -1) {
             i = a++;
             break;
         }
 
         for ( ; ; a++)
-        if (p.M[a] != null) {
+        if (pos[a] != -1) {
             j = a++;
             break;
         }
 
         for (; ; a++)
-        if (p.M[a] != null) {
+        if (pos[a] != -1) {
             k = a;
             break;
         }
 
-        double x = (p.M[j][i]+p.M[k][i]-p.M[k][j])/2;
-        double y = (p.M[j][i]+p.M[k][j]-p.M[k][i])/2;
-        double z = (p.M[k][i]+p.M[k][j]-p.M[j][i])/2;
+        double x = (p.dist(pos[j],pos[i])+p.dist(pos[k],pos[i])-p.dist(pos[k],pos[j]))/2;
+        double y = (p.dist(pos[j],pos[i])+p.dist(pos[k],pos[j])-p.dist(pos[k],pos[i]))/2;
+        double z = (p.dist(pos[k],pos[i])+p.dist(pos[k],pos[j])-p.dist(pos[j],pos[i]))/2;
 
-        int id = nextId;
-        Node node = new Node(id);
-        node.distance.add(x);
-        node.distance.add(y);
-        node.distance.add(z);
-        if (newick[i].lastIndexOf(")") != -1)
-            node.children.add(nodes.get(Integer.parseInt(newick[i].substring(newick[i].lastIndexOf(")")+1))));
-        else
-            node.children.add(nodes.get(Integer.parseInt(newick[i])));
-        if (newick[j].lastIndexOf(")") != -1)
-            node.children.add(nodes.get(Integer.parseInt(newick[j].substring(newick[j].lastIndexOf(")")+1))));
-        else
-            node.children.add(nodes.get(Integer.parseInt(newick[j])));
-        if (newick[k].lastIndexOf(")") != -1)
-            node.children.add(nodes.get(Integer.parseInt(newick[k].substring(newick[k].lastIndexOf(")")+1))));
-        else
-            node.children.add(nodes.get(Integer.parseInt(newick[k])));
-        nodes.put(id,node);
+        joins.join(node[i],node[j],node[k],x,y,z);
 
-        return nodes;
+        return joins;
 
     }
 
     /**
-    * Create the object tree, representing the structure created by the methods.
+    * Rapid NJ with its sorted rows kept within a memory bound.
     *
-    * @param nodes the list of the nodes, indexed by their identifier
-    * @param n number of valid instances
-    * @param ids the list of instances ids
+    * M. Simonsen, T. Mailund, and C. N. Pedersen. Building very large neighbour-joining trees.
+    * In Proceedings of BIOINFORMATICS 2010, pages 26-32, Valencia, Spain, January 2010
     *
-    * @return the constructed tree.
+    * The rows are stored as floats with the nodes packed in 8 bytes, instead of a double and
+    * an int, and only as much of the beginning of each row as the memory allows is kept (see
+    * SortedRows).  Searches that run out of a truncated row fall back to the matrix, so the
+    * less memory is given the more cells are scanned.  The pair joined has the minimum Q, as
+    * in Rapid NJ, and the trees are the same unless pairs tie for the minimum, which may be
+    * joined in another order.
+    *
+    * @param p A lower triangular distance matrix.  D is destroyed during processing.
+    * @param threads The number of threads.
+    * @param memory The bytes the sorted rows may take.  At least 16 entries of every active
+    * row are kept, whatever the memory.
+    *
+    * @return The joins that build the tree.
+    */
+    public static JoinRecorder rapidNJ(PexMatrix p, int threads, long memory) {
+        cite(NJAlgorithmType.RAPID,memory);
+        return rapidJoins(p,threads,memory);
+    }
 
+    /**
+    * As rapidNJ(PexMatrix,int,long), without printing the reference.
     */
-    public Tree createTree(HashMap<Integer,Node> nodes, int n, int[] ids) {
+    static JoinRecorder rapidJoins(PexMatrix p, int threads, long memory) {
 
-        Tree tree = new Tree();
-        tree.setType(this.type.toString());
+        // Nodes, positions and tree nodes as in rapidNJ(PexMatrix,int):
+        int[] pos = new int[2*p.n-3];
+        int[] at = new int[p.n];
+        for (int i=0; i<p.n; i++)
+            pos[i] = at[i] = i;
 
-        int maxId = Integer.MIN_VALUE;
+        JoinRecorder joins = new JoinRecorder(p.n,p.ids,p.labels);
+        int[] node = new int[2*p.n-3];
+        for (int i=0; i<p.n; i++)
+            node[i] = i;
 
-        //Inserting valid nodes, from the distance matrix...
-        for (int i=0;i<n;i++) {
-            ContentTree ct = new ContentTree(ids[i]);
-            tree.addNode(ct);
+        // The sorted rows:
+        SortedRows R = new SortedRows(2*p.n-3,memory,p.n);
+        long[] E = new long[p.n];
+
+        for (int i=0; i<p.n; i++) {
+            for (int j=0; j<i; j++)
+                E[j] = SortedRows.entry(p.get(i,j),j);
+            R.set(i,E,i);
+        }
+
+        // Evals the distances sum for every node k and keeps the sums in a heap:
+        double[] sum = new double[2*p.n-3];
+        SumHeap heap = new SumHeap(2*p.n-3);
+
+        for (int k=0; k<p.n; k++) {
+            sum[k] = p.rowSum(k);
+            heap.add(k,sum[k]);
+        }
+
+        // The last node is l-1, the number of active nodes is n:
+        int l = p.n;
+
+        JoinEngine engine = new JoinEngine(threads);
+
+        while (p.n > 3) {
+
+            // Gets minimum:
+            double smax = heap.max(sum);
+            JoinEngine.Min min = engine.rapidMin(R,p,pos,at,sum,smax,l,p.n);
+            int imin = min.i, jmin = min.j;
+
+            // Data on new node (imin,jmin) will be stored at the position of jmin.
+            // Evals branch lengths Lik and Ljk:
+            int pi = pos[imin], pj = pos[jmin];
+            double dmin = p.dist(pi,pj);
+            double lik = 0.5 * (dmin + ((sum[imin]-sum[jmin])/(p.n-2)));
+            double ljk = dmin - lik;
+
+            // Updates tree:
+            node[l] = joins.join(node[imin],node[jmin],lik,ljk);
+
+            // Updates D, the rows, sum:
+            p.detachRow(pj);
+            sum[l] = 0;
+            int count = 0;
+
+            for (int k=0; k<l; k++)
+                if (k != imin && k != jmin && pos[k] != -1) {
+                    double d = p.dist(pj,pos[k]);
+                    sum[k] -= d;
+                    d = p.round((d + p.dist(pi,pos[k]) - dmin) / 2);
+                    p.setDist(pj,pos[k],d);
+                    E[count++] = SortedRows.entry(d,k);
+                    sum[l] += d;
+                    sum[k] += d;
+                }
+
+            for (int k=0; k<l; k++)
+                if (k != imin && k != jmin && pos[k] != -1) {
+                    sum[k] -= p.dist(pi,pos[k]);
+                    heap.raise(k,sum[k]);
+                }
+
+            R.set(l,E,count);
+            R.remove(imin);
+            R.remove(jmin);
+
+            // Stores l at the position of jmin and moves the last position onto the position of imin:
+            pos[imin] = pos[jmin] = -1;
+            pos[l] = pj;
+            at[pj] = l;
+
+            if (pi != p.n-1) {
+                p.moveRow(p.n-1,pi);
+                at[pi] = at[p.n-1];
+                pos[at[pi]] = pi;
+            }
+
+            // Updates the sums heap:
+            heap.remove(imin);
+            heap.remove(jmin);
+            heap.add(l,sum[l]);
+
+            p.n--;
+            l++;
+
+            R.compact(pos,l,p.n);
         }
 
-        ids = null;
+        engine.shutdown();
+
+        // 3 points:
+        int i,j,k;
+
+        int a=0;
+        for ( ; ; a++)
+        if (pos[a] != -1) {
+            i = a++;
+            break;
+        }
+
+        for ( ; ; a++)
+        if (pos[a] != -1) {
+            j = a++;
+            break;
+        }
+
+        for (; ; a++)
+        if (pos[a] != -1) {
+            k = a;
+            break;
+        }
+
+        double x = (p.dist(pos[j],pos[i])+p.dist(pos[k],pos[i])-p.dist(pos[k],pos[j]))/2;
+        double y = (p.dist(pos[j],pos[i])+p.dist(pos[k],pos[j])-p.dist(pos[k],pos[i]))/2;
+        double z = (p.dist(pos[k],pos[i])+p.dist(pos[k],pos[j])-p.dist(pos[j],pos[i]))/2;
+
+        joins.join(node[i],node[j],node[k],x,y,z);
+
+        return joins;
+
+    }
+
+    /**
+    * An implementation of relaxed NJ, as in Clearcut.
+    *
+    * J. Sheneman, J. Evans, J.A. Foster. Clearcut: a fast implementation of relaxed neighbor
+    * joining. Bioinformatics, 2006.
+    *
+    * Instead of the pair with the global minimum Q, any pair of nodes that are each other's
+    * closest pair may be joined.  Every sweep finds the closest pair of every row, as in Fast
+    * NJ, and then joins the mutual closest pairs one after the other, each one only if it is
+    * still a mutual closest pair once the joins before it have been made.  The pair with the
+    * global minimum is always joined, and in practice a sweep joins a fraction of the rows,
+    * so few sweeps are needed.  The tree may differ from the one built by exact NJ.
+    *
+    * @param p A lower triangular distance matrix.  D is destroyed during processing.
+    *
+    * @return The joins that build the tree.
+    */
+    public static JoinRecorder relaxedNJ(PexMatrix p) {
+        return relaxedNJ(p,1);
+    }
+
+    /**
+    * An implementation of relaxed NJ, finding the closest pairs with many threads.
+    *
+    * @param p A lower triangular distance matrix.  D is destroyed during processing.
+    * @param threads The number of threads.
+    *
+    * @return The joins that build the tree.
+    */
+    public static JoinRecorder relaxedNJ(PexMatrix p, int threads) {
+        cite(NJAlgorithmType.RELAXED,0);
+        return relaxedJoins(p,threads);
+    }
+
+    /**
+    * As relaxedNJ(PexMatrix,int), without printing the reference.
+    */
+    static JoinRecorder relaxedJoins(PexMatrix p, int threads) {
+
+        JoinRecorder joins = new JoinRecorder(p.n,p.ids,p.labels);
+        int[] node = new int[p.n];  // The tree node at each position of the matrix.
+        for (int i=0; i<p.n; i++)
+            node[i] = i;
+
+        // Evals the distances sum for node k:
+        double[] sum = new double[p.n];
+        for (int k=0; k<p.n; k++)
+            sum[k] = p.rowSum(k);
+
+        ClosestPair[] C = new ClosestPair[p.n];
+        for (int i=0; i<p.n; i++)
+            C[i] = new ClosestPair();
 
-        ArrayList<Integer> virtualLabels = new ArrayList<Integer>();
+        int[] mate = new int[p.n];  // The row paired with each row in a sweep, or -1.
 
-        Iterator it = nodes.entrySet().iterator();
-        while (it.hasNext()) {
-            Map.Entry e = (Map.Entry) it.next();
-            Integer id = (Integer)e.getKey();
-            Node node = (Node)e.getValue();
-            if (!node.children.isEmpty()) {//only virtual nodes has children, that is the condition to add them
-                virtualLabels.add(id);
-                if (id > maxId) maxId = id;
+        JoinEngine engine = new JoinEngine(threads);
+
+        while (p.n > 3) {
+
+            // Finds the closest pair of every row and pairs the rows that are each other's:
+            engine.closestPairs(p,sum,C,p.n,-1,-1,true);
+
+            for (int i=0; i<p.n; i++)
+                mate[i] = -1;
+            for (int i=0; i<p.n; i++)
+                if (C[i].j < i && C[C[i].j].j == i) {
+                    mate[i] = C[i].j;
+                    mate[C[i].j] = i;
+                }
+
+            // Joins the pairs from the last row.  Rows above imin are done, so moving the last
+            // row onto imin never brings back a pair not yet joined:
+            for (int imin=p.n-1; imin>0 && p.n>3; imin--) {
+
+                int jmin = mate[imin];
+                if (jmin == -1)
+                    continue;
+                mate[imin] = mate[jmin] = -1;
+
+                if (closest(p,sum,imin) != jmin || closest(p,sum,jmin) != imin)
+                    continue;
+
+                // Data on new node (imin,jmin) will be stored at jmin.
+                // Evals branch lengths Lik and Ljk:
+                double dmin = p.get(imin,jmin);
+                double lik = 0.5 * (dmin + ((sum[imin]-sum[jmin])/(p.n-2)));
+                double ljk = dmin - lik;
+
+                // Updates tree:
+                node[jmin] = joins.join(node[imin],node[jmin],lik,ljk);
+
+                // Updates D and sum:
+                p.detachRow(jmin);
+                sum[jmin] = 0;
+                for (int k=0; k<jmin; k++) {
+                    double d = p.get(jmin,k);
+                    sum[k] -= d;
+                    d = p.round((d + p.get(imin,k) - dmin) / 2);
+                    p.set(jmin,k,d);
+                    sum[k] += d;
+                    sum[jmin] += d;
+                }
+
+                for (int k=jmin+1; k<p.n; k++)
+                    if (k != imin) {
+                        double d = p.get(k,jmin);
+                        sum[k] -= d;
+                        d = p.round((d + p.dist(imin,k) - dmin) / 2);
+                        p.set(k,jmin,d);
+                        sum[k] += d;
+                        sum[jmin] += d;
+                    }
+
+                sum[jmin] += dmin;
+
+                // Moves n-1 onto imin:
+                for (int k=0; k<imin; k++)
+                    sum[k] -= p.get(imin,k);
+
+                for (int k=imin+1; k<p.n-1; k++)
+                    sum[k] -= p.get(k,imin);
+
+                node[imin] = node[p.n-1];
+                sum[imin] = sum[p.n-1] - p.dist(p.n-1,imin);
+                mate[imin] = mate[p.n-1];
+                p.moveRow(p.n-1,imin);
+
+                p.n--;
             }
         }
-        //Ordering virtual keys so the access is done by creation order.
-        Collections.sort(virtualLabels);
-
-        //Inserting virtual nodes
-        for (int i=0;i<virtualLabels.size();i++) {
-            Node node = nodes.get(virtualLabels.get(i));
-            if (node != null) {
-                ContentTree ct = new ContentTree(virtualLabels.get(i));
-                ct.setValid(false);
-                tree.addNode(ct);
+
+        engine.shutdown();
+
+        // 3 points:
+        double x = (p.get(1,0)+p.get(2,0)-p.get(2,1))/2;
+        double y = (p.get(1,0)+p.get(2,1)-p.get(2,0))/2;
+        double z = (p.get(2,0)+p.get(2,1)-p.get(1,0))/2;
+
+        joins.join(node[0],node[1],node[2],x,y,z);
+
+        return joins;
+    }
+
+    /**
+    * Returns the closest pair of row i among the p.n active rows, as in Fast NJ.
+    */
+    private static int closest(PexMatrix p, double[] sum, int i) {
+        int jmin = -1;
+        double dmin = Double.MAX_VALUE;
+
+        for (int j=0; j<i; j++) {
+            double s = p.get(i,j) - (sum[i]+sum[j]) / (p.n-2);
+            if (s < dmin) {
+                dmin = s;
+                jmin = j;
             }
         }
 
-        virtualLabels = null;
-        System.gc();
-
-        for (int i=0;i<tree.getSize();i++) {
-            Node node = nodes.get(tree.getNode(i).getId());
-            if (node != null) {
-                int maxNivel = -1;
-                //Setting children and distances...
-                for (int j=0;j<node.children.size();j++) {
-                    ContentTree son = tree.getNodeById(node.children.get(j).id);
-                    if (son != null) {
-                        son.setParent(tree.getNode(i).getId());
-                        if (son.getLevel() > maxNivel) maxNivel = son.getLevel();
-                        tree.getNode(i).setChildrenId(j,son.getId());
-                        tree.getNode(i).setDistChildren(j,node.distance.get(j).floatValue());
-                    }
-                }
-                if (maxNivel != -1)
-                    tree.getNode(i).setLevel(maxNivel+1);
+        for (int j=i+1; j<p.n; j++) {
+            double s = p.get(j,i) - (sum[i]+sum[j]) / (p.n-2);
+            if (s < dmin) {
+                dmin = s;
+                jmin = j;
             }
         }
-        nodes = null;
+
+        return jmin;
+    }
+
+    /**
+    * Create the object tree, representing the structure created by the methods.
+    *
+    * @param joins the joins made by one of the methods
+    *
+    * @return the constructed tree.
+
+    */
+    public Tree createTree(JoinRecorder joins) {
+        return createTree(joins,this.type);
+    }
+
+    private Tree createTree(JoinRecorder joins, NJAlgorithmType type) {
+
+        Tree tree = new Tree();
+        tree.setType(type.toString());
+
+        //Inserting valid nodes, from the distance matrix, then virtual nodes in creation order.
+        //Tree nodes are then at the same positions as in joins.
+        for (int i=0;i<joins.getSize();i++) {
+            ContentTree ct = new ContentTree(joins.getId(i));
+            if (i >= joins.getLeafCount())
+                ct.setValid(false);
+            tree.addNode(ct);
+        }
+
+        for (int i=joins.getLeafCount();i<joins.getSize();i++) {
+            ContentTree ct = tree.getNode(i);
+            int maxNivel = -1;
+            //Setting children and distances...
+            for (int j=0;j<joins.getChildCount(i);j++) {
+                ContentTree son = tree.getNode(joins.getChild(i,j));
+                son.setParent(ct.getId());
+                if (son.getLevel() > maxNivel) maxNivel = son.getLevel();
+                ct.setChildrenId(j,son.getId());
+                ct.setDistChildren(j,(float) joins.getLength(i,j));
+            }
+            ct.setLevel(maxNivel+1);
+        }
         if (promotion) promoteLeafs(tree);
         tree.generateEdges();
         return tree;
@@ -750,11 +1001,56 @@ public class NJ {
 
     */
     public Tree execute(DistanceMatrix dmat) {
+        return execute(dmat,1);
+    }
 
-        PexMatrix pexMatrix = DistanceMatrixReader.loadPex(dmat);
+    /**
+    * Executes the entire process to generate the tree from the distance matrix, searching for
+    * the pairs to join with many threads. The tree does not depend on the number of threads.
+    *
+    * @param dmat the data that came from the distance matrix file/object
+    * @param threads the number of threads
+    * @return the constructed tree.
+    * @throws IllegalStateException if the heap is too small for the algorithm (see NJPlanner)
+    */
+    public Tree execute(DistanceMatrix dmat, int threads) {
+
+        //The matrix is copied, unless it is to be read in place (see setInPlace), or the copy does
+        //not fit in the heap and the matrix may be read in place, which is slower (see DistanceMatrixView)
+        boolean inPlace = this.inPlace;
+        NJPlanner.Plan plan;
+        try {
+            plan = NJPlanner.plan(type,dmat.getElementCount(),offHeap && !inPlace,floats,inPlace,rapidMemory,threads);
+        } catch (IllegalStateException e) {
+            if (offHeap || inPlace)
+                throw e;
+            plan = NJPlanner.plan(type,dmat.getElementCount(),false,floats,true,rapidMemory,threads);
+            inPlace = true;
+        }
+
+        PexMatrix pexMatrix = null;
+        try {
+            if (!inPlace) {
+                try {
+                    pexMatrix = DistanceMatrixReader.loadPex(dmat,offHeap,floats);
+                } catch (OutOfMemoryError e) {
+                    //The estimate does not see how the heap is split in generations, and a
+                    //copy that seemed to fit may not: nothing else was allocated yet
+                    if (offHeap)
+                        throw e;
+                    inPlace = true;
+                    plan = NJPlanner.plan(plan.type,dmat.getElementCount(),false,floats,true,rapidMemory,threads);
+                }
+            }
+            if (inPlace)
+                pexMatrix = DistanceMatrixReader.viewPex(dmat,floats);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        this.plan = plan;
         dmat = null;
         if (pexMatrix != null)
-            return constructTree(pexMatrix);
+            return constructTree(pexMatrix,threads,plan.type);
         else return null;
 
     }
@@ -767,40 +1063,65 @@ public class NJ {
 
     */
     public Tree execute(String dmatFile) throws IOException, ParseException {
+        return execute(dmatFile,1);
+    }
+
+    /**
+    * Executes the entire process to generate the tree from the distance matrix file, searching
+    * for the pairs to join with many threads. The tree does not depend on the number of threads.
+    *
+    * @param dmatFile the file containing the distance matrix
+    * @param threads the number of threads
+    * @return the constructed tree.
+    * @throws IllegalStateException if the heap is too small for the algorithm (see NJPlanner)
+    */
+    public Tree execute(String dmatFile, int threads) throws IOException, ParseException {
+
+        NJPlanner.Plan plan = NJPlanner.plan(type,DistanceMatrixReader.size(dmatFile),offHeap,floats,false,rapidMemory,threads);
+        this.plan = plan;
 
-        PexMatrix pexMatrix = DistanceMatrixReader.loadPex(dmatFile);
+        PexMatrix pexMatrix = DistanceMatrixReader.loadPex(dmatFile,offHeap,floats,Runtime.getRuntime().availableProcessors());
         dmatFile = null;
         if (pexMatrix != null)
-            return constructTree(pexMatrix);
+            return constructTree(pexMatrix,threads,plan.type);
         else return null;
 
     }
 
-    private Tree constructTree(PexMatrix pexMatrix) {
+    private Tree constructTree(PexMatrix pexMatrix, int threads, NJAlgorithmType type) {
 
         Tree tree = null;
-        HashMap<Integer, Node> nodes = null;
+        JoinRecorder joins = null;
 
         long linit, lend, diff, total;
         linit = System.currentTimeMillis();
-        int n = pexMatrix.n;
         try {
+            Duplicates duplicates = collapse ? Duplicates.collapse(pexMatrix) : null;
+            if (duplicates != null)
+                System.out.println("Duplicates: "+duplicates.getCollapsed()+" objects collapsed, "+pexMatrix.n+" left to join.");
+
             if (type.equals(NJAlgorithmType.ORIGINAL)) {
-                nodes = originalNJ(pexMatrix);
+                joins = originalNJ(pexMatrix,threads);
             } else if (type.equals(NJAlgorithmType.FAST)) {
-                nodes = fastNJ(pexMatrix);
+                joins = fastNJ(pexMatrix,threads);
             } else if (type.equals(NJAlgorithmType.RAPID)) {
-                nodes = rapidNJ(pexMatrix);
+                joins = rapidMemory > 0 ? rapidNJ(pexMatrix,threads,rapidMemory) : rapidNJ(pexMatrix,threads);
+            } else if (type.equals(NJAlgorithmType.RELAXED)) {
+                joins = relaxedNJ(pexMatrix,threads);
             }
+            if (joins != null && duplicates != null)
+                joins = duplicates.expand(joins);
             
-            if (nodes != null) {
+            if (joins != null) {
                 lend = System.currentTimeMillis();
                 diff = lend - linit;
                 total = diff;
                 System.out.println("Time spent calculating ("+type+") -> " + (diff/1000.0f) + " seconds.");
+                if (plan != null)
+                    System.out.println("- Planned: " + plan + (pexMatrix instanceof DistanceMatrixView ? ", the matrix read in place." : "."));
                 linit = System.currentTimeMillis();
-                pexMatrix.M = null;
-                tree = createTree(nodes,n,pexMatrix.ids);
+                pexMatrix.release();
+                tree = createTree(joins,type);
                 pexMatrix = null;
                 lend = System.currentTimeMillis();
                 diff = lend - linit;
@@ -826,6 +1147,9 @@ public class NJ {
     * Improved Similarity Trees and their Application to Visual Data Classification,
     * IEEE Transactions on Visualization and Computer Graphics, 2011
     * 
+    * Nodes are visited once, in the order of the nodes list, on an indexed view of the tree
+    * (see LeafPromotion), so the time stays close to linear in the size of the tree.
+    * 
     * @param t The constructed tree that will be submitted to promotion procedure.
 
     */
@@ -839,116 +1163,94 @@ public class NJ {
 
         long linit, lend, diff;
 
-        ContentTree virtualNode = null; //current virtual node
-        ContentTree parentVirtualNode = null; //current virtual node parent
-        ContentTree childrenParentVirtualNode = null; //current virtual node son
+        linit = System.currentTimeMillis();
+        LeafPromotion.promote(t);
+        lend = System.currentTimeMillis();
+        diff = lend - linit;
+        System.out.println("Time spent (Leaf promotion) -> " + (diff/1000.0f) + " seconds");
+    }
+
+    /**
+    * Inserts new objects into a tree built by NJ, without building the tree again.
+    * 
+    * Each new object is attached by a new leaf on the edge, at the point of the edge, where its
+    * distances to the objects of the tree are fit best in the least-squares sense, in time linear
+    * in the size of the tree (see Insertion), so inserting k objects takes O(kn) time instead of
+    * the time of building the whole tree. Given only the distances to the objects of the matrix,
+    * the new objects are placed on the tree given, independently of each other. Given also the
+    * distances between new objects, they are inserted one after the other, and the tree may then
+    * be re-optimized, placing each new object again with all the others in the tree. Virtual nodes
+    * having the ids of new objects are given new ids, and the edges of the tree are generated again.
+    * 
+    * @param t The tree, that is changed.
+    * @param p The distance matrix the tree was built from, as loaded, or a matrix holding at least
+    * the objects of the tree. Matrices given to the NJ implementations are changed by them.
+    * @param dist The distances of every new object x to each object of the matrix, by row, followed
+    * optionally by its distances to the new objects 0 to x-1.
+    * @param ids The ids of the new objects, not in the tree.
+    * @param classes The classes of the new objects, or null.
+    * @param reoptimize True to re-optimize the tree, what needs the distances between new objects.
+    * @param threads The number of threads placing the objects independently.
+    * @throws IllegalArgumentException if the distances or ids are not as described, or the tree has
+    * no edge
+
+    */
+    public static void insert(Tree t, PexMatrix p, double[][] dist, int[] ids, float[] classes, boolean reoptimize, int threads) {
+
+        long linit, lend, diff;
 
         linit = System.currentTimeMillis();
+        Insertion.insert(t,p,dist,ids,classes,reoptimize,threads);
+        lend = System.currentTimeMillis();
+        diff = lend - linit;
+        System.out.println("Time spent (Insertion of "+ids.length+" objects) -> " + (diff/1000.0f) + " seconds");
+    }
 
-        for (int i=0;i<t.getSize();i++) {
-            if ((!t.getNode(i).isValid())&&(t.getNode(i).getId() != t.getRootId())) { //only virtual nodes, and no roots (hihgest level)
-                virtualNode = t.getNode(i);
-                parentVirtualNode = t.getNodeById(virtualNode.getParent());
-                if (parentVirtualNode != null) {
-                    if (parentVirtualNode.hasChildren()) {
-                        for (int j=0;j<parentVirtualNode.getNumChildren();j++) {
-                            //analysing the other son...
-                            if (parentVirtualNode.getChildrenId(j) != virtualNode.getId()) {
-                                childrenParentVirtualNode = t.getNodeById(parentVirtualNode.getChildrenId(j));
-                                if (childrenParentVirtualNode != null&&childrenParentVirtualNode.isValid()&&!childrenParentVirtualNode.hasChildren()) {
-                                    //Pattern found, performing changing...
-                                    if (virtualNode.hasChildren()) {
-                                        for (int k=0;k<virtualNode.getNumChildren();k++) {
-                                            if (t.getNodeById(virtualNode.getChildrenId(k)) != null) {
-                                                t.getNodeById(virtualNode.getChildrenId(k)).setParent(childrenParentVirtualNode.getId());
-                                                float d = virtualNode.getDistChildren(k) +
-                                                        (parentVirtualNode.getDistChildren(parentVirtualNode.getChildrenIndex(virtualNode.getId()))/2) +
-                                                        (parentVirtualNode.getDistChildren(parentVirtualNode.getChildrenIndex(childrenParentVirtualNode.getId()))/4);
-                                                if (childrenParentVirtualNode.getChildrenId(0) == -1) {
-                                                    childrenParentVirtualNode.setChildrenId(0,virtualNode.getChildrenId(k));
-                                                    childrenParentVirtualNode.setDistChildren(0,d);
-                                                } else {
-                                                    childrenParentVirtualNode.setChildrenId(1,virtualNode.getChildrenId(k));
-                                                    childrenParentVirtualNode.setDistChildren(1,d);
-                                                }
-                                            }
-                                        }
-                                    }
-                                    //Setting promoted node father...
-                                    childrenParentVirtualNode.setParent(parentVirtualNode.getParent());
-                                    childrenParentVirtualNode.setLevel(parentVirtualNode.getLevel());
-                                    if ((parentVirtualNode.getParent() != -1)&&(t.getNodeById(parentVirtualNode.getParent())!= null)&&
-                                        (t.getNodeById(parentVirtualNode.getParent()).hasChildren())) {
-                                        //In this case, a node does not appear as son of the other, and vice-versa, and I will not remove
-                                        //it from the list of the other, nor add the other on the list of this node
-                                        if ((t.getNodeById(parentVirtualNode.getParent()) != null)&&
-                                            (t.getNodeById(t.getNodeById(parentVirtualNode.getParent()).getParent()) != null)&&
-                                            (t.getNodeById(parentVirtualNode.getParent()).getParent() == parentVirtualNode.getId())) {
-                                            t.getNodeById(childrenParentVirtualNode.getParent()).setParent(childrenParentVirtualNode.getId());
-                                            //These are the last nodes (roots), setting their levels to equal values
-                                            if (t.getNodeById(parentVirtualNode.getParent()).getLevel() > childrenParentVirtualNode.getLevel()) {
-                                                childrenParentVirtualNode.setLevel(t.getNodeById(parentVirtualNode.getParent()).getLevel());
-                                            } else {
-                                                if (t.getNodeById(childrenParentVirtualNode.getParent()) != null)
-                                                    t.getNodeById(childrenParentVirtualNode.getParent()).setLevel(childrenParentVirtualNode.getLevel());
-                                            }
-                                        }else {
-                                            //collecting the distance between the promoted node and its parent...
-                                            float dp = 0;
-                                            if (t.getNodeById(parentVirtualNode.getParent()) != null) {
-                                                int ind = t.getNodeById(parentVirtualNode.getParent()).getChildrenIndex(parentVirtualNode.getId());
-                                                float k = t.getNodeById(parentVirtualNode.getParent()).getDistChildren(ind);
-                                                float b = parentVirtualNode.getDistChildren(parentVirtualNode.getChildrenIndex(virtualNode.getId()));
-                                                float a = parentVirtualNode.getDistChildren(parentVirtualNode.getChildrenIndex(childrenParentVirtualNode.getId()));
-                                                dp = k + b/2 + a/2;
-                                            }
-                                            if (t.getNodeById(parentVirtualNode.getParent()) != null) {
-                                                int index = t.getNodeById(parentVirtualNode.getParent()).getChildrenIndex(parentVirtualNode.getId());
-                                                if (index != -1) {
-                                                    t.getNodeById(parentVirtualNode.getParent()).setChildrenId(index,childrenParentVirtualNode.getId());
-                                                    t.getNodeById(parentVirtualNode.getParent()).setDistChildren(index,dp);
-                                                }
-                                            }
-                                        }
-                                    }
-                                    parentVirtualNode.setParent(-1);
-                                    virtualNode.setParent(-1);
-                                    //If the parentVirtualNode has 3 children, he is the tree root. I will exclude it, so 2 nodes will last,
-                                    //and they will be joined, forming the new tree.
-                                    if (parentVirtualNode.getNumChildren() == 3) {
-                                        for (int x=0;x<parentVirtualNode.getNumChildren();x++) {
-                                            if (parentVirtualNode.getChildrenId(x) != childrenParentVirtualNode.getId()&&
-                                                parentVirtualNode.getChildrenId(x) != virtualNode.getId()) {
-                                                childrenParentVirtualNode.setParent(parentVirtualNode.getChildrenId(x));
-                                                if (t.getNodeById(parentVirtualNode.getChildrenId(x)) != null) {
-                                                    t.getNodeById(parentVirtualNode.getChildrenId(x)).setParent(childrenParentVirtualNode.getId());
-                                                    //In this case, the parentvirtualnode level was the highest one, so its children
-                                                    //will be set with this level, because they will be the new roots.
-                                                    t.getNodeById(parentVirtualNode.getChildrenId(x)).setLevel(parentVirtualNode.getLevel());
-                                                }
-                                                childrenParentVirtualNode.setLevel(parentVirtualNode.getLevel());
-                                            }
-                                        }
-                                    }
-                                    t.removeNode(parentVirtualNode);
-                                    t.removeNode(virtualNode);
-                                    virtualNode = null;
-                                    i--;
-                                    //This break is here because the root node is the only one that has 3 children, and the process
-                                    //can reach this part before the last one. So it is for forcing the 'for' exit, because the change
-                                    //was already done, and it is not necessary to iterate over the children.
-                                    //sobre os filhos.
-                                    break;
-                                }
-                            }
-                        }
-                    }
-                }
-            }
-        }
+    /**
+    * Inserts new objects into a tree built by NJ, as insert(Tree,PexMatrix,double[][],int[],float[],boolean,int)
+    * does with a single thread.
+
+    */
+    public static void insert(Tree t, PexMatrix p, double[][] dist, int[] ids, float[] classes, boolean reoptimize) {
+        insert(t,p,dist,ids,classes,reoptimize,1);
+    }
+
+    /**
+    * Estimates the bootstrap support of the clades of a tree, without leaving the process.
+    * 
+    * Each replicate resamples the sites of the data (its columns) with replacement, computes the
+    * distances between the objects over them and builds a tree with the algorithm of this NJ, with
+    * no leaf promotion. The replicates run on a pool of workers, each reusing its own buffers for the
+    * resampled rows and the matrix, and the clades of the replicates are tallied by hashes of their
+    * sets of objects (see Bootstrap). Every node of the tree is then given the fraction of replicates
+    * holding the clade below it (see ContentTree.getSupport), or -1 for the root, the leaves and the
+    * nodes splitting a single object off. The support does not depend on the number of threads,
+    * and the reference of the algorithm is printed once, not for every replicate.
+    * 
+    * @param t The tree, built from the data or holding the same objects, by id.
+    * @param data The sites of every object, one row per object, with the ids of the objects or, if
+    * it has none, rows numbered from 0.
+    * @param metric The distance between objects.
+    * @param replicates The number of replicates.
+    * @param seed The seed of the resampling.
+    * @param threads The number of replicates built at a time, fewer if the heap cannot hold them.
+    * @throws IllegalArgumentException if the tree and the data do not hold the same objects
+    * @throws IllegalStateException if the heap is too small for a replicate (see NJPlanner)
+
+    */
+    public void bootstrap(Tree t, Matrix data, DistanceMatrixBuilder.Metric metric, int replicates, long seed, int threads) {
+
+        long linit, lend, diff;
+
+        //Every replicate is built quietly, and the implementation is cited once
+        NJPlanner.Plan plan = NJPlanner.plan(type,data.getRowCount(),false,false,false,rapidMemory,1);
+        cite(plan.type,rapidMemory);
+
+        linit = System.currentTimeMillis();
+        Bootstrap.support(t,data,metric,plan,rapidMemory,replicates,seed,threads);
         lend = System.currentTimeMillis();
         diff = lend - linit;
-        System.out.println("Time spent (Leaf promotion) -> " + (diff/1000.0f) + " seconds");
+        System.out.println("Time spent (Bootstrap, "+replicates+" replicates) -> " + (diff/1000.0f) + " seconds");
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,192 @@
+package tree.technique.nj;
+
+import java.util.Locale;
+
+/**
+ * Chooses the NJ implementation to run on a n x n matrix before anything is allocated.
+ *
+ * The heap needed by each implementation and its running time are estimated from n.  The
+ * heap holds the matrix, unless it is mapped from a file, the working arrays of the
+ * implementation and the joins, and after the matrix is released the tree built from the
+ * joins.  Rapid NJ also keeps every row sorted, in about 3n^2/4 doubles and as many ints
+ * at the worst time, or in the memory given to it (see NJ.setRapidMemory).  A matrix read
+ * in place (see DistanceMatrixView) only copies the rows of new nodes, at most n^2/4
+ * distances.
+ *
+ * Original NJ scans O(n^2) cells per join, so its time grows with n^3, while Fast and
+ * Relaxed NJ usually take O(n^2) time.  Rapid NJ may scan as many cells as Original NJ,
+ * but its scans of sorted rows are usually cut short after a few cells, and its time is
+ * taken to grow with n^2 log n, as the time to sort the rows.  In bounded memory it also
+ * drops the entries of joined nodes from its rows.  Times are rough figures for a single
+ * thread on a current machine, divided by the number of threads, and are only meant to be
+ * reported.
+ */
+public class NJPlanner {
+
+    // Seconds per unit of work, measured on random near-additive matrices:
+    private static final double SCAN = 6e-10;     // per n^3, for Original NJ
+    private static final double RAPID = 1.3e-8;   // per n^2 log n, for Rapid NJ
+    private static final double BOUNDED = 2.5e-8; // per n^2 log n, for Rapid NJ in bounded memory
+    private static final double FAST = 4.5e-8;    // per n^2
+    private static final double RELAXED = 4e-8;   // per n^2
+
+    // Heap bytes per object of the matrix for the joins, and for the tree built from them:
+    private static final long JOINS = 48;
+    private static final long TREE = 800;
+
+    /**
+     * The estimated cost of running an implementation.
+     */
+    public static class Plan {
+
+        public final NJ.NJAlgorithmType type;
+        public final int n;
+        public final long bytes;      // heap bytes at the peak
+        public final double seconds;
+
+        Plan(NJ.NJAlgorithmType type, int n, long bytes, double seconds) {
+            this.type = type;
+            this.n = n;
+            this.bytes = bytes;
+            this.seconds = seconds;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,"%s for n=%d: %s of heap, about %.1f seconds",type,n,megabytes(bytes),seconds);
+        }
+    }
+
+    private NJPlanner() {
+    }
+
+    /**
+     * Estimates the cost of running an implementation.
+     *
+     * @param type The implementation, other than AUTO.
+     * @param n The matrix dimension.
+     * @param offHeap True if the distances are mapped from a file.
+     * @param floats True if the distances are stored as floats.
+     * @param inPlace True if the matrix is read in place from a DistanceMatrix already in
+     * the heap.
+     * @param rapidMemory The bound on the sorted rows of Rapid NJ, 0 for none.
+     * @param threads The number of threads.
+     * @return the plan.
+     */
+    public static Plan estimate(NJ.NJAlgorithmType type, int n, boolean offHeap, boolean floats, boolean inPlace, long rapidMemory, int threads) {
+
+        double m = n;
+        long matrix;
+        if (offHeap)
+            matrix = 0;
+        else if (inPlace)
+            matrix = (floats ? 4 : 8) * (long) (m*m/4);
+        else
+            matrix = (floats ? 4 : 8) * ((long) n*(n-1)/2);
+
+        long work;
+        double seconds;
+        switch (type) {
+            case ORIGINAL:
+                work = 20L*n;
+                seconds = SCAN*m*m*m;
+                break;
+            case FAST:
+                work = 48L*n;
+                seconds = FAST*m*m;
+                break;
+            case RAPID:
+                if (rapidMemory > 0) {
+                    work = Math.max(Math.min(rapidMemory,8 * (long) (3*m*m/4)),128L*n) + 104L*n;
+                    seconds = BOUNDED*m*m*Math.log(Math.max(m,2));
+                }
+                else {
+                    work = 12 * (long) (3*m*m/4) + 88L*n;
+                    seconds = RAPID*m*m*Math.log(Math.max(m,2));
+                }
+                break;
+            case RELAXED:
+                work = 52L*n;
+                seconds = RELAXED*m*m;
+                break;
+            default:
+                throw new IllegalArgumentException("No estimate for "+type);
+        }
+
+        long bytes = Math.max(matrix + work + JOINS*n, JOINS*n + TREE*n);
+        return new Plan(type,n,bytes,seconds/Math.max(threads,1));
+    }
+
+    /**
+     * Chooses the implementation to run and checks that it fits in the heap.
+     *
+     * @param type The implementation, or AUTO for Rapid NJ, usually the fastest, or Original
+     * NJ, that takes the least heap, if Rapid NJ does not fit.  Fast and Relaxed NJ are
+     * heuristics, whose trees may differ from those of NJ, and are never chosen for AUTO.
+     * @param n The matrix dimension.
+     * @param offHeap True if the distances are mapped from a file.
+     * @param floats True if the distances are stored as floats.
+     * @param inPlace True if the matrix is read in place from a DistanceMatrix already in
+     * the heap.
+     * @param rapidMemory The bound on the sorted rows of Rapid NJ, 0 for none.
+     * @param threads The number of threads.
+     * @return the plan.
+     * @throws IllegalStateException If the implementation, or every implementation for AUTO,
+     * needs more heap than is available.
+     */
+    public static Plan plan(NJ.NJAlgorithmType type, int n, boolean offHeap, boolean floats, boolean inPlace, long rapidMemory, int threads) {
+
+        Plan[] plans;
+        if (type == NJ.NJAlgorithmType.AUTO) {
+            NJ.NJAlgorithmType[] types = {NJ.NJAlgorithmType.RAPID,NJ.NJAlgorithmType.ORIGINAL};
+            plans = new Plan[types.length];
+            for (int i=0; i<types.length; i++)
+                plans[i] = estimate(types[i],n,offHeap,floats,inPlace,rapidMemory,threads);
+        }
+        else
+            plans = new Plan[] {estimate(type,n,offHeap,floats,inPlace,rapidMemory,threads)};
+
+        long available = available();
+        Plan plan = fitting(plans,available);
+        if (plan == null) {
+            // Garbage may be holding heap that a collection would return:
+            System.gc();
+            available = available();
+            plan = fitting(plans,available);
+        }
+
+        if (plan == null) {
+            StringBuilder s = new StringBuilder("Not enough heap to build the tree, ");
+            s.append(megabytes(available)).append(" available of ").append(megabytes(Runtime.getRuntime().maxMemory()));
+            s.append(" (-Xmx):");
+            for (Plan p : plans)
+                s.append("\n  ").append(p);
+            if (!offHeap)
+                s.append("\nConsider a larger -Xmx, or NJ.setOffHeap(true)"+(floats ? "." : " or NJ.setFloatPrecision(true)."));
+            if (rapidMemory == 0 && (type == NJ.NJAlgorithmType.RAPID || type == NJ.NJAlgorithmType.AUTO))
+                s.append("\nRapid NJ may also be bounded with NJ.setRapidMemory().");
+            throw new IllegalStateException(s.toString());
+        }
+
+        return plan;
+    }
+
+    /**
+     * Returns the heap that may still be allocated.
+     */
+    static long available() {
+        Runtime r = Runtime.getRuntime();
+        return r.maxMemory() - (r.totalMemory() - r.freeMemory());
+    }
+
+    private static Plan fitting(Plan[] plans, long available) {
+        for (Plan p : plans)
+            if (p.bytes <= available)
+                return p;
+        return null;
+    }
+
+    private static String megabytes(long bytes) {
+        return String.format(Locale.US,"%.1f MB",bytes/1048576.0);
+    }
+}
@@ -1,18 +1,227 @@
 package tree.technique.nj;
 
 /**
- * A record for data provided by PEx dmat files: the matrix dimension n; 
- * the lower triangular, all zeros main diagonal matrix M; the labels of each row in 
- * the same order of the matrix rows; the class of each row in the same order of the 
+ * A record for data provided by PEx dmat files: the matrix dimension n;
+ * the lower triangular, all zeros main diagonal matrix M; the labels of each row in
+ * the same order of the matrix rows; the class of each row in the same order of the
  * matrix rows.
- * 
+ *
+ * The matrix is kept packed, in segments of 2^27 distances, as a MappedPexMatrix maps it,
+ * so that its size is not limited by the largest array.  The main diagonal is not stored,
+ * and for every 0<=j<i<n the distance Dij is at position k=i*(i-1)/2+j, in the segment
+ * M[k>>>27] at k&(2^27-1), so row i starts right after the end of row i-1.  Dropping the
+ * last row simply shortens the part of M in use, which is how the NJ implementations
+ * release the space of merged clusters.  Matrices of up to 16384 objects have a single
+ * segment, that is indexed directly, as fast as the array it is.
+ *
  * @author Guilherme P. Telles.
  */
 
 public class PexMatrix {
+  static final int SHIFT = 27;
+  static final int MASK = (1 << SHIFT) - 1;
+
   public int n;
   public double[][] M;
   public int[] ids;
   public String[] labels;
   public float[] classes;
+
+  private double[] first;    // M[0] when it is the only segment, null otherwise
+
+  public PexMatrix() {
+  }
+
+  /**
+   * Creates a record with room for a n x n matrix, all distances set to zero.
+   *
+   * @param n The matrix dimension.
+   */
+  public PexMatrix(int n) {
+    this.n = n;
+    long size = size(n);
+    this.M = new double[segments(size)][];
+    for (int s=0; s<M.length; s++)
+      M[s] = new double[length(size,s)];
+    if (M.length == 1)
+      first = M[0];
+  }
+
+  /**
+   * The number of positions needed to store a packed n x n matrix.
+   *
+   * @param n The matrix dimension.
+   * @return n*(n-1)/2
+   */
+  public static long size(int n) {
+    return (long) n*(n-1)/2;
+  }
+
+  /**
+   * The position of Di0 in the packed matrix.
+   *
+   * @param i A row.
+   * @return i*(i-1)/2
+   */
+  public static long row(int i) {
+    return (long) i*(i-1)/2;
+  }
+
+  /**
+   * The number of segments holding size positions.
+   */
+  static int segments(long size) {
+    return (int) ((size + MASK) >>> SHIFT);
+  }
+
+  /**
+   * The length of segment s of the segments holding size positions.
+   */
+  static int length(long size, int s) {
+    return (int) Math.min(size - ((long) s << SHIFT),MASK+1L);
+  }
+
+  private double read(long k) {
+    if (first != null)
+      return first[(int) k];
+    return M[(int) (k >>> SHIFT)][(int) k & MASK];
+  }
+
+  private void write(long k, double d) {
+    if (first != null)
+      first[(int) k] = d;
+    else
+      M[(int) (k >>> SHIFT)][(int) k & MASK] = d;
+  }
+
+  /**
+   * Returns Dij for j<i.
+   */
+  public double get(int i, int j) {
+    return read(row(i)+j);
+  }
+
+  /**
+   * Sets Dij for j<i.
+   */
+  public void set(int i, int j, double d) {
+    write(row(i)+j,d);
+  }
+
+  /**
+   * Returns Dij for any i and j.  Dii is always zero.
+   */
+  public double dist(int i, int j) {
+    if (i > j)
+      return read(row(i)+j);
+    else if (i < j)
+      return read(row(j)+i);
+    else
+      return 0;
+  }
+
+  /**
+   * Sets Dij for any i distinct from j.
+   */
+  public void setDist(int i, int j, double d) {
+    if (i > j)
+      write(row(i)+j,d);
+    else
+      write(row(j)+i,d);
+  }
+
+  /**
+   * Returns the sum of the distances from i to every other object k<n.
+   */
+  public double rowSum(int i) {
+    double s = 0;
+    long r = row(i);
+    for (int k=0; k<i; k++)
+      s += read(r+k);
+    for (int k=i+1; k<n; k++)
+      s += read(row(k)+i);
+    return s;
+  }
+
+  /**
+   * Returns the sum of the distances from i to every other object k<n, as rowSum(), with
+   * compensated (Kahan-Babuska) summation.  Used when distances are stored as floats, so
+   * that sums of many rounded distances do not drift and change the order of the joins.
+   */
+  protected double compensatedRowSum(int i) {
+    double s = 0, c = 0;
+    for (int k=0; k<n; k++)
+      if (k != i) {
+        double d = dist(i,k);
+        double t = s + d;
+        if (Math.abs(s) >= Math.abs(d))
+          c += (s - t) + d;
+        else
+          c += (d - t) + s;
+        s = t;
+      }
+    return s + c;
+  }
+
+  /**
+   * Returns a distance as it would be stored by set().  Distances are stored as doubles,
+   * so d itself is returned.  The NJ implementations round new distances before adding
+   * them to the row sums, so that the sums remain the sums of the stored distances.
+   */
+  public double round(double d) {
+    return d;
+  }
+
+  /**
+   * Called by the NJ implementations before the distances of object i are replaced by
+   * those of a new node.  Distances are stored in M, so nothing is done here.  Matrices
+   * that read their distances from storage they do not own copy the row of i here.
+   */
+  public void detachRow(int i) {
+  }
+
+  /**
+   * Releases the storage of the matrix.  The record must not be used afterwards.
+   */
+  public void release() {
+    M = null;
+    first = null;
+  }
+
+  /**
+   * Moves the distances of object from onto object to, for every other object k<n.
+   * The distance between from and to is left unchanged.  After moving the last row
+   * onto a row that is no longer used, n may be decremented to compact the matrix.
+   *
+   * @param from The object whose distances will be copied.
+   * @param to The object whose distances will be replaced.
+   */
+  public void moveRow(int from, int to) {
+    if (from == to)
+      return;
+
+    int lo = Math.min(from,to);
+    long rf = row(from), rt = row(to);
+
+    // Columns before both rows are contiguous in both rows:
+    for (int k=0; k<lo; ) {
+      int a = (int) (rf+k) & MASK, b = (int) (rt+k) & MASK;
+      int m = Math.min(lo-k,MASK+1-Math.max(a,b));
+      System.arraycopy(M[(int) ((rf+k) >>> SHIFT)],a,M[(int) ((rt+k) >>> SHIFT)],b,m);
+      k += m;
+    }
+
+    if (from > to) {
+      for (int k=to+1; k<from; k++)
+        write(row(k)+to,read(rf+k));
+      for (int k=from+1; k<n; k++)
+        write(row(k)+to,read(row(k)+from));
+    }
+    else {
+      for (int k=from+1; k<to; k++)
+        write(rt+k,read(row(k)+from));
+      for (int k=to+1; k<n; k++)
+        write(row(k)+to,read(row(k)+from));
+    }
+  }
 }
@@ -1,6 +1,8 @@
 package tree.technique.nj;
 
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * Sorting algorithms.
@@ -8,6 +10,12 @@ import java.util.Random;
  */
 public class Sort {
 
+  // Rows at least this long are radix sorted:
+  private static final int RADIX = 1 << 8;
+
+  // A task sorting rows having fewer cells than this is not split:
+  private static final int CELLS = 1 << 16;
+
   /**
     A quicksort for v[l,r).
 
@@ -136,6 +144,145 @@ public class Sort {
     }
   }
 
+  /**
+    Sorts A[l,r) and produces I[l,r) as qsort(double[],int[],int,int) does, with a
+    radix sort if the interval has at least 256 values.  The radix sort keeps equal values
+    in their order and puts -0.0 before 0.0, while the order of equal values in shorter
+    intervals is unspecified, as in qsort.
+
+   * @param A The array to sort.
+   * @param I I[i] will hold the position of A[i] in A before sorting take place.
+   * @param l Left limit for the sorting interval (closed).
+   * @param r Right limit for the sorting interval (open).
+   */
+  public static void sort(double[] A, int[] I, int l, int r) {
+    if (r-l >= RADIX)
+      rsort(A,I,l,r);
+    else
+      qsort(A,I,l,r);
+  }
+
+  /**
+    Sorts the rows of a lower triangular matrix, A[i][0,i) for every i in [lo,hi), and 
+    produces I[i][0,i) as sort(double[],int[],int,int) does, with many threads.  Rows are 
+    shared out in stripes of about the same number of cells.
+
+   * @param A The rows, A[i] having at least i cells.
+   * @param I The indices, I[i] having at least i cells.
+   * @param lo The first row.
+   * @param hi The row after the last one.
+   * @param threads The number of threads.
+   */
+  public static void sortRows(double[][] A, int[][] I, int lo, int hi, int threads) {
+    if (threads <= 1) {
+      for (int i=lo; i<hi; i++)
+        sort(A[i],I[i],0,i);
+      return;
+    }
+
+    ForkJoinPool pool = new ForkJoinPool(threads);
+    try {
+      pool.invoke(new Rows(A,I,lo,hi));
+    }
+    finally {
+      pool.shutdown();
+    }
+  }
+
+  /**
+    A least significant digit radix sort for A[l,r), on the bytes of the bit patterns of 
+    the doubles, arranged so that they order as unsigned numbers.  Bytes that are the same 
+    for every value, as the sign and most of the exponent often are, are skipped.  Also 
+    produces I[l,r) as qsort(double[],int[],int,int) does.
+    
+   * @param A The array to sort.
+   * @param I I[i] will hold the position of A[i] in A before sorting take place.
+   * @param l Left limit for the sorting interval (closed).
+   * @param r Right limit for the sorting interval (open).
+   */
+  public static void rsort(double[] A, int[] I, int l, int r) {
+
+    int n = r-l;
+    if (n == 0)
+      return;
+
+    long[] K = new long[n], K2 = new long[n];
+    int[] J = new int[n], J2 = new int[n];
+    int[][] count = new int[8][256];
+
+    for (int i=0; i<n; i++) {
+      long b = Double.doubleToRawLongBits(A[l+i]);
+      long k = b ^ ((b >> 63) | Long.MIN_VALUE);
+      K[i] = k;
+      J[i] = l+i;
+      for (int d=0; d<8; d++)
+        count[d][(int) (k >>> 8*d) & 0xff]++;
+    }
+
+    for (int d=0; d<8; d++) {
+      int[] c = count[d];
+      if (c[(int) (K[0] >>> 8*d) & 0xff] == n)
+        continue;
+
+      // Turns counts into the first position of every byte value:
+      int t = 0;
+      for (int v=0; v<256; v++) {
+        int x = c[v];
+        c[v] = t;
+        t += x;
+      }
+
+      for (int i=0; i<n; i++) {
+        int q = c[(int) (K[i] >>> 8*d) & 0xff]++;
+        K2[q] = K[i];
+        J2[q] = J[i];
+      }
+
+      long[] tk = K;  K = K2;  K2 = tk;
+      int[] tj = J;  J = J2;  J2 = tj;
+    }
+
+    for (int i=0; i<n; i++) {
+      long k = K[i];
+      A[l+i] = Double.longBitsToDouble(k < 0 ? k ^ Long.MIN_VALUE : ~k);
+      I[l+i] = J[i];
+    }
+  }
+
+  /**
+   * Sorts the rows [lo,hi) of a lower triangular matrix.
+   */
+  private static class Rows extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private final double[][] A;
+    private final int[][] I;
+    private final int lo, hi;
+
+    Rows(double[][] A, int[][] I, int lo, int hi) {
+      this.A = A;
+      this.I = I;
+      this.lo = lo;
+      this.hi = hi;
+    }
+
+    @Override
+    protected void compute() {
+      long cells = ((long) hi*hi - (long) lo*lo) / 2;
+      if (hi-lo <= 1 || cells < CELLS) {
+        for (int i=lo; i<hi; i++)
+          sort(A[i],I[i],0,i);
+        return;
+      }
+
+      // Row i ends about i^2/2 cells into the triangle:
+      int mid = (int) Math.sqrt(((double) lo*lo + (double) hi*hi) / 2);
+      mid = Math.min(Math.max(mid,lo+1),hi-1);
+      invokeAll(new Rows(A,I,lo,mid),new Rows(A,I,mid,hi));
+    }
+  }
+
   /**
    * An insertion sort for A[l,r).
    * 
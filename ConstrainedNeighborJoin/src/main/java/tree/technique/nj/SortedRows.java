@@ -0,0 +1,187 @@
+package tree.technique.nj;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The sorted rows of Rapid NJ, kept within a memory bound.
+ *
+ * The row of node i holds the distances from i to the nodes j<i that were active when i was
+ * created, sorted.  An entry is a long with the distance in its high half, as a float rounded
+ * down and encoded so that entries order as longs, and j in its low half.  A row then takes
+ * 8 bytes per entry and is sorted by Arrays.sort.  Since distances are rounded down, a bound
+ * computed from an entry is never larger than the exact one, and the values compared are
+ * taken from the matrix.
+ *
+ * Only a prefix of at most K entries of every row is kept, K being set so that the prefixes
+ * of all the active rows fit in the memory given, and the rest of a row is evicted.  A search
+ * that runs past the end of a truncated prefix without being pruned scans the row in the
+ * matrix instead.  Entries of nodes already joined are skipped, and they are dropped by a
+ * compaction whenever the number of active nodes halves, which also raises K.  A truncated
+ * row that has lost half of its prefix is sorted again from the matrix the next time it is
+ * scanned in the matrix.
+ */
+class SortedRows {
+
+    // The shortest prefix kept, whatever the memory:
+    private static final int MIN_PREFIX = 16;
+
+    private final long[][] S;
+    private final boolean[] complete;  // True if S[i] holds the whole row.
+    private final long memory;
+    private final AtomicLong entries = new AtomicLong();
+    private int K;
+    private int compacted;  // The number of active nodes at the last compaction.
+
+    /**
+     * @param size The number of nodes.
+     * @param memory The bytes the rows may take.
+     * @param n The number of active nodes.
+     */
+    SortedRows(int size, long memory, int n) {
+        this.S = new long[size][];
+        this.complete = new boolean[size];
+        this.memory = memory;
+        this.K = prefix(n);
+        this.compacted = n;
+    }
+
+    private int prefix(int n) {
+        return (int) Math.max(MIN_PREFIX,Math.min(memory / (8L*Math.max(n,1)),Integer.MAX_VALUE));
+    }
+
+    /**
+     * Returns the entry for the distance d to node j.
+     */
+    static long entry(double d, int j) {
+        float f = (float) d;
+        if (f > d)
+            f = Math.nextAfter(f,Double.NEGATIVE_INFINITY);
+        int bits = Float.floatToRawIntBits(f);
+        bits ^= (bits >> 31) & 0x7fffffff;
+        return ((long) bits << 32) | j;
+    }
+
+    /**
+     * Returns the distance of an entry, not larger than the distance it was made from.
+     */
+    static double value(long e) {
+        int bits = (int) (e >> 32);
+        bits ^= (bits >> 31) & 0x7fffffff;
+        return Float.intBitsToFloat(bits);
+    }
+
+    /**
+     * Sets the row of node i from the entries E[0,count), that are reordered.
+     */
+    void set(int i, long[] E, int count) {
+        Arrays.sort(E,0,count);
+        long[] old = S[i];
+        S[i] = Arrays.copyOf(E,Math.min(count,K));
+        complete[i] = count <= K;
+        entries.addAndGet(S[i].length - (old == null ? 0 : old.length));
+    }
+
+    /**
+     * Drops the row of node i.
+     */
+    void remove(int i) {
+        if (S[i] != null)
+            entries.addAndGet(-S[i].length);
+        S[i] = null;
+    }
+
+    /**
+     * Drops the entries of the nodes already joined from the rows of the active nodes
+     * [0,l), if the number of active nodes has halved since the last compaction.
+     */
+    void compact(int[] pos, int l, int n) {
+        if (2*n > compacted)
+            return;
+
+        for (int i=0; i<l; i++)
+            if (S[i] != null) {
+                long[] Si = S[i];
+                int c = 0;
+                for (int k=0; k<Si.length; k++)
+                    if (pos[(int) Si[k]] != -1)
+                        Si[c++] = Si[k];
+                if (c < Si.length) {
+                    S[i] = Arrays.copyOf(Si,c);
+                    entries.addAndGet(c - Si.length);
+                }
+            }
+
+        K = prefix(n);
+        compacted = n;
+    }
+
+    /**
+     * Returns the bytes taken by the rows.
+     */
+    long bytes() {
+        return 8*entries.get();
+    }
+
+    /**
+     * Searches row i for the minimum of the Q criterion, as JoinEngine does for Rapid NJ.
+     *
+     * @param at The node at every position of the matrix.
+     * @param bound The best value found by any thread, or null.
+     */
+    void min(PexMatrix p, int[] pos, int[] at, double[] sum, double smax, int n, int i,
+             JoinEngine.Min m, AtomicLong bound) {
+
+        if (pos[i] == -1)
+            return;
+
+        long[] Si = S[i];
+        double c = (sum[i]+smax) / (n-2);
+        int live = 0;
+
+        for (int k=0; k<Si.length; k++) {
+            int j = (int) Si[k];
+            if (pos[j] == -1)
+                continue;
+            live++;
+            double b = value(Si[k]) - c;
+            if (b < m.s && (bound == null || b <= Double.longBitsToDouble(bound.get())))
+                test(p.dist(pos[i],pos[j]),i,j,sum,n,m,bound);
+            else
+                return;
+        }
+
+        if (complete[i])
+            return;
+
+        // Past the end of a truncated prefix, the row is scanned in the matrix, and sorted
+        // again if most of its prefix is gone:
+        long[] E = 2*live < Si.length ? new long[n] : null;
+        int count = 0;
+        for (int x=0; x<n; x++) {
+            int j = at[x];
+            if (j >= i)
+                continue;
+            double d = p.dist(pos[i],x);
+            if (E != null)
+                E[count++] = entry(d,j);
+            double b = d - c;
+            if (b < m.s && (bound == null || b <= Double.longBitsToDouble(bound.get())))
+                test(d,i,j,sum,n,m,bound);
+        }
+
+        if (E != null)
+            set(i,E,count);
+    }
+
+    private static void test(double d, int i, int j, double[] sum, int n, JoinEngine.Min m, AtomicLong bound) {
+        double s = d - (sum[i]+sum[j]) / (n-2);
+        if (s < m.s) {
+            m.s = s;
+            m.i = i;
+            m.j = j;
+            if (bound != null)
+                JoinEngine.tighten(bound,s);
+        }
+    }
+}
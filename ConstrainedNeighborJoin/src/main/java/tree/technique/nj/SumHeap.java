@@ -0,0 +1,114 @@
+package tree.technique.nj;
+
+/**
+ * An indexed max-heap of the distance sums of the active nodes, used by Rapid NJ to bound
+ * the Q criterion without scanning every sum after each join.
+ *
+ * When two nodes are joined the sum of every other node usually decreases, so a key is
+ * allowed to be larger than the current sum of its node.  Increases must be reported with
+ * raise(), while decreases are applied lazily, only when a stale key reaches the top.  The
+ * top key is then refreshed until it is exact, and it is the largest sum.
+ */
+class SumHeap {
+
+    private final int[] heap;    // heap[x] is the node at position x
+    private final int[] where;   // where[k] is the position of node k, or -1
+    private final double[] key;
+    private int size = 0;
+
+    /**
+     * @param capacity The number of nodes, numbered from 0 to capacity-1.
+     */
+    SumHeap(int capacity) {
+        heap = new int[capacity];
+        where = new int[capacity];
+        key = new double[capacity];
+        for (int k=0; k<capacity; k++)
+            where[k] = -1;
+    }
+
+    /**
+     * Inserts node k with sum s.
+     */
+    void add(int k, double s) {
+        key[k] = s;
+        heap[size] = k;
+        where[k] = size;
+        up(size++);
+    }
+
+    /**
+     * Removes node k.
+     */
+    void remove(int k) {
+        int x = where[k];
+        where[k] = -1;
+        if (x == --size)
+            return;
+
+        int moved = heap[size];
+        heap[x] = moved;
+        where[moved] = x;
+        up(x);
+        down(where[moved]);
+    }
+
+    /**
+     * Reports the current sum of node k, which only has effect if it increased.
+     */
+    void raise(int k, double s) {
+        if (s > key[k]) {
+            key[k] = s;
+            up(where[k]);
+        }
+    }
+
+    /**
+     * Returns the largest sum among the nodes in the heap.
+     *
+     * @param sum The current sums, indexed by node.
+     * @return the largest sum, or Double.NEGATIVE_INFINITY if the heap is empty.
+     */
+    double max(double[] sum) {
+        while (size > 0) {
+            int t = heap[0];
+            if (key[t] == sum[t])
+                return key[t];
+            key[t] = sum[t];
+            down(0);
+        }
+        return Double.NEGATIVE_INFINITY;
+    }
+
+    private void up(int x) {
+        int k = heap[x];
+        while (x > 0) {
+            int parent = (x-1) >>> 1;
+            if (key[heap[parent]] >= key[k])
+                break;
+            heap[x] = heap[parent];
+            where[heap[x]] = x;
+            x = parent;
+        }
+        heap[x] = k;
+        where[k] = x;
+    }
+
+    private void down(int x) {
+        int k = heap[x];
+        for (;;) {
+            int c = 2*x+1;
+            if (c >= size)
+                break;
+            if (c+1 < size && key[heap[c+1]] > key[heap[c]])
+                c++;
+            if (key[heap[c]] <= key[k])
+                break;
+            heap[x] = heap[c];
+            where[heap[x]] = x;
+            x = c;
+        }
+        heap[x] = k;
+        where[k] = x;
+    }
+}
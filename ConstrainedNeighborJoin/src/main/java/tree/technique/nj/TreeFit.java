@@ -0,0 +1,175 @@
+package tree.technique.nj;
+
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import tree.basics.Tree;
+import tree.basics.TreeDistances;
+
+/**
+ * Measures how well the path lengths of a tree fit the distances of the matrix it was built
+ * from.
+ *
+ * Every pair of objects of the matrix is compared, the path length of the pair being taken in
+ * constant time from a TreeDistances of the tree.  The rows of the matrix are cut in blocks of
+ * fixed size, measured in a fork/join pool, and the sums of the blocks are added in block
+ * order, so the report does not depend on the number of threads.
+ */
+public class TreeFit {
+
+    // The rows of the matrix measured at a time by a thread:
+    private static final int ROWS = 64;
+
+    /**
+     * The fit of a tree to a matrix, over every pair of objects.
+     */
+    public static class Report {
+
+        public final long pairs;
+        public final double sse;          // the sum of the squared differences
+        public final double stress;       // the square root of sse over the sum of the squared distances
+        public final double meanError;    // the mean absolute difference
+        public final double maxError;     // the largest absolute difference
+        public final double correlation;  // the correlation of the path lengths and the distances
+
+        Report(long pairs, double sse, double stress, double meanError, double maxError, double correlation) {
+            this.pairs = pairs;
+            this.sse = sse;
+            this.stress = stress;
+            this.meanError = meanError;
+            this.maxError = maxError;
+            this.correlation = correlation;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,"%d pairs: stress %.6f, sse %.6g, mean error %.6g, max error %.6g, correlation %.6f",
+                                 pairs,stress,sse,meanError,maxError,correlation);
+        }
+    }
+
+    /**
+     * The sums over the pairs of a block of rows.
+     */
+    private static class Sums {
+        long n;
+        double d, t, dd, tt, dt, sq, abs, max;
+    }
+
+    private TreeFit() {
+    }
+
+    /**
+     * Measures the fit of a tree to a matrix.
+     *
+     * @param t The tree.
+     * @param p The matrix, as loaded.  The matrices given to the NJ implementations are changed
+     * by them.
+     * @param threads The number of threads.
+     * @return the report.
+     * @throws IllegalArgumentException If an object of the matrix is not in the tree.
+     */
+    public static Report measure(Tree t, PexMatrix p, int threads) {
+
+        TreeDistances td = new TreeDistances(t);
+        int n = p.n;
+        int[] node = new int[n];
+        for (int i=0; i<n; i++) {
+            int id = p.ids == null ? i : p.ids[i];
+            node[i] = td.indexOf(id);
+            if (node[i] == -1)
+                throw new IllegalArgumentException("Object "+id+" of the matrix is not in the tree.");
+        }
+
+        Sums[] S = new Sums[(n+ROWS-1)/ROWS];
+        if (threads > 1 && S.length > 1) {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            try {
+                pool.invoke(new Blocks(td,p,node,S,0,S.length));
+            } finally {
+                pool.shutdown();
+            }
+        }
+        else
+            for (int b=0; b<S.length; b++)
+                S[b] = block(td,p,node,b);
+
+        Sums all = new Sums();
+        for (Sums s : S) {
+            all.n += s.n;
+            all.d += s.d;
+            all.t += s.t;
+            all.dd += s.dd;
+            all.tt += s.tt;
+            all.dt += s.dt;
+            all.sq += s.sq;
+            all.abs += s.abs;
+            all.max = Math.max(all.max,s.max);
+        }
+
+        double N = all.n;
+        double sse = all.sq;
+        double stress = all.dd > 0 ? Math.sqrt(sse/all.dd) : 0;
+        double cov = N*all.dt - all.d*all.t;
+        double var = (N*all.dd - all.d*all.d) * (N*all.tt - all.t*all.t);
+        double correlation = var > 0 ? cov/Math.sqrt(var) : 0;
+        return new Report(all.n,sse,stress,N > 0 ? all.abs/N : 0,all.max,correlation);
+    }
+
+    /**
+     * Sums over the pairs (i,j), j<i, of the rows i of block b.
+     */
+    private static Sums block(TreeDistances td, PexMatrix p, int[] node, int b) {
+        Sums s = new Sums();
+        int end = Math.min((b+1)*ROWS,p.n);
+        for (int i=b*ROWS; i<end; i++) {
+            int u = node[i];
+            for (int j=0; j<i; j++) {
+                double d = p.get(i,j);
+                double x = td.distance(u,node[j]);
+                double e = Math.abs(x-d);
+                s.d += d;
+                s.t += x;
+                s.dd += d*d;
+                s.tt += x*x;
+                s.dt += d*x;
+                s.sq += e*e;
+                s.abs += e;
+                if (e > s.max)
+                    s.max = e;
+            }
+            s.n += i;
+        }
+        return s;
+    }
+
+    private static class Blocks extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final TreeDistances td;
+        private final PexMatrix p;
+        private final int[] node;
+        private final Sums[] S;
+        private final int lo, hi;
+
+        Blocks(TreeDistances td, PexMatrix p, int[] node, Sums[] S, int lo, int hi) {
+            this.td = td;
+            this.p = p;
+            this.node = node;
+            this.S = S;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo == 1) {
+                S[lo] = block(td,p,node,lo);
+                return;
+            }
+            int mid = (lo + hi) >>> 1;
+            invokeAll(new Blocks(td,p,node,S,lo,mid),new Blocks(td,p,node,S,mid,hi));
+        }
+    }
+}
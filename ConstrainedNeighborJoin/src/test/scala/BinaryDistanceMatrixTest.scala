@@ -0,0 +1,127 @@
+package test.scala
+
+import java.io.File
+import java.nio.{ByteBuffer, ByteOrder}
+import java.nio.file.Files
+import java.text.ParseException
+
+import org.scalatest.{FlatSpec, Matchers}
+import tree.technique.nj.{BinaryDistanceMatrix, PexMatrix}
+
+/**
+ * Round trips of PexMatrix through the binary matrix format.
+ */
+class BinaryDistanceMatrixTest extends FlatSpec with Matchers {
+
+  def matrix(n: Int): PexMatrix = {
+    val random = new scala.util.Random(7)
+    val p = new PexMatrix(n)
+    for (i <- 1 until n; j <- 0 until i)
+      p.set(i, j, random.nextDouble() * 10)
+    p.ids = Array.tabulate(n)(i => 1000 + i)
+    p.labels = Array.tabulate(n)(i => if (i == 3) null else "object " + i + " é")
+    p.classes = Array.tabulate(n)(i => (i % 3).toFloat)
+    p
+  }
+
+  def temp(): File = {
+    val f = File.createTempFile("test", ".bdmat")
+    f.deleteOnExit()
+    f
+  }
+
+  def same(p: PexMatrix, q: PexMatrix, round: Double => Double) {
+    q.n should be (p.n)
+    for (i <- 1 until p.n; j <- 0 until i)
+      q.get(i, j) should be (round(p.get(i, j)))
+    q.ids should be (p.ids)
+    q.labels should be (p.labels)
+    q.classes should be (p.classes)
+  }
+
+  "A binary matrix of doubles" should "load the matrix written, on and off the heap" in {
+    val p = matrix(300)
+    val f = temp()
+    BinaryDistanceMatrix.write(p, f.getPath, false)
+    BinaryDistanceMatrix.size(f.getPath) should be (300)
+    BinaryDistanceMatrix.isBinary(f.getPath) should be (true)
+
+    for (offHeap <- Seq(false, true)) {
+      val q = BinaryDistanceMatrix.load(f.getPath, offHeap)
+      same(p, q, d => d)
+      q.release()
+    }
+    val q = BinaryDistanceMatrix.load(f.getPath, false, true)
+    same(p, q, d => d.toFloat)
+    q.release()
+  }
+
+  "A binary matrix of floats" should "load the distances rounded to floats" in {
+    val p = matrix(300)
+    val f = temp()
+    BinaryDistanceMatrix.write(p, f.getPath, true)
+
+    for (offHeap <- Seq(false, true); floats <- Seq(false, true)) {
+      val q = BinaryDistanceMatrix.load(f.getPath, offHeap, floats)
+      same(p, q, d => d.toFloat)
+      q.release()
+    }
+  }
+
+  it should "load off the heap from a read-only file, and leave the file unchanged" in {
+    val p = matrix(50)
+    val f = temp()
+    BinaryDistanceMatrix.write(p, f.getPath, false)
+    val bytes = Files.readAllBytes(f.toPath)
+    f.setWritable(false)
+
+    val q = BinaryDistanceMatrix.load(f.getPath, true)
+    q.set(10, 5, -1)
+    q.get(10, 5) should be (-1.0)
+    q.release()
+    Files.readAllBytes(f.toPath) should be (bytes)
+  }
+
+  it should "load a matrix of one object, with no distances" in {
+    val p = matrix(1)
+    val f = temp()
+    BinaryDistanceMatrix.write(p, f.getPath, false)
+    same(p, BinaryDistanceMatrix.load(f.getPath, false), d => d)
+  }
+
+  "A binary matrix header" should "be rejected if an array is not n long" in {
+    val p = matrix(20)
+    val f = temp()
+    BinaryDistanceMatrix.write(p, f.getPath, false)
+
+    // The ids count follows the magic, the version, n and the width:
+    val bytes = Files.readAllBytes(f.toPath)
+    ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).putInt(16, 19)
+    Files.write(f.toPath, bytes)
+    a [ParseException] should be thrownBy BinaryDistanceMatrix.load(f.getPath, false)
+  }
+
+  it should "be rejected if the distances are truncated" in {
+    val p = matrix(20)
+    val f = temp()
+    BinaryDistanceMatrix.write(p, f.getPath, false)
+
+    val bytes = Files.readAllBytes(f.toPath)
+    Files.write(f.toPath, java.util.Arrays.copyOf(bytes, bytes.length - 8))
+    a [ParseException] should be thrownBy BinaryDistanceMatrix.load(f.getPath, false)
+    a [ParseException] should be thrownBy BinaryDistanceMatrix.load(f.getPath, true)
+  }
+
+  it should "be rejected if the file is not a binary matrix" in {
+    val f = temp()
+    Files.write(f.toPath, "3\n1\n2 3\n".getBytes("UTF-8"))
+    BinaryDistanceMatrix.isBinary(f.getPath) should be (false)
+    a [ParseException] should be thrownBy BinaryDistanceMatrix.load(f.getPath, false)
+  }
+
+  "Writing a matrix" should "be refused if its ids are not n long" in {
+    val p = matrix(20)
+    p.ids = Array(1, 2, 3)
+    an [IllegalArgumentException] should be thrownBy BinaryDistanceMatrix.write(p, temp().getPath, false)
+  }
+}
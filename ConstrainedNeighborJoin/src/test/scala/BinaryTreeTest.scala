@@ -0,0 +1,144 @@
+package test.scala
+
+import java.io.{File, StringReader, StringWriter}
+import java.nio.file.Files
+import java.text.ParseException
+
+import org.scalatest.{FlatSpec, Matchers}
+import tree.basics.Tree
+import tree.technique.nj.BinaryTree
+
+/**
+ * Round trips of trees through the binary tree format.
+ */
+class BinaryTreeTest extends FlatSpec with Matchers {
+
+  def tree(newick: String): Tree = new Tree(new StringReader(newick))
+
+  def temp(): File = {
+    val f = File.createTempFile("test", ".btree")
+    f.deleteOnExit()
+    f
+  }
+
+  def newick(t: Tree): String = {
+    val w = new StringWriter
+    t.writeNewick(w)
+    w.toString
+  }
+
+  def annotated: Tree = {
+    val t = tree("((1:0.5,2:0.25)5:1,(3:2,4:0.125,8:3)6:0.75)7;")
+    t.setType("Rapid Neighbor-Joining")
+    t.getNodeById(3).setKlass(2f)
+    t.getNodeById(6).setSupport(0.75f)
+    t
+  }
+
+  /**
+   * Checks that two trees hold the same nodes, at the same positions of their nodes lists.
+   */
+  def same(t: Tree, u: Tree) {
+    u.getSize should be (t.getSize)
+    u.getType should be (t.getType)
+    u.getRootId should be (t.getRootId)
+    for (i <- 0 until t.getSize) {
+      val a = t.getNode(i)
+      val b = u.getNode(i)
+      b.getId should be (a.getId)
+      b.getParent should be (a.getParent)
+      b.isValid should be (a.isValid)
+      b.getLevel should be (a.getLevel)
+      b.getKlass should be (a.getKlass)
+      b.getSupport should be (a.getSupport)
+      b.getNumChildren should be (a.getNumChildren)
+      for (s <- 0 until a.getNumChildren) {
+        b.getChildrenId(s) should be (a.getChildrenId(s))
+        b.getDistChildren(s) should be (a.getDistChildren(s))
+      }
+    }
+    newick(u) should be (newick(t))
+  }
+
+  "A binary tree" should "load the tree written" in {
+    val t = annotated
+    val f = temp()
+    BinaryTree.write(t, f.getPath)
+    BinaryTree.isBinary(f.getPath) should be (true)
+    same(t, BinaryTree.load(f.getPath))
+  }
+
+  it should "be read in place through a view" in {
+    val t = annotated
+    val f = temp()
+    BinaryTree.write(t, f.getPath, Array(1, 2, 3), Array("one", "dois é", null))
+    val v = BinaryTree.map(f.getPath)
+    v.getSize should be (t.getSize)
+    v.getType should be ("Rapid Neighbor-Joining")
+
+    for (i <- 0 until v.getSize) {
+      val ct = t.getNode(i)
+      v.getId(i) should be (ct.getId)
+      v.isValid(i) should be (ct.isValid)
+      v.getLevel(i) should be (ct.getLevel)
+      v.getKlass(i) should be (ct.getKlass)
+      v.getSupport(i) should be (ct.getSupport)
+      v.getChildCount(i) should be (ct.getNumChildren)
+      for (s <- 0 until v.getChildCount(i)) {
+        v.getId(v.getChild(i, s)) should be (ct.getChildrenId(s))
+        v.getChildLength(i, s) should be (ct.getDistChildren(s))
+        v.getParent(v.getChild(i, s)) should be (i)
+        v.getLength(v.getChild(i, s)) should be (ct.getDistChildren(s))
+      }
+      if (ct.getId == t.getRootId)
+        v.getParent(i) should be (-1)
+
+      val label = ct.getId match {
+        case 1 if ct.isValid => "one"
+        case 2 if ct.isValid => "dois é"
+        case _ => null
+      }
+      v.getLabel(i) should be (label)
+    }
+    same(t, v.toTree)
+  }
+
+  it should "have no labels unless written with them" in {
+    val f = temp()
+    BinaryTree.write(annotated, f.getPath)
+    val v = BinaryTree.map(f.getPath)
+    for (i <- 0 until v.getSize)
+      v.getLabel(i) should be (null)
+  }
+
+  it should "load a caterpillar 100000 nodes deep" in {
+    val n = 100000
+    val b = new StringBuilder
+    for (i <- 0 until n - 1)
+      b.append('(')
+    b.append("0:1,1:1)")
+    for (k <- 2 until n)
+      b.append(":0.5," + k + ":1)")
+    b.append(";")
+
+    val t = tree(b.toString)
+    val f = temp()
+    BinaryTree.write(t, f.getPath)
+    same(t, BinaryTree.load(f.getPath))
+  }
+
+  "A binary tree file" should "be rejected if it is truncated or not a binary tree" in {
+    val f = temp()
+    BinaryTree.write(annotated, f.getPath)
+    val bytes = Files.readAllBytes(f.toPath)
+    Files.write(f.toPath, java.util.Arrays.copyOf(bytes, bytes.length - 8))
+    a [ParseException] should be thrownBy BinaryTree.load(f.getPath)
+
+    Files.write(f.toPath, "((1,2),3);".getBytes("UTF-8"))
+    BinaryTree.isBinary(f.getPath) should be (false)
+    a [ParseException] should be thrownBy BinaryTree.load(f.getPath)
+
+    Files.write(f.toPath, new Array[Byte](2))
+    BinaryTree.isBinary(f.getPath) should be (false)
+  }
+}
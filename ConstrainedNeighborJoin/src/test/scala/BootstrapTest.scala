@@ -0,0 +1,109 @@
+package test.scala
+
+import java.lang.reflect.{InvocationHandler, Method, Proxy}
+
+import org.scalatest.{FlatSpec, Matchers}
+import tree.basics.{Tree, TreeIndex}
+import tree.implementation.DistanceMatrixBuilder
+import tree.interfaces.{Matrix, Vector}
+import tree.technique.nj.NJ
+
+/**
+ * Bootstrap support of the trees of every implementation, on sites evolved along a known tree.
+ */
+class BootstrapTest extends FlatSpec with Matchers {
+
+  val n = 40
+  val m = 400
+
+  /**
+   * A matrix of rows, answering only what the bootstrap and the distances ask for.
+   */
+  def matrix(rows: Array[Array[Float]]): Matrix = {
+    def proxy[T](c: Class[T])(answer: PartialFunction[(String, Array[AnyRef]), AnyRef]): T =
+      c.cast(Proxy.newProxyInstance(getClass.getClassLoader, Array[Class[_]](c), new InvocationHandler {
+        def invoke(p: AnyRef, method: Method, args: Array[AnyRef]): AnyRef =
+          answer.applyOrElse((method.getName, args), (_: (String, Array[AnyRef])) => null)
+      }))
+    proxy(classOf[Matrix]) {
+      case ("getRowCount", _) => Int.box(rows.length)
+      case ("getDimensions", _) => Int.box(rows(0).length)
+      case ("getRow", Array(i: Integer)) => proxy(classOf[Vector]) { case ("toArray", _) => rows(i).clone() }
+    }
+  }
+
+  /**
+   * A clade, as the side of its bipartition without object 0.
+   */
+  def clade(objects: Set[Int]): Set[Int] =
+    if (objects.contains(0)) (0 until n).toSet -- objects else objects
+
+  /**
+   * The clades of a tree, with their support.
+   */
+  def clades(t: Tree): Map[Set[Int], Float] = {
+    val ix = new TreeIndex(t)
+    val below = Array.fill(ix.size)(Set[Int]())
+    for (v <- ix.size - 1 to 0 by -1) {
+      if (ix.node(v).isValid)
+        below(v) += ix.node(v).getId
+      if (v > 0)
+        below(ix.parent(v)) ++= below(v)
+    }
+    (1 until ix.size).filter(v => below(v).size >= 2 && below(v).size <= n - 2)
+      .map(v => clade(below(v)) -> ix.node(v).getSupport).toMap
+  }
+
+  // Sites evolved along a random tree, every edge changing a site to a new state now and then:
+  val random = new java.util.Random(7)
+  val parent = new Array[Int](2 * n - 1)
+  val objects = Array.tabulate(2 * n - 1)(i => if (i < n) Set(i) else Set[Int]())
+  val active = (0 until n).toBuffer
+  for (next <- n until 2 * n - 1) {
+    val a = active.remove(random.nextInt(active.size))
+    val b = active.remove(random.nextInt(active.size))
+    parent(a) = next
+    parent(b) = next
+    objects(next) = objects(a) ++ objects(b)
+    active += next
+  }
+  val truth = objects.filter(s => s.size >= 2 && s.size <= n - 2).map(clade).toSet
+
+  val rows = Array.ofDim[Float](n, m)
+  var states = 1
+  for (s <- 0 until m) {
+    val state = new Array[Float](2 * n - 1)
+    for (v <- 2 * n - 3 to 0 by -1) {
+      if (random.nextDouble() < 0.02) {
+        state(v) = states
+        states += 1
+      }
+      else
+        state(v) = state(parent(v))
+    }
+    for (i <- 0 until n)
+      rows(i)(s) = state(i)
+  }
+  val data = matrix(rows)
+  val dmat = DistanceMatrixBuilder.build(data, DistanceMatrixBuilder.Metric.HAMMING)
+
+  for (t <- NJ.NJAlgorithmType.values if t != NJ.NJAlgorithmType.AUTO) {
+    "The bootstrap of " + t + " trees" should "not depend on the number of threads" in {
+      val nj = new NJ(false, t)
+      val tree = nj.execute(dmat)
+      nj.bootstrap(tree, data, DistanceMatrixBuilder.Metric.HAMMING, 50, 42, 1)
+      val one = clades(tree)
+      nj.bootstrap(tree, data, DistanceMatrixBuilder.Metric.HAMMING, 50, 42, 4)
+      clades(tree) should be (one)
+    }
+
+    it should "recover the clades of the tree the sites evolved along" in {
+      val nj = new NJ(false, t)
+      val tree = nj.execute(dmat)
+      nj.bootstrap(tree, data, DistanceMatrixBuilder.Metric.HAMMING, 50, 42, 4)
+      val found = clades(tree)
+      found.keySet should be (truth)
+      truth.toSeq.map(found).sum / truth.size should be > 0.9f
+    }
+  }
+}
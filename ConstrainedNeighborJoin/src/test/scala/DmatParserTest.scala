@@ -0,0 +1,115 @@
+package test.scala
+
+import java.io.{File, PrintWriter}
+import java.text.ParseException
+import java.util.Locale
+
+import org.scalatest.{FlatSpec, Matchers}
+import tree.io.DmatParser
+
+/**
+ * Compares the numbers parsed by DmatParser with Double.parseDouble and Float.parseFloat.
+ */
+class DmatParserTest extends FlatSpec with Matchers {
+
+  val special = IndexedSeq(
+    "0", "-0.0", "+1.5", "-3.25", ".5", "5.", "007.250",
+    "1e22", "1e23", "-1E-22", "2.5E-5", "1.0e+10", "1e-300", "4.9e-324", "1.7976931348623157e308",
+    "0.12345678901234567890123", "123456789012345678901", "9007199254740993", "-9007199254740993.0",
+    "3.4028235e38", "1.00000005960464477539", "1e-40", "1.4e-45", "-2.2250738585072014E-308")
+
+  def randomTokens(count: Int, seed: Int): IndexedSeq[String] = {
+    val random = new scala.util.Random(seed)
+    IndexedSeq.fill(count) {
+      random.nextInt(5) match {
+        case 0 => java.lang.Double.toString(random.nextDouble() * math.pow(10, random.nextInt(40) - 20))
+        case 1 => "%.20f".formatLocal(Locale.US, random.nextDouble())
+        case 2 => random.nextLong().toString
+        case 3 => "-" + random.nextInt(1000) + "." + random.nextInt(1000) + "e" + (random.nextInt(60) - 30)
+        case _ => java.lang.Float.toString(random.nextFloat())
+      }
+    }
+  }
+
+  /**
+   * Writes the tokens as the rows of a dmat file, after a header line, and parses them.
+   */
+  def parse(tokens: IndexedSeq[String], separator: String, newline: String, floats: Boolean, threads: Int): IndexedSeq[Double] = {
+    var n = 2
+    while (n.toLong * (n - 1) / 2 < tokens.size)
+      n += 1
+    val cells = n * (n - 1) / 2
+    val all = (tokens ++ IndexedSeq.fill(cells - tokens.size)("0")).toArray
+
+    val f = File.createTempFile("test", ".dmat")
+    f.deleteOnExit()
+    val out = new PrintWriter(f, "UTF-8")
+    out.print("header" + newline)
+    var k = 0
+    for (i <- 1 until n) {
+      out.print(all.slice(k, k + i).mkString(separator) + newline)
+      k += i
+    }
+    out.close()
+
+    val parser = new DmatParser(f.getPath)
+    parser.nextLine() should be ("header")
+    val D = new Array[Double](cells)
+    parser.parse(n, floats, threads, new DmatParser.Cells {
+      def set(i: Int, j: Int, d: Double) {
+        D(i * (i - 1) / 2 + j) = d
+      }
+    })
+    parser.close()
+    D.take(tokens.size).toIndexedSeq
+  }
+
+  // Compared bit for bit, so that -0.0 and 0.0 differ:
+  def bits(values: IndexedSeq[Double]): IndexedSeq[Long] = values.map(d => java.lang.Double.doubleToRawLongBits(d))
+
+  def asDoubles(tokens: IndexedSeq[String]): IndexedSeq[Double] = tokens.map(s => java.lang.Double.parseDouble(s))
+
+  def asFloats(tokens: IndexedSeq[String]): IndexedSeq[Double] = tokens.map(s => java.lang.Float.parseFloat(s).toDouble)
+
+  "A dmat parser" should "convert numbers as Double.parseDouble does" in {
+    val tokens = special ++ randomTokens(2000, 1)
+    bits(parse(tokens, ";", "\n", false, 1)) should be (bits(asDoubles(tokens)))
+  }
+
+  it should "convert numbers as Float.parseFloat does in float mode" in {
+    val tokens = special ++ randomTokens(2000, 2)
+    bits(parse(tokens, ";", "\n", true, 1)) should be (bits(asFloats(tokens)))
+  }
+
+  it should "read CRLF files and blank or tab separators" in {
+    val tokens = special ++ randomTokens(500, 3)
+    bits(parse(tokens, ";", "\r\n", false, 1)) should be (bits(asDoubles(tokens)))
+    bits(parse(tokens, " ", "\r\n", false, 1)) should be (bits(asDoubles(tokens)))
+    bits(parse(tokens, "\t", "\n", true, 1)) should be (bits(asFloats(tokens)))
+  }
+
+  it should "parse a file of many chunks with many threads" in {
+    // About 6MB, cut in chunks of at least 1MB:
+    val tokens = randomTokens(300000, 4)
+    val expected = bits(asDoubles(tokens))
+    bits(parse(tokens, ";", "\r\n", false, 4)) should be (expected)
+    bits(parse(tokens, ";", "\n", false, 1)) should be (expected)
+  }
+
+  it should "reject malformed numbers and missing distances" in {
+    a [ParseException] should be thrownBy parse(IndexedSeq("1.5", "2.5x", "3"), ";", "\n", false, 1)
+    a [ParseException] should be thrownBy parse(IndexedSeq("1.5", "--2", "3"), ";", "\n", true, 1)
+
+    val f = File.createTempFile("test", ".dmat")
+    f.deleteOnExit()
+    val out = new PrintWriter(f, "UTF-8")
+    out.print("header\n1\n2;3\n")
+    out.close()
+    val parser = new DmatParser(f.getPath)
+    parser.nextLine()
+    a [ParseException] should be thrownBy parser.parse(4, false, 1, new DmatParser.Cells {
+      def set(i: Int, j: Int, d: Double) {}
+    })
+    parser.close()
+  }
+}
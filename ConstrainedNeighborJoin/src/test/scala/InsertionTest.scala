@@ -0,0 +1,112 @@
+package test.scala
+
+import java.io.{StringReader, StringWriter}
+
+import org.scalatest.{FlatSpec, Matchers}
+import tree.basics.Tree
+import tree.technique.nj.{NJ, PexMatrix}
+
+/**
+ * New objects inserted into a tree, against the tree they were taken out of.
+ */
+class InsertionTest extends FlatSpec with Matchers {
+
+  // The tree with objects 100 and 101, and the same tree without them:
+  val full = "((1:1,2:2):0.5,(3:1.5,((4:0.4,100:0.6):0.3,5:0.3):1):2,(6:1,(7:0.25,(8:0.5,101:0.2):0.25):0.5):1);"
+  val part = "((1:1,2:2):0.5,(3:1.5,(4:0.7,5:0.3):1):2,(6:1,(7:0.25,8:0.75):0.5):1);"
+  val objects = (1 to 8).toArray
+
+  def tree(newick: String): Tree = new Tree(new StringReader(newick))
+
+  /**
+   * Returns the ancestors of a node, the node included, with their distances to it.
+   */
+  def ancestors(t: Tree, id: Int): Map[Int, Double] = {
+    var node = t.getNodeById(id)
+    var d = 0.0
+    var m = Map(id -> 0.0)
+    var parent = t.getNodeById(node.getParent)
+    while (parent != null && parent.getChildrenIndex(node.getId) != -1) {
+      d += parent.getDistChildren(parent.getChildrenIndex(node.getId))
+      m += parent.getId -> d
+      node = parent
+      parent = t.getNodeById(node.getParent)
+    }
+    m
+  }
+
+  def distance(t: Tree, a: Int, b: Int): Double = {
+    val up = ancestors(t, a)
+    ancestors(t, b).filterKeys(up.contains).map { case (v, d) => d + up(v) }.min
+  }
+
+  val original = tree(full)
+
+  def matrix: PexMatrix = {
+    val p = new PexMatrix(objects.length)
+    p.ids = objects.clone
+    for (i <- 1 until p.n; j <- 0 until i)
+      p.set(i, j, distance(original, objects(i), objects(j)))
+    p
+  }
+
+  def row(id: Int, others: Seq[Int]): Array[Double] = others.map(b => distance(original, id, b)).toArray
+
+  def error(t: Tree, pairs: Seq[(Int, Int)]): Double =
+    pairs.map { case (a, b) => math.abs(distance(t, a, b) - distance(original, a, b)) }.max
+
+  "Inserting objects" should "place them independently where they were taken from" in {
+    val t = tree(part)
+    NJ.insert(t, matrix, Array(row(100, objects), row(101, objects)), Array(100, 101), null, false, 1)
+    t.getSize should be (original.getSize)
+    error(t, for (a <- Seq(100, 101); b <- objects) yield (a, b)) should be < 1e-5
+    distance(t, 100, 101) should be (distance(original, 100, 101) +- 1e-5)
+  }
+
+  it should "insert them one after the other, and re-optimize, given the distances between them" in {
+    val t = tree(part)
+    val dist = Array(row(100, objects), row(101, objects :+ 100))
+    NJ.insert(t, matrix, dist, Array(100, 101), Array(2f, 3f), true)
+    val all = objects ++ Seq(100, 101)
+    error(t, for (a <- all; b <- all if a < b) yield (a, b)) should be < 1e-5
+    t.getNodeById(100).getKlass should be (2f)
+    t.getNodeById(101).getKlass should be (3f)
+    t.getNodeById(101).isValid should be (true)
+  }
+
+  it should "give new ids to virtual nodes having the id of an object inserted" in {
+    val t = tree(part)
+    t.getNodeById(9).isValid should be (false)
+    NJ.insert(t, matrix, Array(row(100, objects)), Array(9), null, false)
+    t.getNodeById(9).isValid should be (true)
+    t.getSize should be (tree(part).getSize + 2)
+    for (b <- objects)
+      distance(t, 9, b) should be (distance(original, 100, b) +- 1e-5)
+  }
+
+  it should "build the same tree with any number of threads" in {
+    val random = new scala.util.Random(5)
+    val ids = (200 until 240).toArray
+    val dist = ids.map(_ => row(if (random.nextBoolean()) 100 else 101, objects).map(_ + random.nextDouble() * 0.1))
+
+    def newick(threads: Int): String = {
+      val t = tree(part)
+      NJ.insert(t, matrix, dist, ids, null, false, threads)
+      val w = new StringWriter
+      t.writeNewick(w)
+      w.toString
+    }
+    newick(4) should be (newick(1))
+  }
+
+  it should "refuse missing distances and ids already in the tree" in {
+    def insert(dist: Array[Array[Double]], ids: Array[Int], reoptimize: Boolean) =
+      NJ.insert(tree(part), matrix, dist, ids, null, reoptimize)
+
+    an [IllegalArgumentException] should be thrownBy insert(Array(new Array[Double](3)), Array(100), false)
+    an [IllegalArgumentException] should be thrownBy insert(Array(new Array[Double](8)), Array(5), false)
+    an [IllegalArgumentException] should be thrownBy insert(Array.fill(2)(new Array[Double](8)), Array(100, 100), false)
+    an [IllegalArgumentException] should be thrownBy insert(Array(new Array[Double](8)), Array(100, 101), false)
+    an [IllegalArgumentException] should be thrownBy insert(Array.fill(2)(new Array[Double](8)), Array(100, 101), true)
+  }
+}
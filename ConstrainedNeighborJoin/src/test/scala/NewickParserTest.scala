@@ -0,0 +1,96 @@
+package test.scala
+
+import java.io.{IOException, StringReader, StringWriter}
+
+import org.scalatest.{FlatSpec, Matchers}
+import tree.basics.Tree
+
+/**
+ * Trees read from Newick strings by the streaming parser.
+ */
+class NewickParserTest extends FlatSpec with Matchers {
+
+  def tree(newick: String): Tree = new Tree(new StringReader(newick))
+
+  def children(t: Tree, id: Int): Seq[Int] = {
+    val node = t.getNodeById(id)
+    (0 until node.getNumChildren).map(k => node.getChildrenId(k))
+  }
+
+  def lengths(t: Tree, id: Int): Seq[Float] = {
+    val node = t.getNodeById(id)
+    (0 until node.getNumChildren).map(k => node.getDistChildren(k))
+  }
+
+  "A Newick parser" should "read multifurcations, in child order" in {
+    val t = tree("(1:0.1,2:0.2,3:0.3,4:0.4)5;")
+    t.getSize should be (5)
+    t.getRootId should be (5)
+    children(t, 5) should be (Seq(1, 2, 3, 4))
+    lengths(t, 5) should be (Seq(0.1f, 0.2f, 0.3f, 0.4f))
+    t.getNodeById(5).isValid should be (false)
+    t.getNodeById(5).getLevel should be (1)
+    for (id <- 1 to 4) {
+      t.getNodeById(id).getParent should be (5)
+      t.getNodeById(id).isValid should be (true)
+    }
+  }
+
+  it should "read quoted labels, with '' standing for a quote" in {
+    val t = tree("('a b':1,'it''s':2)3;")
+    children(t, 3) should be (Seq("a b".hashCode, "it's".hashCode))
+    lengths(t, 3) should be (Seq(1f, 2f))
+  }
+
+  it should "skip comments and white space" in {
+    val t = tree(" ( 1[x] : 0.5 ,\n [y]2:0.25 )[root]3 ;")
+    t.getRootId should be (3)
+    children(t, 3) should be (Seq(1, 2))
+    lengths(t, 3) should be (Seq(0.5f, 0.25f))
+  }
+
+  it should "take missing branch lengths as 0 and number unlabelled nodes after the largest id" in {
+    val t = tree("((1,2:0.5),3);")
+    t.getSize should be (5)
+    t.getRootId should be (4)
+    children(t, 4) should be (Seq(5, 3))
+    children(t, 5) should be (Seq(1, 2))
+    lengths(t, 5) should be (Seq(0f, 0.5f))
+    t.getNodeById(4).getLevel should be (2)
+  }
+
+  it should "read and write a caterpillar 100000 nodes deep" in {
+    val n = 100000
+    val b = new StringBuilder
+    for (i <- 0 until n - 1)
+      b.append('(')
+    b.append("0,1)")
+    for (k <- 2 until n)
+      b.append("," + k + ")")
+    b.append(";")
+
+    val t = tree(b.toString)
+    t.getSize should be (2 * n - 1)
+    t.getNodeById(t.getRootId).getLevel should be (n - 1)
+
+    val w = new StringWriter
+    t.writeNewick(w)
+    val u = tree(w.toString)
+    u.getSize should be (2 * n - 1)
+    u.getNodeById(u.getRootId).getLevel should be (n - 1)
+  }
+
+  it should "report where malformed trees go wrong" in {
+    def error(newick: String): String = (the [IOException] thrownBy tree(newick)).getMessage
+
+    error("(1,2));") should be ("Unexpected ')' at character 6 of the Newick tree.")
+    error("(1,2") should be ("Unclosed '(' at character 4 of the Newick tree.")
+    error("(1:x,2);") should be ("Malformed branch length [x] at character 4 of the Newick tree.")
+    error("(1,2)3(4);") should be ("Unexpected '(' at character 7 of the Newick tree.")
+    error("(1,2)3,4;") should be ("Unexpected ',' at character 7 of the Newick tree.")
+    error("(1:0.5:0.5,2);") should be ("Unexpected ':' at character 7 of the Newick tree.")
+    error("'abc") should be ("Unclosed quote at character 4 of the Newick tree.")
+    error("(1,2[comment") should be ("Unclosed comment at character 12 of the Newick tree.")
+    error("") should be ("Empty tree at character 0 of the Newick tree.")
+  }
+}
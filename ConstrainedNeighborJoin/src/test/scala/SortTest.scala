@@ -0,0 +1,80 @@
+package test.scala
+
+import org.scalatest.{FlatSpec, Matchers}
+import tree.technique.nj.Sort
+
+/**
+ * The radix sort of rows against the quicksort.
+ */
+class SortTest extends FlatSpec with Matchers {
+
+  // Ties, both zeros, negatives and the sentinels of rows with no distance:
+  val values = Array(-0.0, 0.0, -1.5, -1e-300, -3e300, 1.5, 2.25, 1e-310, 7.0, Double.MaxValue, -Double.MaxValue)
+
+  def row(n: Int, seed: Int): Array[Double] = {
+    val random = new scala.util.Random(seed)
+    Array.fill(n) {
+      if (random.nextInt(4) == 0) random.nextDouble() * 10 - 5 else values(random.nextInt(values.length))
+    }
+  }
+
+  val rsort = (A: Array[Double], I: Array[Int], l: Int, r: Int) => Sort.rsort(A, I, l, r)
+  val qsort = (A: Array[Double], I: Array[Int], l: Int, r: Int) => Sort.qsort(A, I, l, r)
+
+  /**
+   * Sorts A[l,r) of a copy of row, and checks that I[l,r) indexes the row and that the rest
+   * of A is unchanged.
+   */
+  def sorted(row: Array[Double], l: Int, r: Int, sort: (Array[Double], Array[Int], Int, Int) => Unit): (Array[Double], Array[Int]) = {
+    val A = row.clone
+    val I = Array.fill(row.length)(-1)
+    sort(A, I, l, r)
+    I.slice(l, r).sorted should be ((l until r).toArray)
+    for (k <- l until r)
+      java.lang.Double.doubleToRawLongBits(A(k)) should be (java.lang.Double.doubleToRawLongBits(row(I(k))))
+    for (k <- (0 until l) ++ (r until row.length)) {
+      A(k) should be (row(k))
+      I(k) should be (-1)
+    }
+    (A, I)
+  }
+
+  "A radix sort" should "order values as the quicksort does" in {
+    for (n <- Seq(1, 2, 255, 256, 1000, 5000); seed <- 1 to 3) {
+      val v = row(n + 10, seed)
+      val (a, _) = sorted(v, 4, n + 4, rsort)
+      val (b, _) = sorted(v, 4, n + 4, qsort)
+      // -0.0 and 0.0 are equal to the quicksort and may come in any order:
+      (4 until n + 4).count(k => a(k) != b(k)) should be (0)
+      for (k <- 4 until n + 3)
+        (a(k) <= a(k + 1)) should be (true)
+    }
+  }
+
+  it should "keep equal values in their order and put -0.0 before 0.0" in {
+    val v = row(3000, 4)
+    val (a, i) = sorted(v, 0, v.length, rsort)
+    for (k <- 0 until v.length - 1) {
+      java.lang.Double.compare(a(k), a(k + 1)) should be <= 0
+      if (java.lang.Double.compare(a(k), a(k + 1)) == 0)
+        i(k) should be < i(k + 1)
+    }
+  }
+
+  "Sorting rows" should "radix sort long rows and quicksort short ones, with any number of threads" in {
+    val n = 600
+    val A = Array.tabulate(n)(i => row(i, i))
+    val I = Array.tabulate(n)(i => new Array[Int](i))
+    Sort.sortRows(A, I, 0, n, 4)
+    for (i <- 0 until n) {
+      val v = row(i, i)
+      for (k <- 0 until i) {
+        java.lang.Double.doubleToRawLongBits(A(i)(k)) should be (java.lang.Double.doubleToRawLongBits(v(I(i)(k))))
+        if (k > 0)
+          (A(i)(k - 1) <= A(i)(k)) should be (true)
+      }
+      if (i >= 256)
+        I(i) should be (sorted(v, 0, i, rsort)._2)
+    }
+  }
+}
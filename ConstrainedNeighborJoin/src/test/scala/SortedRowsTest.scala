@@ -0,0 +1,46 @@
+package test.scala
+
+import java.io.StringWriter
+
+import org.scalatest.{FlatSpec, Matchers}
+import tree.technique.nj.{JoinRecorder, NJ, PexMatrix}
+
+/**
+ * Trees of Rapid NJ with its sorted rows in bounded memory, against unbounded Rapid NJ.
+ */
+class SortedRowsTest extends FlatSpec with Matchers {
+
+  /**
+   * A near-additive matrix of points on a line, with noise so that no two pairs tie for the
+   * minimum Q, which bounded and unbounded Rapid NJ may join in another order.
+   */
+  def matrix(n: Int, seed: Int): PexMatrix = {
+    val random = new scala.util.Random(seed)
+    val x = Array.fill(n)(random.nextDouble() * 10)
+    val p = new PexMatrix(n)
+    for (i <- 1 until n; j <- 0 until i)
+      p.set(i, j, math.abs(x(i) - x(j)) + random.nextDouble())
+    p
+  }
+
+  def newick(joins: JoinRecorder): String = {
+    val w = new StringWriter
+    joins.writeNewick(w)
+    w.toString
+  }
+
+  "Rapid NJ in bounded memory" should "build the trees of unbounded Rapid NJ" in {
+    for (n <- Seq(3, 4, 10, 200, 700); seed <- 1 to 2) {
+      val expected = newick(NJ.rapidNJ(matrix(n, seed)))
+      // The least memory keeps 16 entries of every row, the most keeps whole rows:
+      for (memory <- Seq(1L, 16L * 8 * n, 100000L, 1L << 30); threads <- Seq(1, 4))
+        newick(NJ.rapidNJ(matrix(n, seed), threads, memory)) should be (expected)
+    }
+  }
+
+  it should "build the same tree with any number of threads" in {
+    val expected = newick(NJ.rapidNJ(matrix(500, 3), 1, 20000L))
+    for (threads <- Seq(2, 3, 8))
+      newick(NJ.rapidNJ(matrix(500, 3), threads, 20000L)) should be (expected)
+  }
+}
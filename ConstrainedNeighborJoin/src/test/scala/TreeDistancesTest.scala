@@ -0,0 +1,115 @@
+package test.scala
+
+import java.io.StringReader
+
+import org.scalatest.{FlatSpec, Matchers}
+import tree.basics.{Tree, TreeDistances, TreeIndex}
+
+/**
+ * Lowest common ancestors and path lengths of TreeDistances, against walks up the parents.
+ */
+class TreeDistancesTest extends FlatSpec with Matchers {
+
+  /**
+   * A random tree of objects 1 to n, joined two or three at a time.
+   */
+  def randomTree(n: Int, seed: Int): Tree = {
+    val random = new scala.util.Random(seed)
+    def length = "%.3f".formatLocal(java.util.Locale.US, 0.1 + random.nextDouble() * 2)
+    var groups = (1 to n).map(i => i + ":" + length).toVector
+    while (groups.size > 3) {
+      val k = if (groups.size > 4 && random.nextInt(3) == 0) 3 else 2
+      val shuffled = random.shuffle(groups)
+      groups = shuffled.drop(k) :+ ("(" + shuffled.take(k).mkString(",") + "):" + length)
+    }
+    new Tree(new StringReader("(" + groups.mkString(",") + ");"))
+  }
+
+  def ancestors(ix: TreeIndex, v: Int): Set[Int] = {
+    var up = Set(v)
+    var w = v
+    while (ix.parent(w) != -1) {
+      w = ix.parent(w)
+      up += w
+    }
+    up
+  }
+
+  def walkLca(ix: TreeIndex, u: Int, v: Int): Int = {
+    val up = ancestors(ix, u)
+    var w = v
+    while (!up.contains(w))
+      w = ix.parent(w)
+    w
+  }
+
+  def walkDistance(ix: TreeIndex, u: Int, v: Int): Double = {
+    val a = walkLca(ix, u, v)
+    def up(x: Int): Double = {
+      var d = 0.0
+      var w = x
+      while (w != a) {
+        d += ix.length(w)
+        w = ix.parent(w)
+      }
+      d
+    }
+    up(u) + up(v)
+  }
+
+  "Tree distances" should "find the common ancestors and path lengths of every pair of nodes" in {
+    for (n <- Seq(3, 4, 10, 60); seed <- 1 to 3) {
+      val td = new TreeDistances(randomTree(n, seed))
+      val ix = td.getIndex
+      ix.size should be (ix.node.count(_ != null))
+      for (u <- 0 until ix.size; v <- 0 until ix.size) {
+        td.lca(u, v) should be (walkLca(ix, u, v))
+        td.distance(u, v) should be (walkDistance(ix, u, v) +- 1e-9)
+      }
+    }
+  }
+
+  it should "find the path lengths between objects by id" in {
+    val t = randomTree(40, 4)
+    val td = new TreeDistances(t)
+    val ix = td.getIndex
+    for (a <- 1 to 40; b <- 1 to 40) {
+      val u = td.indexOf(a)
+      ix.node(u).getId should be (a)
+      td.distanceById(a, b) should be (walkDistance(ix, u, td.indexOf(b)) +- 1e-9)
+    }
+    td.distanceById(7, 7) should be (0.0)
+  }
+
+  it should "answer on a caterpillar 20000 nodes deep" in {
+    val n = 20000
+    val b = new StringBuilder
+    for (i <- 0 until n - 1)
+      b.append('(')
+    b.append("0:1,1:1)")
+    for (k <- 2 until n)
+      b.append(":1," + k + ":1)")
+    b.append(";")
+
+    val td = new TreeDistances(new Tree(new StringReader(b.toString)))
+    val ix = td.getIndex
+    ix.size should be (2 * n - 1)
+    // Objects 0 and 1 are the deepest, n-1 edges below the root, and n-1 hangs off the root:
+    td.distanceById(0, 1) should be (2.0)
+    td.distanceById(0, n - 1) should be (n.toDouble)
+    td.getDepth(td.indexOf(0)) should be ((n - 1).toDouble)
+    val random = new scala.util.Random(5)
+    for (_ <- 1 to 200) {
+      val u = random.nextInt(ix.size)
+      val v = random.nextInt(ix.size)
+      td.lca(u, v) should be (walkLca(ix, u, v))
+      td.distance(u, v) should be (walkDistance(ix, u, v) +- 1e-6)
+    }
+  }
+
+  it should "refuse objects that are not in the tree" in {
+    val td = new TreeDistances(randomTree(10, 6))
+    td.indexOf(11) should be (-1)
+    an [IllegalArgumentException] should be thrownBy td.distanceById(1, 11)
+  }
+}
@@ -0,0 +1,66 @@
+package test.scala
+
+import java.io.StringReader
+
+import org.scalatest.{FlatSpec, Matchers}
+import tree.basics.{Tree, TreeDistances}
+import tree.implementation.DistanceMatrixImp
+import tree.technique.nj.{DistanceMatrixReader, NJ, TreeFit}
+
+/**
+ * The fit of the trees of every implementation to the additive matrix of a known tree.
+ */
+class TreeFitTest extends FlatSpec with Matchers {
+
+  val n = 300
+
+  /**
+   * A random tree of objects 1 to n, joined two or three at a time.
+   */
+  def randomTree(seed: Int): Tree = {
+    val random = new scala.util.Random(seed)
+    def length = "%.3f".formatLocal(java.util.Locale.US, 0.1 + random.nextDouble() * 2)
+    var groups = (1 to n).map(i => i + ":" + length).toVector
+    while (groups.size > 3) {
+      val k = if (groups.size > 4 && random.nextInt(3) == 0) 3 else 2
+      val shuffled = random.shuffle(groups)
+      groups = shuffled.drop(k) :+ ("(" + shuffled.take(k).mkString(",") + "):" + length)
+    }
+    new Tree(new StringReader("(" + groups.mkString(",") + ");"))
+  }
+
+  // The path lengths of the tree, as the distances of objects 1 to n:
+  val dmat = {
+    val td = new TreeDistances(randomTree(11))
+    val d = new DistanceMatrixImp(n)
+    val ids = new java.util.ArrayList[Integer]()
+    for (i <- 1 to n)
+      ids.add(i)
+    d.setIds(ids)
+    for (i <- 1 until n; j <- 0 until i)
+      d.setDistance(i, j, td.distanceById(i + 1, j + 1).toFloat)
+    d
+  }
+
+  for (t <- NJ.NJAlgorithmType.values; promotion <- Seq(false, true)) {
+    val name = t + (if (promotion) " with leaf promotion" else "")
+
+    "The fit of " + name should "be measured over every pair, the same with any number of threads" in {
+      val tree = new NJ(promotion, t).execute(dmat)
+      val one = TreeFit.measure(tree, DistanceMatrixReader.loadPex(dmat), 1)
+      val four = TreeFit.measure(tree, DistanceMatrixReader.loadPex(dmat), 4)
+      one.pairs should be (n * (n - 1) / 2)
+      one.correlation should be > 0.9
+      four.toString should be (one.toString)
+      four.sse should be (one.sse)
+    }
+
+    if (!promotion && t != NJ.NJAlgorithmType.FAST)
+      it should "find the path lengths of the tree the matrix was taken from" in {
+        val tree = new NJ(promotion, t).execute(dmat)
+        val fit = TreeFit.measure(tree, DistanceMatrixReader.loadPex(dmat), 1)
+        fit.stress should be < 1e-6
+        fit.maxError should be < 1e-4
+      }
+  }
+}